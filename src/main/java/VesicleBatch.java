@@ -0,0 +1,400 @@
+/*
+    plugin : VesicleBatch.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Headless batch export of Vesicle profiles.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+
+
+/*
+ * Builds a VesicleProfile for every image in a directory and writes the
+ * .ves files (and optionally the analyzed images) without any dialogs.
+ *
+ * The components of each image are read from a ROI set named after the
+ * image (img01.tif -> img01.zip, or img01.roi for a single ROI) or, if
+ * there is none, from the overlay saved with the image. ROIs are assigned
+ * to components by name ("profile border", "vesicle", "hole", "points",
+ * "random points"), i.e. the names the plugin itself gives them.
+ *
+ * The profile ID is the one stored in the .ves file of an earlier export,
+ * if any, and otherwise the image file name without extension, so that it
+ * does not depend on which other images are in the directory.
+ *
+ * Usage: java -cp ij.jar:Vesicle_.jar VesicleBatch [-threads n] [-tiff]
+ *            [-mode drawn|overlay|cropped] [-format tiff|zip|png] [-margin n]
+ *            [-binary] [-metrics] [-association] <input directory> [<output directory>]
+ */
+public class VesicleBatch {
+
+    static final String[] imageExtensions = {".tif", ".tiff", ".png", ".jpg",
+                                             ".jpeg", ".gif", ".bmp", ".dm3"};
+    static final String logName = "vesicle_batch.log";
+
+    File inputDir, outputDir;
+    int threads;
+    int exportMode, exportFormat, exportMargin;
+    boolean saveTiff, binaryFormat, saveMetrics, saveAssociation;
+
+
+    public VesicleBatch(File inputDir, File outputDir, int threads, boolean saveTiff) {
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.threads = threads;
+        this.saveTiff = saveTiff;
+        this.exportMode = VesicleExport.DRAWN;
+        this.exportFormat = VesicleExport.TIFF;
+        this.exportMargin = 50;
+    }
+
+
+    // Exports all images and writes the summary log. Returns the number
+    // of images that could not be exported.
+    public int run() throws IOException, InterruptedException {
+        File[] images;
+        ArrayList<Future<String>> results;
+        ExecutorService pool;
+        PrintWriter log;
+        String line;
+        int i, nsaved = 0, nfailed = 0;
+
+        images = listImages(this.inputDir);
+        results = new ArrayList<Future<String>>();
+        pool = Executors.newFixedThreadPool(this.threads);
+        for (i = 0; i < images.length; i++) {
+            final File image = images[i];
+            results.add(pool.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return export(image);
+                }
+            }));
+        }
+        pool.shutdown();
+        log = new PrintWriter(
+                  new BufferedWriter(
+                      new FileWriter(new File(this.outputDir, logName))));
+        try {
+            log.println(String.format("# %s version %s batch export, %s",
+                                      VesicleVersion.title,
+                                      VesicleVersion.version,
+                                      new Date()));
+            log.println("# Input: " + this.inputDir.getAbsolutePath());
+            log.println("# Output: " + this.outputDir.getAbsolutePath());
+            log.println("# Threads: " + this.threads);
+            for (i = 0; i < results.size(); i++) {
+                try {
+                    line = results.get(i).get();
+                } catch (ExecutionException e) {
+                    line = "FAILED\t" + images[i].getName() + "\t" + e.getCause();
+                }
+                if (line.startsWith("SAVED")) {
+                    nsaved++;
+                } else {
+                    nfailed++;
+                }
+                log.println(line);
+                System.out.println(line);
+            }
+            line = "# " + images.length + " images, " + nsaved + " saved, " +
+                   nfailed + " not saved";
+            log.println(line);
+            System.out.println(line);
+        } finally {
+            log.close();
+        }
+        return nfailed;
+    }
+
+
+    // Exports the profile of one image. Returns a tab separated log line
+    // starting with SAVED or SKIPPED.
+    String export(File file) throws IOException {
+        ArrayList<String> errstr, warnstr;
+        VesicleSnapshot snapshot;
+        VesicleProfile profile;
+        ImagePlus imp;
+        Roi[] rois;
+        String name, line;
+        int i;
+
+        imp = IJ.openImage(file.getPath());
+        if (imp == null) {
+            return "SKIPPED\t" + file.getName() + "\tCould not open image.";
+        }
+        try {
+            profile = new VesicleProfile();
+            profile.ID = getID(file, imp);
+            errstr = new ArrayList<String>();
+            warnstr = new ArrayList<String>();
+            rois = readRois(file, imp);
+            for (i = 0; i < rois.length; i++) {
+                name = VesicleProfile.getComponentName(rois[i].getName());
+                if (name == null) {
+                    continue;
+                }
+                if (profile.getComponent(name) != null) {
+                    errstr.add("More than one " + name + " defined.");
+                } else {
+                    profile.addComponent(rois[i], name);
+                }
+            }
+            snapshot = profile.snapshot(imp);
+            snapshot.check(errstr, warnstr);
+            if (errstr.size() > 0) {
+                return "SKIPPED\t" + file.getName() + "\t" + join(errstr);
+            }
+            profile.binaryFormat = this.binaryFormat;
+            profile.saveMetrics = this.saveMetrics;
+            profile.saveAssociation = this.saveAssociation;
+            profile.write(imp, new File(this.outputDir, imp.getTitle() + ".1" +
+                                        (this.binaryFormat ? ".vesb" : ".ves")).getPath());
+            if (this.saveTiff) {
+                try {
+                    new VesicleExport(imp, snapshot, this.exportMode, this.exportFormat,
+                                      this.exportMargin)
+                        .write(new File(this.outputDir, imp.getShortTitle() +
+                                        VesicleExport.extensions[this.exportFormat]).getPath());
+                } catch (IOException e) {
+                    warnstr.add("Analyzed image could not be saved.");
+                }
+            }
+            line = "SAVED\t" + file.getName() + "\t" +
+                   profile.getNum("vesicle") + " vesicles, " +
+                   profile.getNumPoints("points") + " points, " +
+                   profile.getNum("hole") + " holes";
+            if (warnstr.size() > 0) {
+                line += "\t" + join(warnstr);
+            }
+            return line;
+        } finally {
+            imp.flush();
+        }
+    }
+
+
+    // Returns the ID of the profile of 'file': the PROFILE_ID of the .ves
+    // or .vesb file written for it by an earlier export, or the file name
+    // without extension if there is none.
+    String getID(File file, ImagePlus imp) {
+        String[] exts = {".ves", ".vesb"};
+        String id;
+        File prev;
+        int j;
+
+        for (j = 0; j < exts.length; j++) {
+            prev = new File(this.outputDir, imp.getTitle() + ".1" + exts[j]);
+            if (!prev.isFile()) {
+                continue;
+            }
+            try {
+                id = VesicleReader.read(prev.getPath()).id;
+                if (id != null && !id.equals("")) {
+                    return id;
+                }
+            } catch (IOException e) {
+                // An unreadable file is replaced; name the profile anew.
+            }
+        }
+        return baseName(file);
+    }
+
+
+    // Returns the name of 'file' without its extension.
+    static String baseName(File file) {
+        String base = file.getName();
+
+        if (base.lastIndexOf('.') > 0) {
+            base = base.substring(0, base.lastIndexOf('.'));
+        }
+        return base;
+    }
+
+
+    // Returns the ROIs of the ROI set belonging to 'file', or the ROIs of
+    // the image overlay if there is no ROI set.
+    static Roi[] readRois(File file, ImagePlus imp) throws IOException {
+        ArrayList<Roi> rois;
+        ZipInputStream in;
+        ZipEntry entry;
+        Overlay overlay;
+        String base;
+        File roiFile;
+        Roi roi;
+
+        base = baseName(file);
+        roiFile = new File(file.getParentFile(), base + ".zip");
+        if (roiFile.isFile()) {
+            rois = new ArrayList<Roi>();
+            in = new ZipInputStream(
+                     new BufferedInputStream(new FileInputStream(roiFile)));
+            try {
+                while ((entry = in.getNextEntry()) != null) {
+                    if (entry.getName().endsWith(".roi")) {
+                        roi = new RoiDecoder(readFully(in),
+                                             entry.getName()).getRoi();
+                        if (roi != null) {
+                            rois.add(roi);
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return rois.toArray(new Roi[rois.size()]);
+        }
+        roiFile = new File(file.getParentFile(), base + ".roi");
+        if (roiFile.isFile()) {
+            roi = RoiDecoder.open(roiFile.getPath());
+            return roi == null ? new Roi[0] : new Roi[] {roi};
+        }
+        overlay = imp.getOverlay();
+        return overlay == null ? new Roi[0] : overlay.toArray();
+    }
+
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int len;
+
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+
+    static File[] listImages(File dir) throws IOException {
+        ArrayList<File> images = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        String name;
+        int i, j;
+
+        if (files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Arrays.sort(files);
+        for (i = 0; i < files.length; i++) {
+            name = files[i].getName().toLowerCase();
+            if (!files[i].isFile() || name.endsWith(".a.tif") || name.endsWith(".a.png")) {
+                continue;
+            }
+            for (j = 0; j < imageExtensions.length; j++) {
+                if (name.endsWith(imageExtensions[j])) {
+                    images.add(files[i]);
+                    break;
+                }
+            }
+        }
+        return images.toArray(new File[images.size()]);
+    }
+
+
+    static String join(ArrayList<String> strings) {
+        StringBuilder sb = new StringBuilder();
+        int i;
+
+        for (i = 0; i < strings.size(); i++) {
+            if (i > 0) {
+                sb.append(" ");
+            }
+            sb.append(strings.get(i));
+        }
+        return sb.toString();
+    }
+
+
+    static void usage() {
+        System.err.println("Usage: VesicleBatch [-threads n] [-tiff] " +
+                           "[-mode drawn|overlay|cropped] [-format tiff|zip|png] " +
+                           "[-margin n] [-binary] [-metrics] [-association] " +
+                           "<input directory> [<output directory>]");
+        System.exit(2);
+    }
+
+
+    public static void main(String[] args) {
+        File inputDir = null, outputDir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int exportMode = VesicleExport.DRAWN, exportFormat = VesicleExport.TIFF;
+        int exportMargin = 50;
+        boolean saveTiff = false, binaryFormat = false, saveMetrics = false;
+        boolean saveAssociation = false;
+        VesicleBatch batch;
+        int i;
+
+        System.setProperty("java.awt.headless", "true");
+        for (i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+            } else if (args[i].equals("-tiff")) {
+                saveTiff = true;
+            } else if (args[i].equals("-mode") && i + 1 < args.length) {
+                exportMode = VesicleExport.getMode(args[++i]);
+            } else if (args[i].equals("-format") && i + 1 < args.length) {
+                exportFormat = VesicleExport.getFormat(args[++i]);
+            } else if (args[i].equals("-margin") && i + 1 < args.length) {
+                try {
+                    exportMargin = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+            } else if (args[i].equals("-binary")) {
+                binaryFormat = true;
+            } else if (args[i].equals("-metrics")) {
+                saveMetrics = true;
+            } else if (args[i].equals("-association")) {
+                saveAssociation = true;
+            } else if (args[i].startsWith("-")) {
+                usage();
+            } else if (inputDir == null) {
+                inputDir = new File(args[i]);
+            } else if (outputDir == null) {
+                outputDir = new File(args[i]);
+            } else {
+                usage();
+            }
+        }
+        if (inputDir == null || threads < 1 || exportMode < 0 || exportFormat < 0 ||
+            exportMargin < 0) {
+            usage();
+        }
+        if (outputDir == null) {
+            outputDir = inputDir;
+        }
+        try {
+            outputDir.mkdirs();
+            batch = new VesicleBatch(inputDir, outputDir, threads, saveTiff);
+            batch.binaryFormat = binaryFormat;
+            batch.exportMode = exportMode;
+            batch.exportFormat = exportFormat;
+            batch.exportMargin = exportMargin;
+            batch.saveMetrics = saveMetrics;
+            batch.saveAssociation = saveAssociation;
+            System.exit(batch.run() == 0 ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Vesicle batch export failed: " + e);
+            System.exit(1);
+        }
+    }
+} // end of VesicleBatch
@@ -0,0 +1,468 @@
+/*
+    plugin : VesicleBinary.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Compact binary profile format (.vesb) and converter to and from .ves.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+ * Binary equivalent of the .ves format. Layout:
+ *
+ *   "VESB", format version (1 byte)
+ *   version info, image, profile ID, comment, unit (strings)
+ *   pixel width (8 byte IEEE double, big endian)
+ *   number of properties (varint), then key and value of each (strings)
+ *   blocks: type (1 byte), number of vertices (varint), then for each
+ *           vertex the differences to the previous vertex in x and y
+ *           (zigzag varints, the first vertex relative to 0, 0)
+ *   other blocks: 6, name (string), number of lines (varint), lines (strings)
+ *   0 (end of blocks)
+ *
+ * Version 1 files have no other blocks. Strings are a varint byte count followed by UTF-8. Blocks are stored
+ * in the same order as in the text format, so converting between the two
+ * is lossless for any file written by VesicleWriter.
+ */
+class VesicleBinary {
+    static final byte[] magic = {'V', 'E', 'S', 'B'};
+    static final int formatVersion = 2;
+    static final int END = 0, PROFILE_BORDER = 1, HOLE = 2, VESICLE = 3,
+                     POINTS = 4, RANDOM_POINTS = 5, TEXT_BLOCK = 6;
+    static final Charset utf8 = Charset.forName("UTF-8");
+    static final int bufferSize = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buf;
+
+
+    private VesicleBinary(WritableByteChannel channel) {
+        this.channel = channel;
+        this.buf = ByteBuffer.allocate(bufferSize);
+    }
+
+
+    static boolean isBinary(ByteBuffer buf) {
+        int i;
+
+        if (buf.remaining() < magic.length) {
+            return false;
+        }
+        for (i = 0; i < magic.length; i++) {
+            if (buf.get(buf.position() + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    static void write(VesicleRecord rec, String path) throws IOException {
+        write(rec, new FileOutputStream(path).getChannel());
+    }
+
+
+    // Writes 'rec' to 'channel' and closes the channel.
+    static void write(VesicleRecord rec, WritableByteChannel channel) throws IOException {
+        VesicleBinary out = new VesicleBinary(channel);
+        try {
+            out.writeRecord(rec);
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    private void writeRecord(VesicleRecord rec) throws IOException {
+        int j;
+
+        this.buf.put(magic);
+        this.buf.put((byte) formatVersion);
+        putString(rec.versionInfo);
+        putString(rec.image);
+        putString(rec.id);
+        putString(rec.comment);
+        putString(rec.unit);
+        ensure(13);
+        this.buf.putDouble(rec.pixelwidth);
+        putVarint(rec.properties.size());
+        for (Map.Entry<String, String> e : rec.properties.entrySet()) {
+            putString(e.getKey());
+            putString(e.getValue());
+        }
+        if (rec.border != null) {
+            putPolygon(PROFILE_BORDER, rec.border);
+        }
+        for (j = 0; j < rec.holes.size(); j++) {
+            putPolygon(HOLE, rec.holes.get(j));
+        }
+        for (j = 0; j < rec.vesicles.size(); j++) {
+            putPolygon(VESICLE, rec.vesicles.get(j));
+        }
+        if (rec.points != null) {
+            putPolygon(POINTS, rec.points);
+        }
+        if (rec.randomPoints != null) {
+            putPolygon(RANDOM_POINTS, rec.randomPoints);
+        }
+        for (Map.Entry<String, List<String>> e : rec.blocks.entrySet()) {
+            ensure(6);
+            this.buf.put((byte) TEXT_BLOCK);
+            putString(e.getKey());
+            ensure(5);
+            putVarint(e.getValue().size());
+            for (j = 0; j < e.getValue().size(); j++) {
+                putString(e.getValue().get(j));
+            }
+        }
+        ensure(1);
+        this.buf.put((byte) END);
+        flush();
+    }
+
+
+    private void putPolygon(int type, Polygon pol) throws IOException {
+        int i, x = 0, y = 0;
+
+        ensure(6);
+        this.buf.put((byte) type);
+        putVarint(pol.npoints);
+        for (i = 0; i < pol.npoints; i++) {
+            ensure(10);
+            // Differences are taken modulo 2^32, so they decode exactly
+            // even if they overflow.
+            putVarint(zigzag(pol.xpoints[i] - x));
+            putVarint(zigzag(pol.ypoints[i] - y));
+            x = pol.xpoints[i];
+            y = pol.ypoints[i];
+        }
+    }
+
+
+    private void putString(String s) throws IOException {
+        byte[] b = s.getBytes(utf8);
+        int off = 0, len;
+
+        ensure(5);
+        putVarint(b.length);
+        while (off < b.length) {
+            ensure(1);
+            len = Math.min(b.length - off, this.buf.remaining());
+            this.buf.put(b, off, len);
+            off += len;
+        }
+    }
+
+
+    // Writes v as an unsigned LEB128 varint (at most 5 bytes).
+    private void putVarint(int v) {
+        while ((v & ~0x7f) != 0) {
+            this.buf.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        this.buf.put((byte) v);
+    }
+
+
+    private void ensure(int n) throws IOException {
+        if (this.buf.remaining() < n) {
+            flush();
+        }
+    }
+
+
+    private void flush() throws IOException {
+        this.buf.flip();
+        while (this.buf.hasRemaining()) {
+            this.channel.write(this.buf);
+        }
+        this.buf.clear();
+    }
+
+
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+
+    static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+
+    static VesicleRecord read(ByteBuffer buf) throws IOException {
+        VesicleRecord rec = new VesicleRecord();
+        ArrayList<String> lines;
+        Polygon pol;
+        String name;
+        int i, n, type, version;
+
+        try {
+            buf.position(buf.position() + magic.length);
+            version = buf.get();
+            if (version < 1 || version > formatVersion) {
+                throw new IOException("Unsupported binary profile version");
+            }
+            rec.versionInfo = getString(buf);
+            rec.image = getString(buf);
+            rec.id = getString(buf);
+            rec.comment = getString(buf);
+            rec.unit = getString(buf);
+            rec.pixelwidth = buf.getDouble();
+            n = getVarint(buf);
+            for (i = 0; i < n; i++) {
+                rec.properties.put(getString(buf), getString(buf));
+            }
+            while ((type = buf.get()) != END) {
+                if (type == TEXT_BLOCK) {
+                    name = getString(buf);
+                    n = getVarint(buf);
+                    if (n < 0 || n > buf.remaining()) {
+                        throw new IOException("Invalid line count");
+                    }
+                    lines = new ArrayList<String>(n);
+                    for (i = 0; i < n; i++) {
+                        lines.add(getString(buf));
+                    }
+                    rec.blocks.put(name, lines);
+                    continue;
+                }
+                pol = getPolygon(buf);
+                if (type == PROFILE_BORDER) {
+                    rec.border = pol;
+                } else if (type == HOLE) {
+                    rec.holes.add(pol);
+                } else if (type == VESICLE) {
+                    rec.vesicles.add(pol);
+                } else if (type == POINTS) {
+                    rec.points = pol;
+                } else if (type == RANDOM_POINTS) {
+                    rec.randomPoints = pol;
+                }
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated binary profile");
+        }
+        return rec;
+    }
+
+
+    private static Polygon getPolygon(ByteBuffer buf) throws IOException {
+        int i, n, x = 0, y = 0;
+        int[] xpoints, ypoints;
+
+        n = getVarint(buf);
+        if (n < 0 || n > buf.remaining() / 2) {
+            throw new IOException("Invalid vertex count");
+        }
+        xpoints = new int[n];
+        ypoints = new int[n];
+        for (i = 0; i < n; i++) {
+            x += unzigzag(getVarint(buf));
+            y += unzigzag(getVarint(buf));
+            xpoints[i] = x;
+            ypoints[i] = y;
+        }
+        return new Polygon(xpoints, ypoints, n);
+    }
+
+
+    private static String getString(ByteBuffer buf) throws IOException {
+        int len = getVarint(buf);
+        byte[] b;
+
+        if (len < 0 || len > buf.remaining()) {
+            throw new IOException("Invalid string length");
+        }
+        b = new byte[len];
+        buf.get(b);
+        return new String(b, utf8);
+    }
+
+
+    private static int getVarint(ByteBuffer buf) throws IOException {
+        int v = 0, shift = 0;
+        byte b;
+
+        do {
+            if (shift > 28) {
+                throw new IOException("Invalid varint");
+            }
+            b = buf.get();
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+
+    static byte[] toText(VesicleRecord rec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VesicleWriter outf = new VesicleWriter(Channels.newChannel(out));
+        rec.write(outf);
+        outf.close();
+        return out.toByteArray();
+    }
+
+
+    static byte[] toBinary(VesicleRecord rec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(rec, Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+
+    // Writes 'rec' to 'channel' in the other format than 'binary' says
+    // the source is in, and closes the channel.
+    private static void writeConverted(VesicleRecord rec, boolean binary,
+                                       WritableByteChannel channel) throws IOException {
+        VesicleWriter outf;
+
+        if (binary) {
+            outf = new VesicleWriter(channel);
+            rec.write(outf);
+            outf.close();
+        } else {
+            write(rec, channel);
+        }
+    }
+
+
+    private static VesicleRecord parse(ByteBuffer buf) throws IOException {
+        return isBinary(buf) ? read(buf) : new VesicleReader(buf).parse();
+    }
+
+
+    // Converts a .ves file to .vesb or vice versa, next to the original.
+    // The result is written through a fixed-size buffer to a temporary
+    // file, which only replaces the converted file once complete. With
+    // 'verify', the temporary file is read back, converted again and
+    // compared with the original as that is written, so only the converted
+    // file is held in memory (it is not mapped, as a mapped file cannot be
+    // renamed on Windows). Returns the path of the converted file.
+    static String convert(String path, boolean verify) throws IOException {
+        ByteBuffer buf = VesicleReader.load(path);
+        boolean binary = isBinary(buf), done = false;
+        Comparison roundtrip;
+        VesicleRecord rec;
+        InputStream in;
+        byte[] converted;
+        String outPath;
+        File out, tmp;
+
+        if (binary) {
+            outPath = path.endsWith(".vesb") ? path.substring(0, path.length() - 1)
+                                             : path + ".ves";
+        } else {
+            outPath = path.endsWith(".ves") ? path + "b" : path + ".vesb";
+        }
+        out = new File(outPath);
+        tmp = new File(outPath + ".tmp");
+        rec = parse(buf.duplicate());
+        try {
+            writeConverted(rec, binary, new FileOutputStream(tmp).getChannel());
+            rec = null;
+            if (verify) {
+                in = new FileInputStream(tmp);
+                try {
+                    converted = VesicleBatch.readFully(in);
+                } finally {
+                    in.close();
+                }
+                roundtrip = new Comparison(buf);
+                writeConverted(parse(ByteBuffer.wrap(converted)), !binary, roundtrip);
+                if (!roundtrip.matches()) {
+                    throw new IOException("Round trip differs from original, not converted");
+                }
+            }
+            out.delete();
+            if (!tmp.renameTo(out)) {
+                throw new IOException("Could not write " + outPath);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                tmp.delete();
+            }
+        }
+        return outPath;
+    }
+
+
+    /*
+     * Channel that compares what is written to it with 'expected'.
+     */
+    private static class Comparison implements WritableByteChannel {
+        private final ByteBuffer expected;
+        private boolean equal, open;
+
+        Comparison(ByteBuffer expected) {
+            this.expected = expected.duplicate();
+            this.equal = true;
+            this.open = true;
+        }
+
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+
+            while (this.equal && src.hasRemaining()) {
+                this.equal = this.expected.hasRemaining() && this.expected.get() == src.get();
+            }
+            src.position(src.limit());
+            return n;
+        }
+
+        // Returns true if all of 'expected' and nothing more was written.
+        boolean matches() {
+            return this.equal && !this.expected.hasRemaining();
+        }
+
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        public void close() {
+            this.open = false;
+        }
+    }
+
+
+    public static void main(String[] args) {
+        boolean verify = false;
+        int i, nfailed = 0;
+
+        if (args.length == 0) {
+            System.err.println("Usage: VesicleBinary [-verify] <file.ves|file.vesb> ...");
+            System.exit(2);
+        }
+        for (i = 0; i < args.length; i++) {
+            if (args[i].equals("-verify")) {
+                verify = true;
+                continue;
+            }
+            try {
+                System.out.println(args[i] + " -> " + convert(args[i], verify));
+            } catch (IOException e) {
+                System.err.println(args[i] + ": " + e.getMessage());
+                nfailed++;
+            }
+        }
+        System.exit(nfailed == 0 ? 0 : 1);
+    }
+} // end of VesicleBinary
@@ -0,0 +1,443 @@
+/*
+    plugin : VesicleDetector.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Automatic detection of vesicle candidates.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+
+/*
+ * Finds round vesicle membranes with a gradient Hough transform:
+ *
+ *   1. Each pixel whose (3x3 smoothed, Sobel) gradient magnitude exceeds
+ *      an image-wide threshold votes for the centers at distance rmin ..
+ *      rmax along and against its gradient direction, which is where the
+ *      center of a circle through it lies whatever the membrane contrast.
+ *   2. Local maxima of the (3x3 smoothed) votes are candidate centers.
+ *   3. For each candidate, the radius is the one with the most edge pixels
+ *      at that distance whose gradient points to or from the center; the
+ *      candidate is kept if those pixels cover at least 'minCoverage' of
+ *      the circumference.
+ *
+ * The image is processed in square tiles on a thread pool; tiles overlap
+ * by rmax + 6 pixels (see detectTile) and each keeps only the centers in
+ * its own core, so that the result does not depend on the tiling. Only
+ * tiles overlapping the search region are processed, and only centers
+ * inside the region (and outside the excluded polygons, e.g. holes) are
+ * kept. Finally, candidates overlapping a better one are dropped.
+ *
+ * The detector only reads the image processor, which must not change
+ * while it runs.
+ */
+class VesicleDetector {
+    static final int tileSize = 512;
+
+    final int rmin, rmax;
+    final double minCoverage;
+    int threads;
+
+
+    /*
+     * A detected circle, in pixels.
+     */
+    static class Candidate {
+        final int x, y, r;
+        final double score;  // fraction of the circumference supported
+
+        Candidate(int x, int y, int r, double score) {
+            this.x = x;
+            this.y = y;
+            this.r = r;
+            this.score = score;
+        }
+
+        // Returns the circle as a polygon with nodes about 3 pixels apart.
+        Polygon toPolygon() {
+            Polygon pol = new Polygon();
+            int n = Math.max(12, (int) Math.round(2 * Math.PI * this.r / 3)), i;
+
+            for (i = 0; i < n; i++) {
+                pol.addPoint((int) Math.round(this.x + this.r * Math.cos(2 * Math.PI * i / n)),
+                             (int) Math.round(this.y + this.r * Math.sin(2 * Math.PI * i / n)));
+            }
+            return pol;
+        }
+    }
+
+
+    VesicleDetector(int rmin, int rmax, double minCoverage) {
+        this.rmin = Math.max(2, rmin);
+        this.rmax = Math.max(this.rmin, rmax);
+        this.minCoverage = minCoverage;
+        this.threads = Runtime.getRuntime().availableProcessors();
+    }
+
+
+    // Returns the vesicle candidates in 'region' of 'ip', best first.
+    // 'exclude' lists polygons, e.g. holes, where no center may lie.
+    List<Candidate> detect(final ImageProcessor ip, final Polygon region,
+                           final List<Polygon> exclude)
+            throws InterruptedException {
+        ArrayList<Future<List<Candidate>>> futures = new ArrayList<Future<List<Candidate>>>();
+        ArrayList<Candidate> found = new ArrayList<Candidate>();
+        Rectangle bounds;
+        ExecutorService pool;
+        final float threshold;
+        int x, y;
+
+        bounds = region.getBounds().intersection(new Rectangle(0, 0, ip.getWidth(),
+                                                               ip.getHeight()));
+        if (bounds.isEmpty()) {
+            return found;
+        }
+        threshold = edgeThreshold(ip, bounds);
+        pool = Executors.newFixedThreadPool(this.threads);
+        try {
+            for (y = bounds.y; y < bounds.y + bounds.height; y += tileSize) {
+                for (x = bounds.x; x < bounds.x + bounds.width; x += tileSize) {
+                    final Rectangle core = new Rectangle(x, y, tileSize, tileSize)
+                                               .intersection(bounds);
+                    futures.add(pool.submit(new Callable<List<Candidate>>() {
+                        public List<Candidate> call() {
+                            return detectTile(ip, core, threshold, region, exclude);
+                        }
+                    }));
+                }
+            }
+            for (x = 0; x < futures.size(); x++) {
+                try {
+                    found.addAll(futures.get(x).get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return suppressOverlaps(found);
+    }
+
+
+    // Returns the gradient magnitude above which a pixel counts as an edge:
+    // the mean plus two standard deviations, estimated on a subsample of
+    // the search region so that all tiles use the same value.
+    private static float edgeThreshold(ImageProcessor ip, Rectangle r) {
+        int step = Math.max(1, (int) Math.sqrt((double) r.width * r.height / 100000));
+        boolean rgb = ip instanceof ColorProcessor;
+        float[] s = new float[9];
+        double sum = 0, sumsq = 0, gx, gy, m;
+        long n = 0;
+        int x, y, i;
+
+        for (y = Math.max(2, r.y); y < Math.min(ip.getHeight() - 2, r.y + r.height); y += step) {
+            for (x = Math.max(2, r.x); x < Math.min(ip.getWidth() - 2, r.x + r.width); x += step) {
+                // Smoothed values around (x, y), then Sobel, as in detectTile.
+                for (i = 0; i < 9; i++) {
+                    s[i] = smoothedValue(ip, rgb, x + i % 3 - 1, y + i / 3 - 1);
+                }
+                gx = s[2] + 2 * s[5] + s[8] - s[0] - 2 * s[3] - s[6];
+                gy = s[6] + 2 * s[7] + s[8] - s[0] - 2 * s[1] - s[2];
+                m = Math.sqrt(gx * gx + gy * gy);
+                sum += m;
+                sumsq += m * m;
+                n++;
+            }
+        }
+        if (n == 0) {
+            return Float.MAX_VALUE;
+        }
+        m = sum / n;
+        return (float) (m + 2 * Math.sqrt(Math.max(0, sumsq / n - m * m)));
+    }
+
+
+    private static float smoothedValue(ImageProcessor ip, boolean rgb, int x, int y) {
+        return (value(ip, rgb, x - 1, y - 1) + 2 * value(ip, rgb, x, y - 1) +
+                value(ip, rgb, x + 1, y - 1) + 2 * value(ip, rgb, x - 1, y) +
+                4 * value(ip, rgb, x, y) + 2 * value(ip, rgb, x + 1, y) +
+                value(ip, rgb, x - 1, y + 1) + 2 * value(ip, rgb, x, y + 1) +
+                value(ip, rgb, x + 1, y + 1)) / 16;
+    }
+
+
+    static float value(ImageProcessor ip, boolean rgb, int x, int y) {
+        int c;
+
+        if (!rgb) {
+            return ip.getf(x, y);
+        }
+        c = ip.get(x, y);
+        return 0.299f * ((c >> 16) & 0xff) + 0.587f * ((c >> 8) & 0xff) + 0.114f * (c & 0xff);
+    }
+
+
+    // Finds the candidates with their center in 'core'.
+    List<Candidate> detectTile(ImageProcessor ip, Rectangle core, float threshold,
+                               Polygon region, List<Polygon> exclude) {
+        ArrayList<Candidate> found = new ArrayList<Candidate>();
+        Rectangle t = new Rectangle(core);
+        boolean rgb = ip instanceof ColorProcessor;
+        float[] pix, smooth, gx, gy, mag, acc, acc2;
+        double ux, uy;
+        int w, h, x, y, i, r, s, cx, cy;
+        int[] support;
+        Candidate c;
+
+        // Everything that decides a center in the core must be computed as
+        // in an untiled run: the local maximum looks 2 pixels into the
+        // smoothed votes, which blur the votes by 1; votes come from edge
+        // pixels up to rmax + 1 away; and the gradient of an edge pixel is
+        // only exact 2 pixels from the tile border, as the Sobel filter
+        // reads the smoothed image 1 pixel around it, and blur leaves the
+        // outermost rows and columns unsmoothed.
+        t.grow(this.rmax + 6, this.rmax + 6);
+        t = t.intersection(new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+        w = t.width;
+        h = t.height;
+        if (w < 3 || h < 3) {
+            return found;
+        }
+        pix = new float[w * h];
+        for (y = 0; y < h; y++) {
+            for (x = 0; x < w; x++) {
+                pix[y * w + x] = value(ip, rgb, t.x + x, t.y + y);
+            }
+        }
+        smooth = blur(pix, w, h);
+        gx = new float[w * h];
+        gy = new float[w * h];
+        mag = new float[w * h];
+        for (y = 1; y < h - 1; y++) {
+            for (x = 1; x < w - 1; x++) {
+                i = y * w + x;
+                gx[i] = smooth[i - w + 1] + 2 * smooth[i + 1] + smooth[i + w + 1] -
+                        smooth[i - w - 1] - 2 * smooth[i - 1] - smooth[i + w - 1];
+                gy[i] = smooth[i + w - 1] + 2 * smooth[i + w] + smooth[i + w + 1] -
+                        smooth[i - w - 1] - 2 * smooth[i - w] - smooth[i - w + 1];
+                mag[i] = (float) Math.sqrt(gx[i] * gx[i] + gy[i] * gy[i]);
+            }
+        }
+        // Votes for centers.
+        acc = new float[w * h];
+        for (y = 1; y < h - 1; y++) {
+            for (x = 1; x < w - 1; x++) {
+                i = y * w + x;
+                if (mag[i] < threshold) {
+                    continue;
+                }
+                ux = gx[i] / mag[i];
+                uy = gy[i] / mag[i];
+                for (r = this.rmin; r <= this.rmax; r++) {
+                    for (s = -1; s <= 1; s += 2) {
+                        cx = (int) Math.round(x + s * r * ux);
+                        cy = (int) Math.round(y + s * r * uy);
+                        if (cx >= 0 && cx < w && cy >= 0 && cy < h) {
+                            acc[cy * w + cx]++;
+                        }
+                    }
+                }
+            }
+        }
+        acc2 = blur(acc, w, h);
+        // Local maxima in the core, then the radius with the best support.
+        support = new int[this.rmax + 2];
+        for (y = core.y - t.y; y < core.y - t.y + core.height; y++) {
+            for (x = core.x - t.x; x < core.x - t.x + core.width; x++) {
+                i = y * w + x;
+                if (acc2[i] < Math.PI * this.rmin * this.minCoverage ||
+                    !isLocalMax(acc2, w, h, x, y)) {
+                    continue;
+                }
+                if (!region.contains(t.x + x, t.y + y) ||
+                    isExcluded(exclude, t.x + x, t.y + y)) {
+                    continue;
+                }
+                c = fitRadius(gx, gy, mag, w, h, x, y, threshold, support);
+                if (c != null) {
+                    found.add(new Candidate(t.x + c.x, t.y + c.y, c.r, c.score));
+                }
+            }
+        }
+        return found;
+    }
+
+
+    // Counts, for each radius, the edge pixels at that distance from (x, y)
+    // with a roughly radial gradient, and returns the best supported circle
+    // if it covers enough of its circumference. The inner and outer edge of
+    // a membrane give two nearby peaks, so the radius is the mean around
+    // the best one, weighted by support, i.e. the middle of the membrane.
+    private Candidate fitRadius(float[] gx, float[] gy, float[] mag, int w, int h,
+                                int x, int y, float threshold, int[] support) {
+        double d, cos, score, bestScore = 0, sum = 0, wsum = 0;
+        int px, py, dx, dy, i, r, bestR = 0;
+
+        Arrays.fill(support, 0);
+        for (dy = -this.rmax - 1; dy <= this.rmax + 1; dy++) {
+            py = y + dy;
+            if (py < 1 || py >= h - 1) {
+                continue;
+            }
+            for (dx = -this.rmax - 1; dx <= this.rmax + 1; dx++) {
+                px = x + dx;
+                if (px < 1 || px >= w - 1 || (dx == 0 && dy == 0)) {
+                    continue;
+                }
+                i = py * w + px;
+                if (mag[i] < threshold) {
+                    continue;
+                }
+                d = Math.sqrt(dx * dx + dy * dy);
+                r = (int) Math.round(d);
+                if (r < this.rmin || r > this.rmax) {
+                    continue;
+                }
+                cos = (gx[i] * dx + gy[i] * dy) / (mag[i] * d);
+                if (Math.abs(cos) > 0.8) {
+                    support[r]++;
+                }
+            }
+        }
+        for (r = this.rmin; r <= this.rmax; r++) {
+            // A digital circle of radius r has about 2 pi r pixels at a
+            // rounded distance of r.
+            score = support[r] / (2 * Math.PI * r);
+            if (score > bestScore) {
+                bestScore = score;
+                bestR = r;
+            }
+        }
+        if (bestScore < this.minCoverage) {
+            return null;
+        }
+        for (r = Math.max(this.rmin, bestR - 2); r <= Math.min(this.rmax, bestR + 2); r++) {
+            sum += (double) r * support[r] / r;
+            wsum += (double) support[r] / r;
+        }
+        return new Candidate(x, y, (int) Math.round(sum / wsum), Math.min(1, bestScore));
+    }
+
+
+    private static boolean isLocalMax(float[] a, int w, int h, int x, int y) {
+        float v = a[y * w + x];
+        int dx, dy, px, py;
+
+        for (dy = -2; dy <= 2; dy++) {
+            for (dx = -2; dx <= 2; dx++) {
+                px = x + dx;
+                py = y + dy;
+                if ((dx != 0 || dy != 0) && px >= 0 && px < w && py >= 0 && py < h) {
+                    // Ties go to the first pixel in raster order.
+                    if (a[py * w + px] > v || (a[py * w + px] == v && (dy < 0 ||
+                                                                       (dy == 0 && dx < 0)))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean isExcluded(List<Polygon> exclude, int x, int y) {
+        int j;
+
+        for (j = 0; exclude != null && j < exclude.size(); j++) {
+            if (exclude.get(j).contains(x, y)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // 3x3 binomial smoothing; the outermost pixels are copied.
+    static float[] blur(float[] a, int w, int h) {
+        float[] tmp = a.clone(), out = a.clone();
+        int x, y, i;
+
+        for (y = 0; y < h; y++) {
+            for (x = 1; x < w - 1; x++) {
+                i = y * w + x;
+                tmp[i] = (a[i - 1] + 2 * a[i] + a[i + 1]) / 4;
+            }
+        }
+        for (y = 1; y < h - 1; y++) {
+            for (x = 0; x < w; x++) {
+                i = y * w + x;
+                out[i] = (tmp[i - w] + 2 * tmp[i] + tmp[i + w]) / 4;
+            }
+        }
+        return out;
+    }
+
+
+    // Returns the candidates, best first, without those whose center lies
+    // inside a better candidate. Kept candidates are looked up in a hash
+    // of cells as large as the largest diameter.
+    static List<Candidate> suppressOverlaps(List<Candidate> candidates) {
+        ArrayList<Candidate> sorted = new ArrayList<Candidate>(candidates);
+        ArrayList<Candidate> kept = new ArrayList<Candidate>();
+        HashMap<Long, ArrayList<Candidate>> cells = new HashMap<Long, ArrayList<Candidate>>();
+        ArrayList<Candidate> cell;
+        boolean overlaps;
+        Candidate c, k;
+        int size = 1, i, j, dx, dy;
+        long key;
+
+        for (i = 0; i < sorted.size(); i++) {
+            size = Math.max(size, 2 * sorted.get(i).r);
+        }
+        Collections.sort(sorted, new Comparator<Candidate>() {
+            public int compare(Candidate a, Candidate b) {
+                if (a.score != b.score) {
+                    return a.score > b.score ? -1 : 1;
+                }
+                return a.y != b.y ? a.y - b.y : a.x - b.x;
+            }
+        });
+        for (i = 0; i < sorted.size(); i++) {
+            c = sorted.get(i);
+            overlaps = false;
+            for (dy = -1; dy <= 1 && !overlaps; dy++) {
+                for (dx = -1; dx <= 1 && !overlaps; dx++) {
+                    cell = cells.get(cellKey(c.x / size + dx, c.y / size + dy));
+                    for (j = 0; cell != null && j < cell.size() && !overlaps; j++) {
+                        k = cell.get(j);
+                        overlaps = (c.x - k.x) * (c.x - k.x) + (c.y - k.y) * (c.y - k.y) <
+                                   Math.max(c.r, k.r) * Math.max(c.r, k.r);
+                    }
+                }
+            }
+            if (!overlaps) {
+                kept.add(c);
+                key = cellKey(c.x / size, c.y / size);
+                cell = cells.get(key);
+                if (cell == null) {
+                    cell = new ArrayList<Candidate>();
+                    cells.put(key, cell);
+                }
+                cell.add(c);
+            }
+        }
+        return kept;
+    }
+
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) ^ (cy & 0xffffffffL);
+    }
+} // end of VesicleDetector
@@ -0,0 +1,373 @@
+/*
+    plugin : VesicleExport.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Export of the analyzed image.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+
+/*
+ * Writes the analyzed image of a profile without touching the image being
+ * annotated. Modes:
+ *
+ *   drawn    the whole image with the components drawn into it (RGB)
+ *   overlay  the whole image in its own bit depth, with the components
+ *            as an overlay
+ *   cropped  the profile border bounding box plus a margin, with the
+ *            components drawn into it (RGB)
+ *
+ * TIFFs also get the components as an overlay in the drawn and cropped
+ * modes. Formats are TIFF, TIFF compressed in a ZIP archive (ImageJ's
+ * only lossless compressed format that keeps overlays) and PNG. PNG
+ * cannot hold an overlay, so in overlay mode the components are drawn
+ * instead.
+ *
+ * The constructor copies the part of the image to export, so for an image
+ * on screen it must run on the event thread; write() may run on any thread.
+ *
+ * For a view of a large image (see VesicleView), the cropped mode copies
+ * from the view as usual. The other modes export the whole image, which
+ * is read, drawn and written one band of rows at a time, so that it never
+ * is in memory as a whole; such images are always written as drawn RGB
+ * TIFFs without an overlay.
+ *
+ * For all profiles of a stack saved at once, the whole stack (or the
+ * cropped part of every slice) is exported likewise one slice at a time,
+ * as a drawn RGB TIFF stack.
+ */
+class VesicleExport {
+    static final String[] modes = {"drawn", "overlay", "cropped"};
+    static final int DRAWN = 0, OVERLAY = 1, CROPPED = 2;
+    static final String[] formats = {"tiff", "zip", "png"};
+    static final String[] extensions = {".a.tif", ".a.zip", ".a.png"};
+    static final int TIFF = 0, ZIP = 1, PNG = 2;
+    static final int bandHeight = 4 * VesicleTiffWriter.rowsPerStrip;
+
+    private final List<VesicleSnapshot> snapshots;
+    private final ImagePlus image;  // null if streamed from 'view' or 'stack'
+    private final VesicleView view;
+    private final ImageStack stack;
+    private final HashMap<Integer, ImageProcessor> slices;  // copies, by position
+    private final Rectangle bounds;  // of the exported part of the stack
+    private final Calibration calibration;
+    private final double displayMin, displayMax;
+    private final int mode, format, x0, y0;
+
+
+    VesicleExport(ImagePlus imp, VesicleSnapshot snapshot, int mode, int format,
+                  int margin) {
+        this(imp, Collections.singletonList(snapshot), mode, format, margin);
+    }
+
+
+    // Exports several profiles of 'imp' into one image; when cropped, to
+    // the bounding box of all their borders.
+    VesicleExport(ImagePlus imp, List<VesicleSnapshot> snapshots, int mode, int format,
+                  int margin) {
+        this(imp, snapshots, mode, format, margin, false);
+    }
+
+
+    // As above; if 'wholeStack' is set and 'imp' is a stack, all slices are
+    // exported, each with the profiles on it drawn in (see writeStack).
+    VesicleExport(ImagePlus imp, List<VesicleSnapshot> snapshots, int mode, int format,
+                  int margin, boolean wholeStack) {
+        ImageProcessor ip = imp.getProcessor();
+        Rectangle r = null;
+        Polygon border;
+        int j, n;
+
+        this.snapshots = new ArrayList<VesicleSnapshot>(snapshots);
+        this.format = format;
+        this.mode = mode == OVERLAY && format == PNG ? DRAWN : mode;
+        this.calibration = imp.getCalibration().copy();
+        this.displayMin = imp.getDisplayRangeMin();
+        this.displayMax = imp.getDisplayRangeMax();
+        for (j = 0; j < snapshots.size(); j++) {
+            border = snapshots.get(j).getBorder();
+            if (border != null) {
+                r = r == null ? border.getBounds() : r.union(border.getBounds());
+            }
+        }
+        if (this.mode == CROPPED && r != null) {
+            r.grow(margin, margin);
+            r = r.intersection(new Rectangle(0, 0, imp.getWidth(), imp.getHeight()));
+        } else {
+            r = null;
+        }
+        if (VesicleView.of(imp) != null && this.mode != CROPPED) {
+            this.view = VesicleView.of(imp);
+            this.stack = null;
+            this.slices = null;
+            this.bounds = null;
+            this.image = null;
+            this.x0 = 0;
+            this.y0 = 0;
+            return;
+        }
+        this.view = null;
+        if (wholeStack && imp.getStackSize() > 1) {
+            // Only the slices with profiles are copied now, as the profiles
+            // may be drawn into them once the export has been set up. The
+            // others are read on the saver thread, from a stack of their
+            // own, as slices may meanwhile be added to or removed from the
+            // stack of the image.
+            this.stack = copyStack(imp.getStack());
+            this.bounds = r != null ? r : new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+            this.slices = new HashMap<Integer, ImageProcessor>();
+            for (j = 0; j < snapshots.size(); j++) {
+                n = snapshots.get(j).slice;
+                if (n > 0 && !this.slices.containsKey(n)) {
+                    this.slices.put(n, getSlice(n));
+                }
+            }
+            this.image = null;
+            this.x0 = this.bounds.x;
+            this.y0 = this.bounds.y;
+            return;
+        }
+        this.stack = null;
+        this.slices = null;
+        this.bounds = null;
+        if (r != null) {
+            ip.setRoi(r);
+            this.image = new ImagePlus(imp.getTitle(), ip.crop());
+            ip.resetRoi();
+            this.x0 = r.x;
+            this.y0 = r.y;
+        } else {
+            this.image = new ImagePlus(imp.getTitle(), ip.duplicate());
+            this.x0 = 0;
+            this.y0 = 0;
+        }
+        this.image.setCalibration(imp.getCalibration());
+    }
+
+
+    // Renders the copy if needed and writes it to 'path'.
+    void write(String path) throws IOException {
+        Overlay overlay = new Overlay();
+        Roi[] rois;
+        boolean ok;
+        long t0;
+        int j, k;
+
+        if (this.view != null) {
+            writeBands(path);
+            return;
+        }
+        if (this.stack != null) {
+            writeStack(path);
+            return;
+        }
+        t0 = VesicleTimer.start();
+        for (j = 0; j < this.snapshots.size(); j++) {
+            if (this.mode != OVERLAY) {
+                this.snapshots.get(j).render(this.image, -this.x0, -this.y0);
+            }
+            rois = this.snapshots.get(j).toOverlay(-this.x0, -this.y0).toArray();
+            for (k = 0; k < rois.length; k++) {
+                overlay.add(rois[k]);
+            }
+        }
+        // ImageJ would draw an overlay into a PNG, so only TIFFs get one.
+        if (this.format != PNG) {
+            this.image.setOverlay(overlay);
+        }
+        VesicleTimer.stop("Save: rendering", t0);
+        t0 = VesicleTimer.start();
+        if (this.format == ZIP) {
+            ok = new FileSaver(this.image).saveAsZip(path);
+        } else if (this.format == PNG) {
+            ok = new FileSaver(this.image).saveAsPng(path);
+        } else {
+            ok = new FileSaver(this.image).saveAsTiff(path);
+        }
+        this.image.flush();
+        VesicleTimer.stop("Save: image write", t0);
+        if (!ok) {
+            throw new IOException("Could not write " + path);
+        }
+    }
+
+
+    // Writes the whole image of the view with all profiles drawn, band by
+    // band, as a TIFF; a different extension of 'path' is replaced.
+    private void writeBands(String path) throws IOException {
+        VesicleTiffSource source = new VesicleTiffSource(this.view.file);
+        int width = this.view.imageWidth, height = this.view.imageHeight;
+        VesicleTiffWriter out;
+        ImageProcessor ip;
+        ImagePlus band;
+        Rectangle frame;
+        long t0;
+        int y, h, j;
+
+        if (path.endsWith(extensions[this.format])) {
+            path = path.substring(0, path.length() - extensions[this.format].length()) +
+                   extensions[TIFF];
+        }
+        try {
+            out = new VesicleTiffWriter(path, width, height, this.calibration);
+            try {
+                for (y = 0; y < height; y += bandHeight) {
+                    h = Math.min(bandHeight, height - y);
+                    t0 = VesicleTimer.start();
+                    ip = source.getRegion(new Rectangle(0, y, width, h));
+                    ip.setMinAndMax(this.view.displayMin, this.view.displayMax);
+                    band = new ImagePlus("", ip.convertToRGB());
+                    frame = new Rectangle(0, -y, width, height);
+                    for (j = 0; j < this.snapshots.size(); j++) {
+                        this.snapshots.get(j).render(band, this.snapshots.get(j).originX,
+                                                     this.snapshots.get(j).originY - y, frame);
+                    }
+                    VesicleTimer.stop("Save: rendering", t0);
+                    t0 = VesicleTimer.start();
+                    out.writeRows(band.getProcessor());
+                    VesicleTimer.stop("Save: image write", t0);
+                }
+                out.close();
+            } catch (IOException e) {
+                out.abort();
+                throw e;
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+
+    // Returns a stack with the slices of 'stack', sharing their pixels. A
+    // virtual stack reads its slices from disk, so it is used as it is.
+    private static ImageStack copyStack(ImageStack stack) {
+        ImageStack copy;
+        int n;
+
+        if (stack.isVirtual()) {
+            return stack;
+        }
+        copy = new ImageStack(stack.getWidth(), stack.getHeight(), stack.getColorModel());
+        for (n = 1; n <= stack.getSize(); n++) {
+            copy.addSlice(stack.getSliceLabel(n), stack.getPixels(n));
+        }
+        return copy;
+    }
+
+
+    // Returns a copy of the exported part of slice 'n' of the stack.
+    private ImageProcessor getSlice(int n) {
+        ImageProcessor ip = this.stack.getProcessor(n);
+
+        ip.setRoi(this.bounds);
+        ip = ip.crop();
+        if (!(ip instanceof ColorProcessor)) {
+            ip.setMinAndMax(this.displayMin, this.displayMax);
+        }
+        return ip;
+    }
+
+
+    // Writes all slices of the stack, each with the profiles on it drawn
+    // in, as one RGB TIFF stack, compressed in a ZIP archive unless the TIFF
+    // format was chosen (PNG cannot hold a stack). The slices are read,
+    // drawn and written one at a time.
+    private void writeStack(String path) throws IOException {
+        String ext = extensions[this.format == TIFF ? TIFF : ZIP], name;
+        VesicleTiffWriter out;
+        OutputStream stream;
+        ZipOutputStream zip;
+        ImageProcessor ip;
+        ImagePlus slice;
+        long t0;
+        int n, j;
+
+        if (path.endsWith(extensions[this.format])) {
+            path = path.substring(0, path.length() - extensions[this.format].length()) + ext;
+        }
+        stream = new FileOutputStream(path);
+        try {
+            // 'stream' is replaced only once the entry exists, so a failure
+            // here closes whichever stream owns the file.
+            if (this.format != TIFF) {
+                name = new File(path).getName();
+                zip = new ZipOutputStream(stream);
+                zip.putNextEntry(new ZipEntry(name.substring(0, name.length() - ext.length()) +
+                                              extensions[TIFF]));
+                stream = zip;
+            }
+            out = new VesicleTiffWriter(stream, this.bounds.width, this.bounds.height,
+                                        this.stack.getSize(), this.calibration);
+        } catch (IOException e) {
+            stream.close();
+            new File(path).delete();
+            throw e;
+        }
+        try {
+            for (n = 1; n <= this.stack.getSize(); n++) {
+                t0 = VesicleTimer.start();
+                ip = this.slices.containsKey(n) ? this.slices.remove(n) : getSlice(n);
+                slice = new ImagePlus("", ip.convertToRGB());
+                for (j = 0; j < this.snapshots.size(); j++) {
+                    if (this.snapshots.get(j).slice == n) {
+                        this.snapshots.get(j).render(slice, -this.x0, -this.y0);
+                    }
+                }
+                VesicleTimer.stop("Save: rendering", t0);
+                t0 = VesicleTimer.start();
+                out.writeRows(slice.getProcessor());
+                VesicleTimer.stop("Save: image write", t0);
+            }
+            out.close();
+        } catch (IOException e) {
+            out.abort();
+            new File(path).delete();
+            throw e;
+        }
+    }
+
+
+    static int getMode(String name) {
+        return indexOf(modes, name);
+    }
+
+
+    static int getFormat(String name) {
+        return indexOf(formats, name);
+    }
+
+
+    private static int indexOf(String[] names, String name) {
+        int i;
+
+        for (i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+} // end of VesicleExport
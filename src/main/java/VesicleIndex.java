@@ -0,0 +1,272 @@
+/*
+    plugin : VesicleIndex.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Spatial index of the vesicles of a profile.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import ij.IJ;
+
+
+/*
+ * Uniform grid over the vesicles of a profile, with the cell size set to
+ * the typical vesicle size. Each cell lists the vesicles whose bounding
+ * box and the membrane segments (polygon edges) whose bounding box overlap
+ * it. Containment queries only test the vesicles of one cell, and nearest
+ * membrane queries search outwards ring by ring from the point's cell,
+ * stopping as soon as no unvisited cell can hold a closer segment.
+ */
+class VesicleIndex {
+    static final int maxCells = 1 << 20;
+
+    private final List<Polygon> vesicles;
+    private int x0, y0, nx, ny;
+    private double cellSize;
+    // Cell contents in compressed row form: the entries of cell c are
+    // items[start[c]] .. items[start[c + 1] - 1].
+    private int[] vesicleStart, vesicleItems, segmentStart, segmentItems;
+    private int[] segVesicle, segVertex;
+
+
+    VesicleIndex(List<Polygon> vesicles) {
+        Rectangle bounds = null, r;
+        double size = 0;
+        int j, i, nseg = 0;
+
+        this.vesicles = vesicles;
+        for (j = 0; j < vesicles.size(); j++) {
+            r = vesicles.get(j).getBounds();
+            bounds = bounds == null ? new Rectangle(r) : bounds.union(r);
+            size += Math.max(r.width, r.height);
+            nseg += vesicles.get(j).npoints;
+        }
+        if (bounds == null) {
+            return;
+        }
+        this.cellSize = Math.max(1, size / vesicles.size());
+        while ((double) (bounds.width / this.cellSize + 1) *
+               (bounds.height / this.cellSize + 1) > maxCells) {
+            this.cellSize *= 2;
+        }
+        this.x0 = bounds.x;
+        this.y0 = bounds.y;
+        this.nx = (int) (bounds.width / this.cellSize) + 1;
+        this.ny = (int) (bounds.height / this.cellSize) + 1;
+        this.segVesicle = new int[nseg];
+        this.segVertex = new int[nseg];
+        nseg = 0;
+        for (j = 0; j < vesicles.size(); j++) {
+            for (i = 0; i < vesicles.get(j).npoints; i++) {
+                this.segVesicle[nseg] = j;
+                this.segVertex[nseg] = i;
+                nseg++;
+            }
+        }
+        this.vesicleStart = new int[this.nx * this.ny + 1];
+        this.segmentStart = new int[this.nx * this.ny + 1];
+        // Two passes: count the entries of each cell, then fill them in.
+        this.vesicleItems = new int[fill(this.vesicleStart, null, false)];
+        fill(this.vesicleStart, this.vesicleItems, false);
+        this.segmentItems = new int[fill(this.segmentStart, null, true)];
+        fill(this.segmentStart, this.segmentItems, true);
+    }
+
+
+    // Adds all vesicles (or segments) to the cells their bounding boxes
+    // overlap. With items == null only counts them into 'start' and returns
+    // the total; otherwise turns the counts into offsets and fills 'items'.
+    private int fill(int[] start, int[] items, boolean segments) {
+        int[] next = null;
+        Polygon pol;
+        int k, n, c, cx, cy, cx0, cx1, cy0, cy1, total;
+        int xa, ya, xb, yb;
+
+        if (items != null) {
+            for (c = 1; c < start.length; c++) {
+                start[c] += start[c - 1];
+            }
+            next = start.clone();
+        }
+        n = segments ? this.segVesicle.length : this.vesicles.size();
+        for (k = 0; k < n; k++) {
+            if (segments) {
+                pol = this.vesicles.get(this.segVesicle[k]);
+                xa = pol.xpoints[this.segVertex[k]];
+                ya = pol.ypoints[this.segVertex[k]];
+                xb = pol.xpoints[(this.segVertex[k] + 1) % pol.npoints];
+                yb = pol.ypoints[(this.segVertex[k] + 1) % pol.npoints];
+                cx0 = cellX(Math.min(xa, xb));
+                cx1 = cellX(Math.max(xa, xb));
+                cy0 = cellY(Math.min(ya, yb));
+                cy1 = cellY(Math.max(ya, yb));
+            } else {
+                Rectangle r = this.vesicles.get(k).getBounds();
+                cx0 = cellX(r.x);
+                cx1 = cellX(r.x + r.width);
+                cy0 = cellY(r.y);
+                cy1 = cellY(r.y + r.height);
+            }
+            for (cy = cy0; cy <= cy1; cy++) {
+                for (cx = cx0; cx <= cx1; cx++) {
+                    c = cy * this.nx + cx;
+                    if (items == null) {
+                        start[c + 1]++;
+                    } else {
+                        items[next[c]++] = k;
+                    }
+                }
+            }
+        }
+        if (items != null) {
+            return items.length;
+        }
+        total = 0;
+        for (c = 1; c < start.length; c++) {
+            total += start[c];
+        }
+        return total;
+    }
+
+
+    private int cellX(int x) {
+        return Math.min(this.nx - 1, Math.max(0, (int) ((x - this.x0) / this.cellSize)));
+    }
+
+
+    private int cellY(int y) {
+        return Math.min(this.ny - 1, Math.max(0, (int) ((y - this.y0) / this.cellSize)));
+    }
+
+
+    // Returns the index of the vesicle containing (x, y), or -1 if none does.
+    int containing(int x, int y) {
+        int c, k, j;
+
+        if (this.nx == 0 || x < this.x0 || y < this.y0 ||
+            x > this.x0 + this.nx * this.cellSize || y > this.y0 + this.ny * this.cellSize) {
+            return -1;
+        }
+        c = cellY(y) * this.nx + cellX(x);
+        for (k = this.vesicleStart[c]; k < this.vesicleStart[c + 1]; k++) {
+            j = this.vesicleItems[k];
+            if (this.vesicles.get(j).contains(x, y)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+
+    // Returns the distance from (x, y) to the nearest vesicle membrane in
+    // pixels, or NaN if there are no vesicles.
+    double membraneDistance(int x, int y) {
+        double best = Double.POSITIVE_INFINITY, d;
+        int pcx, pcy, r, rmin, rmax, cx, cy, c, k;
+
+        if (this.nx == 0) {
+            return Double.NaN;
+        }
+        // Cell of the point, which may lie outside the grid.
+        pcx = (int) Math.floor((x - this.x0) / this.cellSize);
+        pcy = (int) Math.floor((y - this.y0) / this.cellSize);
+        rmin = Math.max(Math.max(-pcx, pcx - (this.nx - 1)),
+                        Math.max(-pcy, pcy - (this.ny - 1)));
+        rmin = Math.max(0, rmin);
+        rmax = Math.max(Math.max(pcx, this.nx - 1 - pcx),
+                        Math.max(pcy, this.ny - 1 - pcy));
+        for (r = rmin; r <= rmax; r++) {
+            // Cells in ring r and beyond are at least r - 1 cells away.
+            if (r > rmin && best <= (r - 1) * this.cellSize * (r - 1) * this.cellSize) {
+                break;
+            }
+            for (cy = Math.max(0, pcy - r); cy <= Math.min(this.ny - 1, pcy + r); cy++) {
+                for (cx = Math.max(0, pcx - r); cx <= Math.min(this.nx - 1, pcx + r); cx++) {
+                    if (Math.abs(cx - pcx) != r && Math.abs(cy - pcy) != r) {
+                        continue;
+                    }
+                    c = cy * this.nx + cx;
+                    for (k = this.segmentStart[c]; k < this.segmentStart[c + 1]; k++) {
+                        d = segmentDistanceSq(this.segmentItems[k], x, y);
+                        if (d < best) {
+                            best = d;
+                        }
+                    }
+                }
+            }
+        }
+        return Math.sqrt(best);
+    }
+
+
+    private double segmentDistanceSq(int seg, int px, int py) {
+        Polygon pol = this.vesicles.get(this.segVesicle[seg]);
+        int i = this.segVertex[seg], j = (i + 1) % pol.npoints;
+        double ax = pol.xpoints[i], ay = pol.ypoints[i];
+        double dx = pol.xpoints[j] - ax, dy = pol.ypoints[j] - ay;
+        double len = dx * dx + dy * dy, t = 0;
+
+        if (len > 0) {
+            t = Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / len));
+        }
+        dx = ax + t * dx - px;
+        dy = ay + t * dy - py;
+        return dx * dx + dy * dy;
+    }
+
+
+    // Returns the number of points of 'pol' inside any vesicle.
+    int countContained(Polygon pol) {
+        int i, n = 0;
+
+        for (i = 0; i < pol.npoints; i++) {
+            if (containing(pol.xpoints[i], pol.ypoints[i]) != -1) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+
+    // Returns one "vesicle, distance" line per point of 'pol': the number of
+    // the containing vesicle (in VESICLE order, from 1; 0 if none) and the
+    // distance to the nearest membrane in calibrated units.
+    ArrayList<String> associations(Polygon pol, double pixelwidth) {
+        ArrayList<String> lines = new ArrayList<String>(pol.npoints);
+        int i;
+
+        for (i = 0; i < pol.npoints; i++) {
+            lines.add((containing(pol.xpoints[i], pol.ypoints[i]) + 1) + ", " +
+                      IJ.d2s(membraneDistance(pol.xpoints[i], pol.ypoints[i]) * pixelwidth,
+                             VesicleMetrics.decimals));
+        }
+        return lines;
+    }
+
+
+    // Adds POINT_VESICLES and RANDOM_POINT_VESICLES blocks to 'rec'.
+    static void addTo(VesicleRecord rec) {
+        VesicleIndex index;
+
+        if (rec.vesicles.size() == 0) {
+            return;
+        }
+        index = new VesicleIndex(rec.vesicles);
+        if (rec.points != null) {
+            rec.blocks.put("POINT_VESICLES", index.associations(rec.points, rec.pixelwidth));
+        }
+        if (rec.randomPoints != null) {
+            rec.blocks.put("RANDOM_POINT_VESICLES",
+                           index.associations(rec.randomPoints, rec.pixelwidth));
+        }
+    }
+} // end of VesicleIndex
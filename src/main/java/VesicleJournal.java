@@ -0,0 +1,462 @@
+/*
+    plugin : VesicleJournal.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Autosave journal of unsaved profiles.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+
+
+/*
+ * Append-only log of the edits to the profiles on one image, kept in the
+ * "vesicle" directory of the ImageJ preferences folder so that profiles
+ * can be recovered after a crash. One line per edit, tab separated:
+ *
+ *   IMAGE    title, path, x, y      first line; x, y is the origin of
+ *                                   the view (see VesicleView), if any
+ *   ADD      key, component, n, x1,y1 ... xn,yn
+ *   DEL      key, component, n, x1,y1 ... xn,yn
+ *   ID       key, text
+ *   COMMENT  key, text
+ *   PLACED   key, strategy, region, seed     (of the random points)
+ *   SLICE    key, n                          stack position of the
+ *                                            component added next
+ *   CLEAR    key                             profile discarded
+ *   SAVED    key                             profile written to file
+ *
+ * 'key' identifies one profile from start to save or clear within the
+ * journal. Lines are collected in memory and written and forced to disk
+ * every two seconds by a background thread, so edits cost next to nothing
+ * and at most the last two seconds are lost. When no profile has unsaved
+ * edits, the journal file is deleted. A partly written last line, as left
+ * by a crash, is ignored when the journal is read.
+ */
+class VesicleJournal {
+    static final String dirName = "vesicle";
+    static final String extension = ".journal";
+    static final long flushInterval = 2000;  // ms
+    static final Charset utf8 = Charset.forName("UTF-8");
+
+    final String image, path;
+    final int imageID, originX, originY;
+    private final File file;
+    private final StringBuilder pending;
+    private final HashSet<Integer> live;  // profiles with unsaved edits
+    private final ScheduledExecutorService timer;
+    private FileChannel channel;
+    private int lastKey;
+
+
+    // Starts an empty journal for 'imp'. Nothing is written to disk until
+    // the first edit.
+    VesicleJournal(ImagePlus imp) {
+        FileInfo fi = imp.getOriginalFileInfo();
+        VesicleView view = VesicleView.of(imp);
+
+        this.image = imp.getTitle();
+        this.path = fi != null && fi.directory != null && fi.fileName != null
+                    ? new File(fi.directory, fi.fileName).getPath() : "";
+        this.imageID = imp.getID();
+        this.originX = view == null ? 0 : view.bounds.x;
+        this.originY = view == null ? 0 : view.bounds.y;
+        this.file = fileFor(this.image);
+        this.pending = new StringBuilder();
+        this.live = new HashSet<Integer>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Vesicle journal");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushQuietly();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+
+    static File getDirectory() {
+        return new File(Prefs.getPrefsDir(), dirName);
+    }
+
+
+    // Returns a journal file for the image 'title' that does not exist yet,
+    // so that journals left behind are not overwritten.
+    static File fileFor(String title) {
+        String base = title.replaceAll("[^A-Za-z0-9._-]", "_");
+        File f = new File(getDirectory(), base + extension);
+        int n = 1;
+
+        while (f.exists()) {
+            f = new File(getDirectory(), base + "-" + (++n) + extension);
+        }
+        return f;
+    }
+
+
+    // Returns all journals left behind, e.g. by a crash.
+    static File[] list() {
+        File[] files = getDirectory().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(extension);
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+
+    // Returns a key for a new profile.
+    synchronized int newKey() {
+        return ++this.lastKey;
+    }
+
+
+    void add(int key, Roi roi) {
+        if (roi.getPosition() > 0) {
+            append("SLICE", key, Integer.toString(roi.getPosition()));
+        }
+        component("ADD", key, roi);
+    }
+
+
+    void delete(int key, Roi roi) {
+        component("DEL", key, roi);
+    }
+
+
+    // Records the deletion of component 'name' with the shape 'pol', e.g.
+    // the shape it had before it was edited.
+    void delete(int key, String name, Polygon pol) {
+        component("DEL", key, name, pol);
+    }
+
+
+    private void component(String type, int key, Roi roi) {
+        component(type, key, roi.getName(), roi.getPolygon());
+    }
+
+
+    private void component(String type, int key, String name, Polygon pol) {
+        StringBuilder sb = new StringBuilder(pol.npoints * 10);
+        int i;
+
+        sb.append(pol.npoints).append('\t');
+        for (i = 0; i < pol.npoints; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(pol.xpoints[i]).append(',').append(pol.ypoints[i]);
+        }
+        append(type, key, name, sb.toString());
+    }
+
+
+    void setID(int key, String id) {
+        append("ID", key, id);
+    }
+
+
+    void setComment(int key, String comment) {
+        append("COMMENT", key, comment);
+    }
+
+
+    void placed(int key, String strategy, String region, long seed) {
+        append("PLACED", key, strategy, region, Long.toString(seed));
+    }
+
+
+    void clear(int key) {
+        append("CLEAR", key);
+    }
+
+
+    // Called by VesicleSaver once profile 'key' has been written.
+    void saved(int key) {
+        append("SAVED", key);
+    }
+
+
+    private synchronized void append(String type, int key, String... fields) {
+        int i;
+
+        if (type.equals("CLEAR") || type.equals("SAVED")) {
+            if (!this.live.remove(key)) {
+                return;
+            }
+        } else {
+            this.live.add(key);
+        }
+        this.pending.append(type).append('\t').append(key);
+        for (i = 0; i < fields.length; i++) {
+            this.pending.append('\t').append(escape(fields[i]));
+        }
+        this.pending.append('\n');
+    }
+
+
+    // Writes the pending lines and forces them to disk, or deletes the
+    // journal file if no profile has unsaved edits.
+    synchronized void flush() throws IOException {
+        ByteBuffer buf;
+
+        if (this.live.isEmpty()) {
+            this.pending.setLength(0);
+            if (this.channel != null) {
+                this.channel.close();
+                this.channel = null;
+            }
+            this.file.delete();
+            return;
+        }
+        if (this.pending.length() == 0) {
+            return;
+        }
+        if (this.channel == null) {
+            getDirectory().mkdirs();
+            this.channel = new FileOutputStream(this.file).getChannel();
+            this.pending.insert(0, "IMAGE\t" + escape(this.image) + "\t" +
+                                   escape(this.path) + "\t" + this.originX + "\t" +
+                                   this.originY + "\n");
+        }
+        buf = ByteBuffer.wrap(this.pending.toString().getBytes(utf8));
+        while (buf.hasRemaining()) {
+            this.channel.write(buf);
+        }
+        this.channel.force(false);
+        this.pending.setLength(0);
+    }
+
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            IJ.log("Vesicle: could not write autosave journal " + this.file + ": " + e);
+        }
+    }
+
+
+    // Flushes and stops the journal. The file is kept if it holds unsaved
+    // edits.
+    void close() {
+        this.timer.shutdown();
+        flushQuietly();
+        synchronized (this) {
+            if (this.channel != null) {
+                try {
+                    this.channel.close();
+                } catch (IOException e) {
+                    // nothing more to do
+                }
+                this.channel = null;
+            }
+        }
+    }
+
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+
+    private static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        char c;
+        int i;
+
+        for (i = 0; i < s.length(); i++) {
+            c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                c = c == 't' ? '\t' : c == 'n' ? '\n' : c;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+
+    /*
+     * Contents of a journal file: the image and the unsaved profiles, in the
+     * order they were started. The profiles are in the coordinates of the
+     * view at (originX, originY).
+     */
+    static class Contents {
+        String image = "", path = "";
+        int originX, originY;
+        ArrayList<VesicleRecord> profiles = new ArrayList<VesicleRecord>();
+    }
+
+
+    static Contents read(File f) throws IOException {
+        LinkedHashMap<Integer, VesicleRecord> recs = new LinkedHashMap<Integer, VesicleRecord>();
+        Contents contents = new Contents();
+        BufferedReader in;
+        VesicleRecord rec;
+        String line;
+        String[] fields;
+        Integer key;
+        int i;
+
+        in = new BufferedReader(new InputStreamReader(new FileInputStream(f), utf8));
+        try {
+            while ((line = in.readLine()) != null) {
+                fields = line.split("\t", -1);
+                for (i = 0; i < fields.length; i++) {
+                    fields[i] = unescape(fields[i]);
+                }
+                if (fields[0].equals("IMAGE") && (fields.length == 3 || fields.length == 5)) {
+                    contents.image = fields[1];
+                    contents.path = fields[2];
+                    try {
+                        if (fields.length == 5) {
+                            contents.originX = Integer.parseInt(fields[3]);
+                            contents.originY = Integer.parseInt(fields[4]);
+                        }
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid view origin: " + line);
+                    }
+                    continue;
+                }
+                try {
+                    key = Integer.valueOf(fields[1]);
+                    rec = recs.get(key);
+                    if (rec == null) {
+                        rec = new VesicleRecord();
+                    }
+                    if (!apply(rec, fields)) {
+                        break;  // truncated or unknown line: stop here
+                    }
+                } catch (RuntimeException e) {
+                    break;
+                }
+                if (fields[0].equals("CLEAR") || fields[0].equals("SAVED")) {
+                    recs.remove(key);
+                } else {
+                    recs.put(key, rec);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        contents.profiles.addAll(recs.values());
+        return contents;
+    }
+
+
+    // Applies one journal line to 'rec'. Returns false if the line is not
+    // complete.
+    private static boolean apply(VesicleRecord rec, String[] fields) {
+        String type = fields[0], name;
+        Polygon pol;
+
+        if (type.equals("ADD") || type.equals("DEL")) {
+            if (fields.length != 5) {
+                return false;
+            }
+            name = fields[2];
+            pol = parsePolygon(Integer.parseInt(fields[3]), fields[4]);
+            if (pol == null) {
+                return false;
+            }
+            if (type.equals("ADD")) {
+                if (name.equals("profile border")) {
+                    rec.border = pol;
+                } else if (name.equals("points")) {
+                    rec.points = pol;
+                } else if (name.equals("random points")) {
+                    rec.randomPoints = pol;
+                } else if (name.equals("hole")) {
+                    rec.holes.add(pol);
+                } else if (name.equals("vesicle")) {
+                    rec.vesicles.add(pol);
+                }
+            } else {
+                if (name.equals("profile border")) {
+                    rec.border = null;
+                } else if (name.equals("points")) {
+                    rec.points = null;
+                } else if (name.equals("random points")) {
+                    rec.randomPoints = null;
+                    rec.properties.remove("RANDOM_STRATEGY");
+                    rec.properties.remove("RANDOM_REGION");
+                    rec.properties.remove("RANDOM_SEED");
+                } else if (name.equals("hole")) {
+                    remove(rec.holes, pol);
+                } else if (name.equals("vesicle")) {
+                    remove(rec.vesicles, pol);
+                }
+            }
+        } else if (type.equals("ID") && fields.length == 3) {
+            rec.id = fields[2];
+        } else if (type.equals("COMMENT") && fields.length == 3) {
+            rec.comment = fields[2];
+        } else if (type.equals("PLACED") && fields.length == 5) {
+            rec.properties.put("RANDOM_STRATEGY", fields[2]);
+            rec.properties.put("RANDOM_REGION", fields[3]);
+            rec.properties.put("RANDOM_SEED", fields[4]);
+        } else if (type.equals("SLICE") && fields.length == 3) {
+            rec.properties.put("SLICE", Integer.toString(Integer.parseInt(fields[2])));
+        } else if (!((type.equals("CLEAR") || type.equals("SAVED")) && fields.length == 2)) {
+            return false;
+        }
+        return true;
+    }
+
+
+    private static Polygon parsePolygon(int n, String s) {
+        String[] xy = s.split(" ");
+        Polygon pol = new Polygon();
+        int i, comma;
+
+        if (n == 0) {
+            return pol;
+        }
+        if (xy.length != n) {
+            return null;
+        }
+        for (i = 0; i < n; i++) {
+            comma = xy[i].indexOf(',');
+            pol.addPoint(Integer.parseInt(xy[i].substring(0, comma)),
+                         Integer.parseInt(xy[i].substring(comma + 1)));
+        }
+        return pol;
+    }
+
+
+    private static void remove(ArrayList<Polygon> pols, Polygon pol) {
+        int j;
+
+        for (j = 0; j < pols.size(); j++) {
+            if (pols.get(j).npoints == pol.npoints &&
+                Arrays.equals(Arrays.copyOf(pols.get(j).xpoints, pol.npoints),
+                              Arrays.copyOf(pol.xpoints, pol.npoints)) &&
+                Arrays.equals(Arrays.copyOf(pols.get(j).ypoints, pol.npoints),
+                              Arrays.copyOf(pol.ypoints, pol.npoints))) {
+                pols.remove(j);
+                return;
+            }
+        }
+    }
+} // end of VesicleJournal
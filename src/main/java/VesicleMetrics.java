@@ -0,0 +1,199 @@
+/*
+    plugin : VesicleMetrics.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Geometry metrics computed when a profile is saved.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import ij.IJ;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.plugin.filter.EDM;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+
+/*
+ * Adds per-profile metrics to a VesicleRecord, all in calibrated units:
+ *
+ *   PROFILE_AREA            area inside the border minus the area of holes
+ *   PROFILE_PERIMETER       length of the border
+ *   VESICLE_METRICS         "area, diameter" of each vesicle, in the order
+ *                           of the VESICLE blocks; the diameter is that of
+ *                           the circle with the same area
+ *   POINT_DISTANCES         distance from each point to the profile border,
+ *   RANDOM_POINT_DISTANCES  positive inside and negative outside the profile
+ *
+ * Areas and lengths are computed from the polygons. Point distances are
+ * looked up in Euclidean distance maps of the profile mask and of its
+ * complement, computed once with ImageJ's exact EDM over the bounds of the
+ * border; points beyond them are measured to the border polygon.
+ */
+class VesicleMetrics {
+    static final int decimals = 4;
+
+
+    static void addTo(VesicleRecord rec) {
+        ArrayList<String> lines;
+        double area, a;
+        int j;
+
+        if (rec.border == null) {
+            return;
+        }
+        area = area(rec.border);
+        for (j = 0; j < rec.holes.size(); j++) {
+            area -= area(rec.holes.get(j));
+        }
+        rec.properties.put("PROFILE_AREA", d2s(area * rec.pixelwidth * rec.pixelwidth));
+        rec.properties.put("PROFILE_PERIMETER", d2s(perimeter(rec.border) * rec.pixelwidth));
+        if (rec.vesicles.size() > 0) {
+            lines = new ArrayList<String>();
+            for (j = 0; j < rec.vesicles.size(); j++) {
+                a = area(rec.vesicles.get(j)) * rec.pixelwidth * rec.pixelwidth;
+                lines.add(d2s(a) + ", " + d2s(2 * Math.sqrt(a / Math.PI)));
+            }
+            rec.blocks.put("VESICLE_METRICS", lines);
+        }
+        if (rec.points != null || rec.randomPoints != null) {
+            DistanceMap dm = new DistanceMap(rec.border);
+            if (rec.points != null) {
+                rec.blocks.put("POINT_DISTANCES", dm.distances(rec.points, rec.pixelwidth));
+            }
+            if (rec.randomPoints != null) {
+                rec.blocks.put("RANDOM_POINT_DISTANCES",
+                               dm.distances(rec.randomPoints, rec.pixelwidth));
+            }
+        }
+    }
+
+
+    // Shoelace formula; returns the unsigned area.
+    static double area(Polygon pol) {
+        double sum = 0;
+        int i, j;
+
+        for (i = 0, j = pol.npoints - 1; i < pol.npoints; j = i++) {
+            sum += (double) pol.xpoints[j] * pol.ypoints[i] -
+                   (double) pol.xpoints[i] * pol.ypoints[j];
+        }
+        return Math.abs(sum) / 2;
+    }
+
+
+    static double perimeter(Polygon pol) {
+        double sum = 0;
+        int i, j;
+
+        for (i = 0, j = pol.npoints - 1; i < pol.npoints; j = i++) {
+            sum += Math.hypot(pol.xpoints[i] - pol.xpoints[j],
+                              pol.ypoints[i] - pol.ypoints[j]);
+        }
+        return sum;
+    }
+
+
+    static String d2s(double d) {
+        return IJ.d2s(d, decimals);
+    }
+
+
+    /*
+     * Signed distances to the profile border over the bounds of the border,
+     * with one pixel of background around it, so that the maps only take
+     * as much memory as the profile and not as the spread of the points.
+     * Points beyond the box are outside the profile; as all of the profile
+     * is in the box, their distance is that to the nearest border segment.
+     */
+    static class DistanceMap {
+        final Rectangle box;
+        final Polygon border;
+        final FloatProcessor inside, outside;
+
+        DistanceMap(Polygon border) {
+            Roi roi = new PolygonRoi(border, Roi.POLYGON);
+            Rectangle r = roi.getBounds();
+            ImageProcessor mask = roi.getMask();
+            ByteProcessor in, out;
+            int x, y;
+
+            this.border = border;
+            this.box = new Rectangle(r.x - 1, r.y - 1, r.width + 3, r.height + 3);
+            in = new ByteProcessor(this.box.width, this.box.height);
+            out = new ByteProcessor(this.box.width, this.box.height);
+            for (y = 0; y < this.box.height; y++) {
+                for (x = 0; x < this.box.width; x++) {
+                    if (isInside(mask, r, this.box.x + x, this.box.y + y)) {
+                        in.set(x, y, 255);
+                    } else {
+                        out.set(x, y, 255);
+                    }
+                }
+            }
+            this.inside = new EDM().makeFloatEDM(in, 0, false);
+            this.outside = new EDM().makeFloatEDM(out, 0, false);
+        }
+
+        private static boolean isInside(ImageProcessor mask, Rectangle r, int x, int y) {
+            if (!r.contains(x, y)) {
+                return false;
+            }
+            // A null mask means the ROI is a rectangle.
+            return mask == null || mask.get(x - r.x, y - r.y) != 0;
+        }
+
+        ArrayList<String> distances(Polygon pol, double pixelwidth) {
+            ArrayList<String> lines = new ArrayList<String>(pol.npoints);
+            int i, x, y;
+            float d;
+
+            for (i = 0; i < pol.npoints; i++) {
+                if (!this.box.contains(pol.xpoints[i], pol.ypoints[i])) {
+                    d = (float) -borderDistance(pol.xpoints[i], pol.ypoints[i]);
+                } else {
+                    x = pol.xpoints[i] - this.box.x;
+                    y = pol.ypoints[i] - this.box.y;
+                    d = this.inside.getf(x, y);
+                    if (d == 0) {
+                        d = -this.outside.getf(x, y);
+                    }
+                }
+                lines.add(d2s(d * pixelwidth));
+            }
+            return lines;
+        }
+
+        // Distance from (px, py) to the nearest segment of the border.
+        private double borderDistance(int px, int py) {
+            Polygon pol = this.border;
+            double ax, ay, dx, dy, len, t, best = Double.MAX_VALUE;
+            int i, j;
+
+            for (i = 0, j = pol.npoints - 1; i < pol.npoints; j = i++) {
+                ax = pol.xpoints[j];
+                ay = pol.ypoints[j];
+                dx = pol.xpoints[i] - ax;
+                dy = pol.ypoints[i] - ay;
+                len = dx * dx + dy * dy;
+                t = 0;
+                if (len > 0) {
+                    t = Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / len));
+                }
+                dx = ax + t * dx - px;
+                dy = ay + t * dy - py;
+                best = Math.min(best, dx * dx + dy * dy);
+            }
+            return Math.sqrt(best);
+        }
+    }
+} // end of VesicleMetrics
@@ -0,0 +1,276 @@
+/*
+    plugin : VesicleParticles.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Automatic detection of immunogold particles.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+
+/*
+ * Finds dark round particles of a given diameter, such as immunogold:
+ *
+ *   1. Pixels (3x3 smoothed) darker than the mean of the search region by
+ *      more than 'darkness' standard deviations are foreground. The mean
+ *      and deviation are estimated on a subsample of the region.
+ *   2. Foreground pixels are labeled into 8-connected components with
+ *      union-find.
+ *   3. Components with an area of 0.4 to 2.5 times that of a particle,
+ *      a bounding box no more than 1.6 times as long as wide and filling
+ *      at least half of it are particles; their centroid is the point.
+ *
+ * The region is processed in tiles on a thread pool. Tiles overlap by the
+ * particle diameter plus two pixels and keep the particles with their
+ * centroid in the tile core; components cut by the tile edge are dropped,
+ * which only affects structures larger than a particle. Only points inside
+ * the region and outside the excluded polygons (e.g. holes) are returned.
+ * Display polarity is used: with an inverting LUT, high values are dark.
+ */
+class VesicleParticles {
+    static final int tileSize = 512;
+
+    final double diameter, darkness;
+    int threads;
+
+
+    VesicleParticles(double diameter, double darkness) {
+        this.diameter = Math.max(1, diameter);
+        this.darkness = darkness;
+        this.threads = Runtime.getRuntime().availableProcessors();
+    }
+
+
+    // Returns the centers of the particles in 'region' of 'ip', in raster
+    // order.
+    Polygon detect(final ImageProcessor ip, final Polygon region, final List<Polygon> exclude)
+            throws InterruptedException {
+        ArrayList<Future<List<int[]>>> futures = new ArrayList<Future<List<int[]>>>();
+        ArrayList<int[]> found = new ArrayList<int[]>();
+        Polygon points = new Polygon();
+        Rectangle bounds;
+        ExecutorService pool;
+        final float threshold;
+        int x, y, j;
+
+        bounds = region.getBounds().intersection(new Rectangle(0, 0, ip.getWidth(),
+                                                               ip.getHeight()));
+        if (bounds.isEmpty()) {
+            return points;
+        }
+        threshold = threshold(ip, bounds);
+        pool = Executors.newFixedThreadPool(this.threads);
+        try {
+            for (y = bounds.y; y < bounds.y + bounds.height; y += tileSize) {
+                for (x = bounds.x; x < bounds.x + bounds.width; x += tileSize) {
+                    final Rectangle core = new Rectangle(x, y, tileSize, tileSize)
+                                               .intersection(bounds);
+                    futures.add(pool.submit(new Callable<List<int[]>>() {
+                        public List<int[]> call() {
+                            return detectTile(ip, core, threshold, region, exclude);
+                        }
+                    }));
+                }
+            }
+            for (j = 0; j < futures.size(); j++) {
+                try {
+                    found.addAll(futures.get(j).get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Collections.sort(found, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                return a[1] != b[1] ? a[1] - b[1] : a[0] - b[0];
+            }
+        });
+        for (j = 0; j < found.size(); j++) {
+            points.addPoint(found.get(j)[0], found.get(j)[1]);
+        }
+        return points;
+    }
+
+
+    // Returns the value below which a (smoothed, display polarity) pixel is
+    // foreground.
+    private float threshold(ImageProcessor ip, Rectangle r) {
+        int step = Math.max(1, (int) Math.sqrt((double) r.width * r.height / 100000));
+        boolean rgb = ip instanceof ColorProcessor, inverted = ip.isInvertedLut();
+        double sum = 0, sumsq = 0, v, m;
+        long n = 0;
+        int x, y;
+
+        for (y = r.y; y < r.y + r.height; y += step) {
+            for (x = r.x; x < r.x + r.width; x += step) {
+                v = value(ip, rgb, inverted, x, y);
+                sum += v;
+                sumsq += v * v;
+                n++;
+            }
+        }
+        m = sum / n;
+        return (float) (m - this.darkness * Math.sqrt(Math.max(0, sumsq / n - m * m)));
+    }
+
+
+    private static float value(ImageProcessor ip, boolean rgb, boolean inverted, int x, int y) {
+        float v = VesicleDetector.value(ip, rgb, x, y);
+
+        return inverted ? -v : v;
+    }
+
+
+    // Returns the particle centers, as {x, y}, with their centroid in 'core'.
+    List<int[]> detectTile(ImageProcessor ip, Rectangle core, float threshold,
+                           Polygon region, List<Polygon> exclude) {
+        ArrayList<int[]> found = new ArrayList<int[]>();
+        boolean rgb = ip instanceof ColorProcessor, inverted = ip.isInvertedLut();
+        Rectangle t = new Rectangle(core);
+        double area = Math.PI * this.diameter * this.diameter / 4;
+        float[] pix;
+        int[] parent, count, minx, maxx, miny, maxy, edge;
+        long[] sumx, sumy;
+        boolean[] fg;
+        int w, h, x, y, i, k, root, bw, bh, cx, cy;
+
+        t.grow((int) Math.ceil(this.diameter) + 2, (int) Math.ceil(this.diameter) + 2);
+        t = t.intersection(new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+        w = t.width;
+        h = t.height;
+        pix = new float[w * h];
+        for (y = 0; y < h; y++) {
+            for (x = 0; x < w; x++) {
+                pix[y * w + x] = value(ip, rgb, inverted, t.x + x, t.y + y);
+            }
+        }
+        pix = VesicleDetector.blur(pix, w, h);
+        fg = new boolean[w * h];
+        for (i = 0; i < w * h; i++) {
+            fg[i] = pix[i] < threshold;
+        }
+        // Union-find over 8-connected foreground pixels; each pixel is
+        // joined with its already visited neighbours.
+        parent = new int[w * h];
+        for (y = 0; y < h; y++) {
+            for (x = 0; x < w; x++) {
+                i = y * w + x;
+                if (!fg[i]) {
+                    continue;
+                }
+                parent[i] = i;
+                if (x > 0 && fg[i - 1]) {
+                    union(parent, i, i - 1);
+                }
+                if (y > 0) {
+                    for (k = Math.max(0, x - 1); k <= Math.min(w - 1, x + 1); k++) {
+                        if (fg[i - w - x + k]) {
+                            union(parent, i, i - w - x + k);
+                        }
+                    }
+                }
+            }
+        }
+        count = new int[w * h];
+        sumx = new long[w * h];
+        sumy = new long[w * h];
+        minx = new int[w * h];
+        maxx = new int[w * h];
+        miny = new int[w * h];
+        maxy = new int[w * h];
+        edge = new int[w * h];
+        for (y = 0; y < h; y++) {
+            for (x = 0; x < w; x++) {
+                i = y * w + x;
+                if (!fg[i]) {
+                    continue;
+                }
+                root = find(parent, i);
+                if (count[root] == 0) {
+                    minx[root] = maxx[root] = x;
+                    miny[root] = maxy[root] = y;
+                }
+                count[root]++;
+                sumx[root] += x;
+                sumy[root] += y;
+                minx[root] = Math.min(minx[root], x);
+                maxx[root] = Math.max(maxx[root], x);
+                miny[root] = Math.min(miny[root], y);
+                maxy[root] = Math.max(maxy[root], y);
+                if (x == 0 || y == 0 || x == w - 1 || y == h - 1) {
+                    edge[root] = 1;
+                }
+            }
+        }
+        for (i = 0; i < w * h; i++) {
+            if (count[i] == 0 || edge[i] != 0 || count[i] < 0.4 * area ||
+                count[i] > 2.5 * area) {
+                continue;
+            }
+            bw = maxx[i] - minx[i] + 1;
+            bh = maxy[i] - miny[i] + 1;
+            if (Math.max(bw, bh) > 1.6 * Math.min(bw, bh) || count[i] < 0.5 * bw * bh) {
+                continue;
+            }
+            cx = t.x + (int) Math.round((double) sumx[i] / count[i]);
+            cy = t.y + (int) Math.round((double) sumy[i] / count[i]);
+            if (core.contains(cx, cy) && region.contains(cx, cy) &&
+                !isExcluded(exclude, cx, cy)) {
+                found.add(new int[] {cx, cy});
+            }
+        }
+        return found;
+    }
+
+
+    private static int find(int[] parent, int i) {
+        int root = i, next;
+
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+        // Path compression.
+        while (parent[i] != root) {
+            next = parent[i];
+            parent[i] = root;
+            i = next;
+        }
+        return root;
+    }
+
+
+    private static void union(int[] parent, int a, int b) {
+        int ra = find(parent, a), rb = find(parent, b);
+
+        if (ra != rb) {
+            // The smaller index becomes the root, so roots are found in
+            // raster order.
+            parent[Math.max(ra, rb)] = Math.min(ra, rb);
+        }
+    }
+
+
+    private static boolean isExcluded(List<Polygon> exclude, int x, int y) {
+        int j;
+
+        for (j = 0; exclude != null && j < exclude.size(); j++) {
+            if (exclude.get(j).contains(x, y)) {
+                return true;
+            }
+        }
+        return false;
+    }
+} // end of VesicleParticles
@@ -0,0 +1,611 @@
+/*
+    plugin : VesicleProject.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Project file holding the profiles of a whole study.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.*;
+import java.util.zip.CRC32;
+import ij.IJ;
+
+
+/*
+ * A single append-only file (.vesp) holding any number of profiles, as an
+ * alternative to one .ves file per profile. Layout (big endian):
+ *
+ *   "VESP", format version (1 byte), 3 bytes reserved
+ *   entries: body length (4 bytes), CRC-32 of the body (4 bytes), body
+ *   body: image title (string), stack slice (4 bytes, 0 if none), profile
+ *         ID, file name (strings), then the profile exactly as it would
+ *         be saved in the .ves or .vesb file
+ *
+ * Strings are as written by DataOutputStream.writeUTF (2 byte length and
+ * UTF-8). Saving a profile again under the same image, slice and profile
+ * ID appends a new entry, which replaces the old one.
+ *
+ * Each entry is appended with a single write and forced to disk before
+ * the save counts as done, so a crash can at most leave an incomplete last
+ * entry; its CRC fails and it is cut off when the project is next opened
+ * for writing. Damage followed by complete entries is never cut off, but
+ * refuses to open. The offsets of the entries are kept by image, slice and
+ * profile ID in memory and in an index file next to the project (name + ".index"),
+ * which is rewritten on close. The index records how much of the project
+ * it covers, so on opening only the entries appended after it was written
+ * (e.g. before a crash) have to be read; without a valid index the whole
+ * file is read.
+ *
+ * Only one project may write a file at a time (the file is locked). Methods
+ * are synchronized, as entries are appended by VesicleSaver and read on
+ * the event thread.
+ */
+class VesicleProject {
+    static final byte[] magic = {'V', 'E', 'S', 'P'};
+    static final byte[] indexMagic = {'V', 'E', 'S', 'I'};
+    static final int formatVersion = 1;
+    static final int headerSize = 8;
+    static final String extension = ".vesp";
+    static final String indexExtension = ".index";
+    static final int maxEntrySize = 1 << 30;
+
+    // Where one profile is stored.
+    static final class Entry {
+        final long offset;  // of the body length
+        final int length;   // of the body
+        final String image, id, name;
+        final int slice;
+
+        Entry(long offset, int length, String image, int slice, String id, String name) {
+            this.offset = offset;
+            this.length = length;
+            this.image = image;
+            this.slice = slice;
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    final File file;
+    private final boolean writable;
+    private final FileChannel channel;
+    private FileLock lock;
+    private long end;  // of the last complete entry
+    private Entry last;
+    // The latest entry of each image, slice and profile ID, in the order
+    // saved.
+    private final LinkedHashMap<String, Entry> latest;
+    private final HashMap<String, ArrayList<Entry>> byImage;
+
+
+    // Opens the project 'file', creating it if it does not exist and
+    // 'writable' is set.
+    VesicleProject(File file, boolean writable) throws IOException {
+        this.file = file;
+        this.writable = writable;
+        this.latest = new LinkedHashMap<String, Entry>();
+        this.byImage = new HashMap<String, ArrayList<Entry>>();
+        this.channel = writable ? new RandomAccessFile(file, "rw").getChannel()
+                                : new FileInputStream(file).getChannel();
+        try {
+            if (writable) {
+                this.lock = this.channel.tryLock();
+                if (this.lock == null) {
+                    throw new IOException(file.getName() + " is in use by another program");
+                }
+            }
+            if (writable && this.channel.size() == 0) {
+                writeHeader();
+            } else {
+                readHeader();
+            }
+            this.end = headerSize;
+            if (!readIndex()) {
+                this.latest.clear();
+                this.byImage.clear();
+                this.last = null;
+                this.end = headerSize;
+            }
+            scan();
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        } catch (OverlappingFileLockException e) {
+            this.channel.close();
+            throw new IOException(file.getName() + " is already open");
+        }
+    }
+
+
+    // Returns true if 'file' starts like a project.
+    static boolean isProject(File file) {
+        byte[] b = new byte[magic.length];
+        DataInputStream in;
+
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(b);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(b, magic);
+    }
+
+
+    private void writeHeader() throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(headerSize);
+
+        h.put(magic).put((byte) formatVersion);
+        h.rewind();
+        writeFully(h, 0);
+        this.channel.force(true);
+    }
+
+
+    private void readHeader() throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(headerSize);
+        byte[] b = new byte[magic.length];
+
+        if (this.channel.size() < headerSize) {
+            throw new IOException(this.file.getName() + " is not a Vesicle project");
+        }
+        readFully(h, 0);
+        h.rewind();
+        h.get(b);
+        if (!Arrays.equals(b, magic)) {
+            throw new IOException(this.file.getName() + " is not a Vesicle project");
+        }
+        if (h.get() > formatVersion) {
+            throw new IOException(this.file.getName() +
+                                  " was written by a newer version of Vesicle");
+        }
+    }
+
+
+    // Reads the entries from 'end' to the end of the file. An incomplete
+    // last entry, as left by a crash while appending, is cut off if the
+    // project is writable and ignored otherwise. Any other damage is an
+    // error, so that no entries are ever lost: an entry that cannot be read
+    // only counts as the last one if no complete entry follows it.
+    private void scan() throws IOException {
+        long size = this.channel.size(), pos = this.end;
+        byte[] body;
+
+        while (pos < size) {
+            body = readEntry(pos, size);
+            if (body == null) {
+                break;
+            }
+            add(parse(pos, body));
+            pos += 8 + body.length;
+            this.end = pos;
+        }
+        if (pos < size) {
+            if (size - pos >= 8 && hasEntryAfter(pos, size)) {
+                throw new IOException(this.file.getName() + " is damaged at byte " + pos);
+            }
+            IJ.log("Vesicle: " + this.file.getName() + ": incomplete last entry (" +
+                   (size - pos) + " bytes) " + (this.writable ? "removed" : "ignored"));
+            if (this.writable) {
+                this.channel.truncate(pos);
+                this.channel.force(true);
+            }
+        }
+    }
+
+
+    // Returns the body of the entry at 'pos', or null if there is no
+    // complete entry with a matching CRC and a readable key there.
+    private byte[] readEntry(long pos, long size) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(8);
+        byte[] body;
+        int length;
+
+        if (size - pos < 8) {
+            return null;
+        }
+        readFully(frame, pos);
+        length = frame.getInt(0);
+        // The key alone takes at least 10 bytes.
+        if (length < 10 || length > maxEntrySize || pos + 8 + length > size) {
+            return null;
+        }
+        body = new byte[length];
+        readFully(ByteBuffer.wrap(body), pos + 8);
+        if (crc(body) != frame.getInt(4)) {
+            return null;
+        }
+        try {
+            parse(pos, body);
+        } catch (IOException e) {
+            return null;
+        }
+        return body;
+    }
+
+
+    // Returns true if a complete entry starts anywhere after 'pos'. Only
+    // called on damage; the bytes are searched a block at a time for a
+    // length that fits the file, and only those are checked further.
+    private boolean hasEntryAfter(long pos, long size) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(1 << 20);
+        long start, q;
+        int n, i, length;
+
+        for (start = pos + 1; start + 8 <= size; start += n - 7) {
+            n = (int) Math.min(block.capacity(), size - start);
+            if (n < block.capacity()) {
+                block = ByteBuffer.allocate(n);
+            }
+            readFully(block, start);
+            for (i = 0; i + 8 <= n; i++) {
+                q = start + i;
+                length = block.getInt(i);
+                if (length >= 10 && length <= maxEntrySize && q + 8 + length <= size &&
+                    readEntry(q, size) != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    // Returns the entry at 'offset' with 'body'.
+    private static Entry parse(long offset, byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+
+        return new Entry(offset, body.length, in.readUTF(), in.readInt(), in.readUTF(),
+                         in.readUTF());
+    }
+
+
+    private static String key(String image, int slice, String id) {
+        return image + "\n" + slice + "\n" + id;
+    }
+
+
+    private void add(Entry e) {
+        String key = key(e.image, e.slice, e.id);
+        Entry old = this.latest.remove(key);
+        ArrayList<Entry> entries = this.byImage.get(e.image);
+
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            this.byImage.put(e.image, entries);
+        }
+        if (old != null) {
+            entries.remove(old);
+        }
+        entries.add(e);
+        this.latest.put(key, e);
+        this.last = e;
+    }
+
+
+    private static int crc(byte[] b) {
+        CRC32 crc = new CRC32();
+
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+
+    // Appends 'rec', in .vesb format if 'binary' is set and otherwise in
+    // .ves format, as a profile to be exported as 'name'. Returns when the
+    // entry is on disk.
+    synchronized void append(VesicleRecord rec, String name, boolean binary)
+            throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        VesicleWriter w;
+        ByteBuffer buf;
+        byte[] body;
+        int slice;
+
+        if (!this.writable) {
+            throw new IOException(this.file.getName() + " is open for reading only");
+        }
+        slice = rec.properties.containsKey("SLICE")
+                ? Integer.parseInt(rec.properties.get("SLICE")) : 0;
+        out.writeUTF(rec.image);
+        out.writeInt(slice);
+        out.writeUTF(rec.id);
+        out.writeUTF(name);
+        out.flush();
+        if (binary) {
+            VesicleBinary.write(rec, Channels.newChannel(bout));
+        } else {
+            w = new VesicleWriter(Channels.newChannel(bout));
+            rec.write(w);
+            w.close();
+        }
+        body = bout.toByteArray();
+        buf = ByteBuffer.allocate(8 + body.length);
+        buf.putInt(body.length).putInt(crc(body)).put(body);
+        buf.rewind();
+        writeFully(buf, this.end);
+        this.channel.force(false);
+        add(new Entry(this.end, body.length, rec.image, slice, rec.id, name));
+        this.end += 8 + body.length;
+    }
+
+
+    // Returns the number of profiles (latest entries).
+    synchronized int size() {
+        return this.latest.size();
+    }
+
+
+    // Returns the titles of the images with profiles, in the order first saved.
+    synchronized List<String> getImages() {
+        LinkedHashSet<String> images = new LinkedHashSet<String>();
+
+        for (Entry e : this.latest.values()) {
+            images.add(e.image);
+        }
+        return new ArrayList<String>(images);
+    }
+
+
+    // Returns the profiles of 'image', in the order saved.
+    synchronized List<Entry> list(String image) {
+        ArrayList<Entry> entries = this.byImage.get(image);
+
+        return entries == null ? new ArrayList<Entry>() : new ArrayList<Entry>(entries);
+    }
+
+
+    // Returns the profile 'id' on 'slice' (0 if none) of 'image', or null if
+    // there is none.
+    synchronized Entry find(String image, int slice, String id) {
+        return this.latest.get(key(image, slice, id));
+    }
+
+
+    // Returns the stored profile file of 'e'.
+    synchronized ByteBuffer getContents(Entry e) throws IOException {
+        byte[] body = new byte[e.length];
+        ByteBuffer frame = ByteBuffer.allocate(8);
+        int skip;
+
+        readFully(frame, e.offset);
+        readFully(ByteBuffer.wrap(body), e.offset + 8);
+        if (frame.getInt(0) != e.length || frame.getInt(4) != crc(body)) {
+            throw new IOException(this.file.getName() + ": profile " + e.id + " of " +
+                                  e.image + " is damaged");
+        }
+        skip = 10 + utfLength(e.image) + utfLength(e.id) + utfLength(e.name);
+        return ByteBuffer.wrap(body, skip, body.length - skip).slice();
+    }
+
+
+    private static int utfLength(String s) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+
+        out.writeUTF(s);
+        return out.size() - 2;
+    }
+
+
+    // Reads the profile of 'e'.
+    VesicleRecord read(Entry e) throws IOException {
+        ByteBuffer buf = getContents(e);
+
+        if (VesicleBinary.isBinary(buf)) {
+            return VesicleBinary.read(buf);
+        }
+        return new VesicleReader(buf).parse();
+    }
+
+
+    // Writes every profile to its own file in 'dir', exactly as it would
+    // have been saved without the project. Files already in 'dir' are never
+    // replaced: a name that is taken gets a number.
+    // Returns the number of files written.
+    int export(File dir) throws IOException {
+        ArrayList<Entry> entries;
+        FileOutputStream out;
+        ByteBuffer buf;
+        String base, name;
+        int j, k, dot;
+
+        synchronized (this) {
+            entries = new ArrayList<Entry>(this.latest.values());
+        }
+        for (j = 0; j < entries.size(); j++) {
+            base = new File(entries.get(j).name).getName();
+            dot = base.lastIndexOf('.');
+            name = base;
+            for (k = 2; new File(dir, name).exists(); k++) {
+                name = dot > 0 ? base.substring(0, dot) + "-" + k + base.substring(dot)
+                               : base + "-" + k;
+            }
+            if (!name.equals(base)) {
+                IJ.log("Vesicle: " + base + " exported as " + name);
+            }
+            buf = getContents(entries.get(j));
+            out = new FileOutputStream(new File(dir, name));
+            try {
+                while (buf.hasRemaining()) {
+                    out.getChannel().write(buf);
+                }
+            } finally {
+                out.close();
+            }
+            IJ.showProgress(j + 1, entries.size());
+        }
+        return entries.size();
+    }
+
+
+    private File getIndexFile() {
+        return new File(this.file.getPath() + indexExtension);
+    }
+
+
+    // Reads the index file, if it belongs to this project. Returns false if
+    // there is none or it cannot be used.
+    private boolean readIndex() {
+        File f = getIndexFile();
+        ByteBuffer frame = ByteBuffer.allocate(8);
+        DataInputStream in;
+        FileInputStream fin;
+        byte[] data, b = new byte[indexMagic.length];
+        long covered, lastOffset;
+        int n, j, lastLength;
+
+        if (!f.isFile() || f.length() > Integer.MAX_VALUE) {
+            return false;
+        }
+        try {
+            fin = new FileInputStream(f);
+            try {
+                data = VesicleBatch.readFully(fin);
+            } finally {
+                fin.close();
+            }
+            if (data.length < 4 ||
+                crc(Arrays.copyOf(data, data.length - 4)) !=
+                ByteBuffer.wrap(data, data.length - 4, 4).getInt()) {
+                return false;
+            }
+            in = new DataInputStream(new ByteArrayInputStream(data));
+            in.readFully(b);
+            if (!Arrays.equals(b, indexMagic) || in.readByte() != formatVersion) {
+                return false;
+            }
+            covered = in.readLong();
+            lastOffset = in.readLong();
+            lastLength = in.readInt();
+            n = in.readInt();
+            if (covered > this.channel.size() || (n == 0 && covered != headerSize)) {
+                return false;
+            }
+            // The index is only used if the last entry it knows of is still
+            // where it was.
+            if (n > 0) {
+                readFully(frame, lastOffset);
+                if (frame.getInt(0) != lastLength || lastOffset + 8 + lastLength != covered) {
+                    return false;
+                }
+            }
+            for (j = 0; j < n; j++) {
+                add(new Entry(in.readLong(), in.readInt(), in.readUTF(), in.readInt(),
+                              in.readUTF(), in.readUTF()));
+            }
+            if (n > 0 && this.last.offset != lastOffset) {
+                return false;
+            }
+            this.end = covered;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    // Writes the index file, replacing the old one.
+    private void writeIndex() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        File f = getIndexFile(), tmp = new File(f.getPath() + ".tmp");
+        ArrayList<Entry> entries = new ArrayList<Entry>(this.latest.values());
+        FileOutputStream fout;
+        Entry e;
+        int j;
+
+        // The latest entries in file order, so that the last one read is the
+        // last one in the file.
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.offset < b.offset ? -1 : a.offset > b.offset ? 1 : 0;
+            }
+        });
+        out.write(indexMagic);
+        out.writeByte(formatVersion);
+        out.writeLong(this.end);
+        out.writeLong(this.last == null ? 0 : this.last.offset);
+        out.writeInt(this.last == null ? 0 : this.last.length);
+        out.writeInt(entries.size());
+        for (j = 0; j < entries.size(); j++) {
+            e = entries.get(j);
+            out.writeLong(e.offset);
+            out.writeInt(e.length);
+            out.writeUTF(e.image);
+            out.writeInt(e.slice);
+            out.writeUTF(e.id);
+            out.writeUTF(e.name);
+        }
+        out.writeInt(crc(bout.toByteArray()));
+        fout = new FileOutputStream(tmp);
+        try {
+            fout.write(bout.toByteArray());
+            fout.getFD().sync();
+        } finally {
+            fout.close();
+        }
+        f.delete();
+        if (!tmp.renameTo(f)) {
+            throw new IOException("Could not write " + f.getName());
+        }
+    }
+
+
+    // Writes the index, if the project is writable, and closes the file.
+    synchronized void close() {
+        try {
+            if (this.writable) {
+                writeIndex();
+            }
+        } catch (IOException e) {
+            // The index is only a shortcut; the project is read in full
+            // next time.
+            IJ.log("Vesicle: " + this.file.getName() + ": " + e.getMessage());
+        }
+        try {
+            if (this.lock != null) {
+                this.lock.release();
+            }
+            this.channel.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        int n;
+
+        buf.clear();
+        while (buf.hasRemaining()) {
+            n = this.channel.read(buf, pos + buf.position());
+            if (n < 0) {
+                throw new EOFException(this.file.getName() + ": unexpected end of file");
+            }
+        }
+    }
+
+
+    private void writeFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            this.channel.write(buf, pos + buf.position());
+        }
+    }
+} // end of VesicleProject
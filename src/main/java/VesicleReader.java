@@ -0,0 +1,304 @@
+/*
+    plugin : VesicleReader.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Reader for the .ves profile format written by VesicleWriter.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+ * Parses a .ves file into a VesicleRecord.
+ *
+ * The file is read into (or, when large, memory mapped as) a byte buffer
+ * and parsed in place: coordinates are converted directly from the bytes,
+ * and Strings are only created for header values. Comment lines starting
+ * with '#' are ignored, except that the first line is kept as the version
+ * info of the record. Unknown "KEY value" lines are kept as properties
+ * and other blocks as lists of lines.
+ */
+class VesicleReader {
+    // Small files are cheaper to read than to map.
+    static final long mapThreshold = 1 << 16;
+
+    private final ByteBuffer buf;
+    private final Charset charset;
+    private int pos, lineStart, lineEnd, lineno, parsed;
+    private int[] xbuf = new int[256], ybuf = new int[256];
+
+
+    VesicleReader(ByteBuffer buf) {
+        this.buf = buf;
+        this.charset = Charset.defaultCharset();
+        this.pos = buf.position();
+    }
+
+
+    // Reads a profile in text or binary format.
+    static VesicleRecord read(String path) throws IOException {
+        ByteBuffer buf = load(path);
+        if (VesicleBinary.isBinary(buf)) {
+            return VesicleBinary.read(buf);
+        }
+        return new VesicleReader(buf).parse();
+    }
+
+
+    // Returns the contents of the file at 'path', memory mapped if large.
+    static ByteBuffer load(String path) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel ch = in.getChannel();
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + ": file too large");
+            }
+            if (size > mapThreshold) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && ch.read(buf) >= 0) {
+            }
+            buf.flip();
+            return buf;
+        } finally {
+            in.close();
+        }
+    }
+
+
+    VesicleRecord parse() throws IOException {
+        VesicleRecord rec = new VesicleRecord();
+        String key, value;
+        int sep;
+
+        while (nextLine()) {
+            if (this.lineEnd == this.lineStart) {
+                continue;
+            }
+            if (this.buf.get(this.lineStart) == '#') {
+                if (this.lineno == 1) {
+                    rec.versionInfo = string(this.lineStart, this.lineEnd);
+                }
+                continue;
+            }
+            sep = this.lineStart;
+            while (sep < this.lineEnd && this.buf.get(sep) != ' ') {
+                sep++;
+            }
+            key = string(this.lineStart, sep);
+            value = sep < this.lineEnd ? string(sep + 1, this.lineEnd) : "";
+            if (key.equals("IMAGE")) {
+                rec.image = value;
+            } else if (key.equals("PROFILE_ID")) {
+                rec.id = value;
+            } else if (key.equals("COMMENT")) {
+                rec.comment = value;
+            } else if (key.equals("PIXELWIDTH")) {
+                parsePixelWidth(rec, value);
+            } else if (key.equals("PROFILE_BORDER")) {
+                rec.border = readPolygon();
+            } else if (key.equals("HOLE")) {
+                rec.holes.add(readPolygon());
+            } else if (key.equals("VESICLE")) {
+                rec.vesicles.add(readPolygon());
+            } else if (key.equals("POINTS")) {
+                rec.points = readPolygon();
+            } else if (key.equals("RANDOM_POINTS")) {
+                rec.randomPoints = readPolygon();
+            } else if (sep == this.lineEnd) {
+                rec.blocks.put(key, readBlock());
+            } else {
+                rec.properties.put(key, value);
+            }
+        }
+        return rec;
+    }
+
+
+    private void parsePixelWidth(VesicleRecord rec, String value) throws IOException {
+        int sep = value.indexOf(' ');
+        try {
+            if (sep == -1) {
+                rec.pixelwidth = Double.parseDouble(value);
+            } else {
+                rec.pixelwidth = Double.parseDouble(value.substring(0, sep));
+                rec.unit = value.substring(sep + 1);
+            }
+        } catch (NumberFormatException e) {
+            throw error("invalid pixel width");
+        }
+    }
+
+
+    // Reads the lines of a block other than a component up to END,
+    // without leading and trailing spaces.
+    private List<String> readBlock() throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        int p, q;
+
+        while (true) {
+            if (!nextLine()) {
+                throw error("END expected");
+            }
+            p = skipSpaces(this.lineStart);
+            if (p < this.lineEnd && this.buf.get(p) == 'E' && isEnd(p)) {
+                return lines;
+            }
+            q = this.lineEnd;
+            while (q > p && (this.buf.get(q - 1) == ' ' || this.buf.get(q - 1) == '\t')) {
+                q--;
+            }
+            lines.add(string(p, q));
+        }
+    }
+
+
+    // Reads "x, y" lines up to END.
+    private Polygon readPolygon() throws IOException {
+        int n = 0, p;
+
+        while (true) {
+            if (!nextLine()) {
+                throw error("END expected");
+            }
+            p = skipSpaces(this.lineStart);
+            if (p == this.lineEnd) {
+                continue;
+            }
+            if (this.buf.get(p) == 'E' && isEnd(p)) {
+                break;
+            }
+            if (n == this.xbuf.length) {
+                this.xbuf = grow(this.xbuf);
+                this.ybuf = grow(this.ybuf);
+            }
+            p = parseInt(p);
+            this.xbuf[n] = this.parsed;
+            p = skipSpaces(p);
+            if (p == this.lineEnd || this.buf.get(p) != ',') {
+                throw error("',' expected");
+            }
+            p = parseInt(skipSpaces(p + 1));
+            this.ybuf[n] = this.parsed;
+            if (skipSpaces(p) != this.lineEnd) {
+                throw error("unexpected characters after coordinates");
+            }
+            n++;
+        }
+        return new Polygon(copy(this.xbuf, n), copy(this.ybuf, n), n);
+    }
+
+
+    // Parses an integer starting at 'p' into 'parsed'; returns the position after it.
+    private int parseInt(int p) throws IOException {
+        boolean negative = false;
+        long v = 0;
+        int start;
+        byte b;
+
+        if (p < this.lineEnd && this.buf.get(p) == '-') {
+            negative = true;
+            p++;
+        }
+        start = p;
+        while (p < this.lineEnd && (b = this.buf.get(p)) >= '0' && b <= '9') {
+            v = v * 10 + (b - '0');
+            if (v > (long) Integer.MAX_VALUE + 1) {
+                throw error("coordinate out of range");
+            }
+            p++;
+        }
+        if (p == start) {
+            throw error("integer expected");
+        }
+        v = negative ? -v : v;
+        if (v > Integer.MAX_VALUE) {
+            throw error("coordinate out of range");
+        }
+        this.parsed = (int) v;
+        return p;
+    }
+
+
+    private boolean isEnd(int p) {
+        return p + 3 <= this.lineEnd &&
+               this.buf.get(p + 1) == 'N' && this.buf.get(p + 2) == 'D' &&
+               skipSpaces(p + 3) == this.lineEnd;
+    }
+
+
+    private int skipSpaces(int p) {
+        byte b;
+
+        while (p < this.lineEnd && ((b = this.buf.get(p)) == ' ' || b == '\t')) {
+            p++;
+        }
+        return p;
+    }
+
+
+    // Advances to the next line; sets lineStart and lineEnd (excluding the
+    // line terminator). Returns false at end of input.
+    private boolean nextLine() {
+        int limit = this.buf.limit();
+
+        if (this.pos >= limit) {
+            return false;
+        }
+        this.lineStart = this.pos;
+        while (this.pos < limit && this.buf.get(this.pos) != '\n') {
+            this.pos++;
+        }
+        this.lineEnd = this.pos;
+        if (this.lineEnd > this.lineStart && this.buf.get(this.lineEnd - 1) == '\r') {
+            this.lineEnd--;
+        }
+        this.pos++;
+        this.lineno++;
+        return true;
+    }
+
+
+    private String string(int from, int to) {
+        byte[] b = new byte[to - from];
+        int i;
+
+        for (i = 0; i < b.length; i++) {
+            b[i] = this.buf.get(from + i);
+        }
+        return new String(b, this.charset);
+    }
+
+
+    private IOException error(String msg) {
+        return new IOException("Line " + this.lineno + ": " + msg);
+    }
+
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+
+    private static int[] copy(int[] a, int n) {
+        int[] b = new int[n];
+        System.arraycopy(a, 0, b, 0, n);
+        return b;
+    }
+} // end of VesicleReader
@@ -0,0 +1,131 @@
+/*
+    plugin : VesicleRecord.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Contents of a .ves profile file.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/*
+ * A profile as stored in a .ves file: image title, profile ID, comment,
+ * pixel width and the coordinates of all components. Unlike VesicleProfile
+ * it does not depend on an image or an overlay, so it can be read, written
+ * and converted without the user interface.
+ */
+class VesicleRecord {
+    String versionInfo, image, id, comment, unit;
+    double pixelwidth;
+    Polygon border, points, randomPoints;
+    ArrayList<Polygon> holes, vesicles;
+    // Header lines not known to this version ("KEY value"), kept in order.
+    LinkedHashMap<String, String> properties;
+    // Blocks of text lines other than components, e.g. save-time metrics;
+    // written after the components.
+    LinkedHashMap<String, List<String>> blocks;
+
+    VesicleRecord() {
+        this.versionInfo = VesicleWriter.versionInfo();
+        this.image = "";
+        this.id = "";
+        this.comment = "";
+        this.unit = "";
+        this.holes = new ArrayList<Polygon>();
+        this.vesicles = new ArrayList<Polygon>();
+        this.properties = new LinkedHashMap<String, String>();
+        this.blocks = new LinkedHashMap<String, List<String>>();
+    }
+
+
+    public void write(String path) throws IOException {
+        VesicleWriter outf = new VesicleWriter(path);
+        try {
+            write(outf);
+        } finally {
+            outf.close();
+        }
+    }
+
+
+    public void write(VesicleWriter outf) throws IOException {
+        int j;
+
+        outf.writeHeader(this.versionInfo, this.image, this.id, this.comment,
+                         this.pixelwidth, this.unit);
+        for (Map.Entry<String, String> e : this.properties.entrySet()) {
+            outf.println(e.getKey() + " " + e.getValue());
+        }
+        if (this.border != null) {
+            outf.writePolygon("PROFILE_BORDER", this.border);
+        }
+        for (j = 0; j < this.holes.size(); j++) {
+            outf.writePolygon("HOLE", this.holes.get(j));
+        }
+        for (j = 0; j < this.vesicles.size(); j++) {
+            outf.writePolygon("VESICLE", this.vesicles.get(j));
+        }
+        if (this.points != null) {
+            outf.writePolygon("POINTS", this.points);
+        }
+        if (this.randomPoints != null) {
+            outf.writePolygon("RANDOM_POINTS", this.randomPoints);
+        }
+        for (Map.Entry<String, List<String>> e : this.blocks.entrySet()) {
+            outf.writeBlock(e.getKey(), e.getValue());
+        }
+    }
+
+    // Moves all components by (dx, dy).
+    void translate(int dx, int dy) {
+        int j;
+
+        if (this.border != null) {
+            this.border.translate(dx, dy);
+        }
+        for (j = 0; j < this.holes.size(); j++) {
+            this.holes.get(j).translate(dx, dy);
+        }
+        for (j = 0; j < this.vesicles.size(); j++) {
+            this.vesicles.get(j).translate(dx, dy);
+        }
+        if (this.points != null) {
+            this.points.translate(dx, dy);
+        }
+        if (this.randomPoints != null) {
+            this.randomPoints.translate(dx, dy);
+        }
+    }
+
+
+    // Returns the bounding box of all components, or null if there are none.
+    Rectangle getBounds() {
+        ArrayList<Polygon> pols = new ArrayList<Polygon>();
+        Rectangle r = null;
+        int j;
+
+        pols.add(this.border);
+        pols.addAll(this.holes);
+        pols.addAll(this.vesicles);
+        pols.add(this.points);
+        pols.add(this.randomPoints);
+        for (j = 0; j < pols.size(); j++) {
+            if (pols.get(j) != null && pols.get(j).npoints > 0) {
+                r = r == null ? pols.get(j).getBounds() : r.union(pols.get(j).getBounds());
+            }
+        }
+        return r;
+    }
+} // end of VesicleRecord
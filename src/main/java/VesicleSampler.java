@@ -0,0 +1,352 @@
+/*
+    plugin : VesicleSampler.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Random point placement inside a profile.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Random;
+import ij.IJ;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+
+/*
+ * Samples pixel positions from an area: either a rectangle or the area
+ * inside a profile border and outside all of its holes.
+ *
+ * The area is rasterized once, using the same masks ImageJ uses for the
+ * ROIs, and stored as horizontal runs of inside pixels with a running
+ * pixel count. Uniform points are drawn by picking a pixel number and
+ * finding its run by binary search; the other strategies generate points
+ * in the bounding box and keep those whose pixel lies in a run, so no
+ * polygon tests are needed.
+ *
+ * Strategies:
+ *   uniform     independent, uniformly distributed points
+ *   halton      Halton sequence (bases 2 and 3), randomly shifted
+ *   sobol       two-dimensional Sobol sequence, randomly digit-scrambled
+ *   stratified  one jittered point per cell of a regular grid
+ *
+ * All strategies are deterministic for a given seed.
+ */
+class VesicleSampler {
+    static final String[] strategies = {"uniform", "halton", "sobol", "stratified"};
+    static final int UNIFORM = 0, HALTON = 1, SOBOL = 2, STRATIFIED = 3;
+
+    private final Rectangle bounds;
+    private int[] runX, runY, runLength, runStart;  // runStart: inside pixels before the run
+    private int[] rowStart;  // first run of each row of the bounding box
+    private int nruns, area;
+
+
+    // Samples from the rectangle 'r'.
+    VesicleSampler(Rectangle r) {
+        int y;
+
+        this.bounds = new Rectangle(r);
+        init();
+        for (y = 0; y < r.height; y++) {
+            this.rowStart[y] = this.nruns;
+            addRun(r.x, r.y + y, r.width);
+        }
+        this.rowStart[r.height] = this.nruns;
+    }
+
+
+    // Samples from the area inside 'border' and outside all 'holes'.
+    VesicleSampler(Roi border, ArrayList<Roi> holes) {
+        Rectangle b = border.getBounds();
+        byte[] mask = new byte[b.width * b.height];
+        int i, x, y, start;
+
+        this.bounds = b;
+        fill(mask, b, border, (byte) 1);
+        for (i = 0; i < holes.size(); i++) {
+            fill(mask, b, holes.get(i), (byte) 0);
+        }
+        init();
+        for (y = 0; y < b.height; y++) {
+            this.rowStart[y] = this.nruns;
+            x = 0;
+            while (x < b.width) {
+                while (x < b.width && mask[y * b.width + x] == 0) {
+                    x++;
+                }
+                if (x == b.width) {
+                    break;
+                }
+                start = x;
+                while (x < b.width && mask[y * b.width + x] != 0) {
+                    x++;
+                }
+                addRun(b.x + start, b.y + y, x - start);
+            }
+        }
+        this.rowStart[b.height] = this.nruns;
+    }
+
+
+    private void init() {
+        this.runX = new int[64];
+        this.runY = new int[64];
+        this.runLength = new int[64];
+        this.runStart = new int[65];
+        this.rowStart = new int[this.bounds.height + 1];
+    }
+
+
+    // Sets the pixels of 'mask' (covering 'b') that lie inside 'roi' to 'value'.
+    private static void fill(byte[] mask, Rectangle b, Roi roi, byte value) {
+        Rectangle r = roi.getBounds();
+        ImageProcessor m = roi.getMask();
+        byte[] pixels = m == null ? null : (byte[]) m.getPixels();
+        int x, y, x0, x1, y0, y1;
+
+        x0 = Math.max(r.x, b.x);
+        x1 = Math.min(r.x + r.width, b.x + b.width);
+        y0 = Math.max(r.y, b.y);
+        y1 = Math.min(r.y + r.height, b.y + b.height);
+        for (y = y0; y < y1; y++) {
+            for (x = x0; x < x1; x++) {
+                // A null mask means the ROI is a rectangle.
+                if (pixels == null || pixels[(y - r.y) * r.width + x - r.x] != 0) {
+                    mask[(y - b.y) * b.width + x - b.x] = value;
+                }
+            }
+        }
+    }
+
+
+    private void addRun(int x, int y, int len) {
+        if (this.nruns == this.runX.length) {
+            this.runX = grow(this.runX, this.nruns * 2);
+            this.runY = grow(this.runY, this.nruns * 2);
+            this.runLength = grow(this.runLength, this.nruns * 2);
+            this.runStart = grow(this.runStart, this.nruns * 2 + 1);
+        }
+        this.runX[this.nruns] = x;
+        this.runY[this.nruns] = y;
+        this.runLength[this.nruns] = len;
+        this.runStart[this.nruns] = this.area;
+        this.nruns++;
+        this.area += len;
+        this.runStart[this.nruns] = this.area;
+    }
+
+
+    // Returns the number of pixels points are sampled from.
+    int getArea() {
+        return this.area;
+    }
+
+
+    boolean contains(int x, int y) {
+        int row = y - this.bounds.y, i;
+
+        if (row < 0 || row >= this.bounds.height) {
+            return false;
+        }
+        for (i = this.rowStart[row]; i < this.rowStart[row + 1]; i++) {
+            if (x >= this.runX[i] && x < this.runX[i] + this.runLength[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // Returns the position of inside pixel number k (0 <= k < area).
+    private void locate(int k, int[] xy) {
+        int lo = 0, hi = this.nruns - 1, mid;
+
+        while (lo < hi) {
+            mid = (lo + hi + 1) >>> 1;
+            if (this.runStart[mid] <= k) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        xy[0] = this.runX[lo] + k - this.runStart[lo];
+        xy[1] = this.runY[lo];
+    }
+
+
+    // Returns n points placed with 'strategy', or null if the area is empty.
+    Polygon sample(int n, int strategy, long seed) {
+        Random rnd = new Random(seed);
+
+        if (this.area == 0) {
+            return null;
+        }
+        if (strategy == HALTON || strategy == SOBOL) {
+            return sampleSequence(n, strategy, rnd);
+        } else if (strategy == STRATIFIED) {
+            return sampleStratified(n, rnd);
+        }
+        return sampleUniform(n, rnd);
+    }
+
+
+    private Polygon sampleUniform(int n, Random rnd) {
+        int[] x = new int[n], y = new int[n], xy = new int[2];
+        int i;
+
+        for (i = 0; i < n; i++) {
+            locate(rnd.nextInt(this.area), xy);
+            x[i] = xy[0];
+            y[i] = xy[1];
+        }
+        return new Polygon(x, y, n);
+    }
+
+
+    // Takes points of a low-discrepancy sequence over the bounding box,
+    // skipping those outside the area. In the unlikely case that too few
+    // fall inside, e.g. in a very thin area, the rest are drawn uniformly,
+    // so that there are always n points, and this is logged.
+    private Polygon sampleSequence(int n, int strategy, Random rnd) {
+        Polygon pol = new Polygon();
+        double shiftx = rnd.nextDouble(), shifty = rnd.nextDouble(), u, v;
+        int scramblex = rnd.nextInt(), scrambley = rnd.nextInt();
+        int sobolx = 0, soboly = 0, c;
+        int[] xy = new int[2];
+        long k, maxk;
+        int x, y;
+
+        // Expected number of candidates is n * box / area; allow for plenty more.
+        maxk = 4L * n * this.bounds.width * this.bounds.height / this.area + 1000;
+        if (strategy == SOBOL) {
+            // The 32 bit Sobol sequence repeats after 2^32 points.
+            maxk = Math.min(maxk, (1L << 32) - 1);
+        }
+        for (k = 1; pol.npoints < n && k <= maxk; k++) {
+            if (strategy == HALTON) {
+                u = frac(radicalInverse(k, 2) + shiftx);
+                v = frac(radicalInverse(k, 3) + shifty);
+            } else {
+                // Gray code order: flip the direction number of the lowest
+                // zero bit of k - 1. The first dimension is van der Corput,
+                // the second uses the direction numbers of x + 1.
+                c = Long.numberOfTrailingZeros(~(k - 1));
+                sobolx ^= 1 << (31 - c);
+                soboly ^= sobolDirection(c);
+                u = ((sobolx ^ scramblex) >>> 1) / (double) (1 << 30) / 2;
+                v = ((soboly ^ scrambley) >>> 1) / (double) (1 << 30) / 2;
+            }
+            x = this.bounds.x + (int) (u * this.bounds.width);
+            y = this.bounds.y + (int) (v * this.bounds.height);
+            if (contains(x, y)) {
+                pol.addPoint(x, y);
+            }
+        }
+        if (pol.npoints < n) {
+            IJ.log("Vesicle: only " + pol.npoints + " of " + n + " " + strategies[strategy] +
+                   " points fell inside the area; the rest were placed uniformly.");
+        }
+        while (pol.npoints < n) {
+            locate(rnd.nextInt(this.area), xy);
+            pol.addPoint(xy[0], xy[1]);
+        }
+        return pol;
+    }
+
+
+    // Places one jittered point in each cell of a grid over the bounding box,
+    // with the grid made just fine enough to give at least n points in the
+    // area. If it gives more, a random subset of n is kept.
+    private Polygon sampleStratified(int n, Random rnd) {
+        double cellw, cellh;
+        int[] x, y;
+        int side, i, j, m, t, px, py;
+
+        side = (int) Math.ceil(Math.sqrt((double) n * this.bounds.width *
+                                         this.bounds.height / this.area));
+        while (true) {
+            x = new int[side * side];
+            y = new int[side * side];
+            cellw = (double) this.bounds.width / side;
+            cellh = (double) this.bounds.height / side;
+            m = 0;
+            for (j = 0; j < side; j++) {
+                for (i = 0; i < side; i++) {
+                    px = this.bounds.x + (int) ((i + rnd.nextDouble()) * cellw);
+                    py = this.bounds.y + (int) ((j + rnd.nextDouble()) * cellh);
+                    if (contains(px, py)) {
+                        x[m] = px;
+                        y[m] = py;
+                        m++;
+                    }
+                }
+            }
+            if (m >= n || side >= Math.max(this.bounds.width, this.bounds.height)) {
+                break;
+            }
+            side = Math.max(side + 1, (int) (side * 1.1));
+        }
+        n = Math.min(n, m);
+        for (i = 0; i < n; i++) {
+            j = i + rnd.nextInt(m - i);
+            t = x[i]; x[i] = x[j]; x[j] = t;
+            t = y[i]; y[i] = y[j]; y[j] = t;
+        }
+        return new Polygon(x, y, n);
+    }
+
+
+    private static double radicalInverse(long k, int base) {
+        double inv = 1.0 / base, f = inv, r = 0;
+
+        while (k > 0) {
+            r += (k % base) * f;
+            k /= base;
+            f *= inv;
+        }
+        return r;
+    }
+
+
+    // Direction number c of the second Sobol dimension (polynomial x + 1).
+    private static int sobolDirection(int c) {
+        int v = 1 << 31, i;
+
+        for (i = 0; i < c; i++) {
+            v ^= v >>> 1;
+        }
+        return v;
+    }
+
+
+    private static double frac(double d) {
+        return d - Math.floor(d);
+    }
+
+
+    static int getStrategy(String name) {
+        int i;
+
+        for (i = 0; i < strategies.length; i++) {
+            if (strategies[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    private static int[] grow(int[] a, int len) {
+        int[] b = new int[len];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+} // end of VesicleSampler
@@ -0,0 +1,182 @@
+/*
+    plugin : VesicleSaver.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Background saving of profiles and analyzed images.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.EventQueue;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import ij.IJ;
+
+
+/*
+ * Runs save jobs one at a time on a background thread, in the order they
+ * were submitted, so that the annotation UI is free as soon as the user
+ * has confirmed the file names.
+ *
+ * A job only works on data copied on the event thread: a VesicleSnapshot
+ * of the profile and a VesicleExport holding a copy of the image.
+ * Failures are written to the log window and shown in an error dialog.
+ * When a job is done, its listener is told on the event thread which
+ * profiles were saved, so that those that were not can be put back.
+ */
+class VesicleSaver {
+    private static ExecutorService executor;
+
+
+    // Told on the event thread when a job is done.
+    interface Listener {
+        void saved(Job job);
+    }
+
+
+    // Saves one or more profiles of the same image and, optionally, a
+    // single analyzed image of them all.
+    static class Job implements Callable<Void> {
+        ArrayList<VesicleSnapshot> snapshots = new ArrayList<VesicleSnapshot>();
+        ArrayList<String> profilePaths = new ArrayList<String>();
+        boolean binaryFormat, saveMetrics, saveAssociation;
+        // Autosave journal of the profiles, or null.
+        VesicleJournal journal;
+        // Project file to add the profiles to, or null; the profile paths
+        // then only name the entries.
+        VesicleProject project;
+        // Analyzed image to save, or null.
+        VesicleExport export;
+        String exportPath;
+        // Running number (in the file name) and ID counter of the first
+        // profile; those of the others follow on.
+        int number, counter;
+        // Told when the job is done, or null.
+        Listener listener;
+        // Which profiles were saved, once the job is done.
+        boolean[] saved;
+
+        void add(VesicleSnapshot snapshot, String path) {
+            this.snapshots.add(snapshot);
+            this.profilePaths.add(path);
+        }
+
+        public Void call() {
+            int nsteps = this.snapshots.size() + (this.export == null ? 0 : 1);
+            VesicleSnapshot snapshot;
+            VesicleRecord rec;
+            long t0;
+            int j, nfailed = 0;
+
+            this.saved = new boolean[this.snapshots.size()];
+            for (j = 0; j < this.snapshots.size(); j++) {
+                snapshot = this.snapshots.get(j);
+                try {
+                    IJ.showStatus("Saving profile " + snapshot.id + "...");
+                    IJ.showProgress(j, nsteps);
+                    t0 = VesicleTimer.start();
+                    rec = snapshot.toRecord();
+                    if (this.saveMetrics) {
+                        VesicleMetrics.addTo(rec);
+                    }
+                    if (this.saveAssociation) {
+                        VesicleIndex.addTo(rec);
+                    }
+                    if (this.project != null) {
+                        this.project.append(rec, new File(this.profilePaths.get(j)).getName(),
+                                            this.binaryFormat);
+                    } else if (this.binaryFormat) {
+                        VesicleBinary.write(rec, this.profilePaths.get(j));
+                    } else {
+                        rec.write(this.profilePaths.get(j));
+                    }
+                    VesicleTimer.stop("Save: profile write", t0);
+                    this.saved[j] = true;
+                    if (this.journal != null) {
+                        this.journal.saved(snapshot.key);
+                    }
+                } catch (Throwable e) {
+                    nfailed++;
+                    fail("Profile " + snapshot.id + " (" + snapshot.image +
+                         ") could not be saved:\n" + e);
+                }
+            }
+            if (this.export != null) {
+                try {
+                    IJ.showStatus("Saving analyzed image...");
+                    IJ.showProgress(nsteps - 1, nsteps);
+                    this.export.write(this.exportPath);
+                } catch (Throwable e) {
+                    nfailed++;
+                    fail("The analyzed image of " + this.snapshots.get(0).image +
+                         " could not be saved:\n" + e);
+                }
+            }
+            IJ.showProgress(1.0);
+            if (nfailed == 0) {
+                IJ.showStatus(this.snapshots.size() == 1
+                              ? "Profile " + this.snapshots.get(0).id + " saved."
+                              : this.snapshots.size() + " profiles saved.");
+            }
+            if (this.listener != null) {
+                EventQueue.invokeLater(new Runnable() {
+                    public void run() {
+                        Job.this.listener.saved(Job.this);
+                    }
+                });
+            }
+            return null;
+        }
+    }
+
+
+    static synchronized Future<Void> submit(Job job) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Vesicle saver");
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            });
+        }
+        return executor.submit(job);
+    }
+
+
+    // Waits until all submitted jobs are done and stops the thread.
+    static void finish() {
+        ExecutorService e;
+
+        synchronized (VesicleSaver.class) {
+            e = executor;
+            executor = null;
+        }
+        if (e == null) {
+            return;
+        }
+        e.shutdown();
+        try {
+            while (!e.awaitTermination(1, TimeUnit.SECONDS)) {
+                IJ.showStatus("Waiting for profiles to be saved...");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private static void fail(final String msg) {
+        IJ.log("Vesicle: " + msg.replace('\n', ' '));
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                IJ.error("Vesicle", msg);
+            }
+        });
+    }
+} // end of VesicleSaver
@@ -0,0 +1,522 @@
+/*
+    plugin : VesicleSession.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Several profiles on one image.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.*;
+import ij.io.*;
+
+
+/*
+ * The profiles being annotated on one image. Each profile has its own
+ * components, ID and comment; one of them is active and receives new
+ * components. The overlay shown on the image holds the components of all
+ * profiles. Settings (VesicleOptions and the profile counters) are shared:
+ * they are edited on the active profile and copied to the others.
+ *
+ * Like VesicleProfile, a session is only used on the event thread.
+ * Profiles handed over for saving leave the session at once; any that
+ * could not be written are put back when VesicleSaver reports on them.
+ */
+class VesicleSession implements VesicleSaver.Listener {
+    private final ArrayList<VesicleProfile> profiles;
+    private final Overlay overlay;  // shown on the image
+    private Rectangle damaged;  // by profiles since removed
+    private int active;
+    private VesicleJournal journal;
+
+
+    VesicleSession() {
+        this.profiles = new ArrayList<VesicleProfile>();
+        this.profiles.add(new VesicleProfile());
+        this.overlay = new Overlay();
+        this.active = 0;
+    }
+
+
+    VesicleProfile getActive() {
+        return this.profiles.get(this.active);
+    }
+
+
+    // Returns the number (from 1) of the active profile.
+    int getActiveNumber() {
+        return this.active + 1;
+    }
+
+
+    int size() {
+        return this.profiles.size();
+    }
+
+
+    // Adds an empty profile on 'imp' and makes it active.
+    VesicleProfile add(ImagePlus imp) {
+        VesicleProfile profile = new VesicleProfile();
+
+        profile.copySettings(getActive());
+        profile.imgID = imp.getID();
+        profile.slice = getSlice(imp);
+        profile.attach(this.journal);
+        this.profiles.add(profile);
+        this.active = this.profiles.size() - 1;
+        return profile;
+    }
+
+
+    // Returns the current stack position of 'imp' (from 1), or 0 if it is
+    // not a stack.
+    static int getSlice(ImagePlus imp) {
+        return imp.getStackSize() > 1 ? imp.getCurrentSlice() : 0;
+    }
+
+
+    // Catches up with components edited in place in any of the profiles,
+    // so that none with unsaved edits is taken for unchanged.
+    void checkEdited() {
+        int j;
+
+        for (j = 0; j < this.profiles.size(); j++) {
+            this.profiles.get(j).checkEdited();
+        }
+    }
+
+
+    // In a stack, makes a profile on the current slice active: the active
+    // profile if it is on the slice, otherwise another profile on the slice
+    // or, if there is none, a new one. Profiles of 'imp' (or of no image
+    // yet) without components on other slices are dropped. Profiles on
+    // another image are left alone.
+    void followSlice(ImagePlus imp) {
+        int slice = getSlice(imp), j;
+        VesicleProfile settings = getActive(), p;
+
+        if (slice == 0 || settings.slice == slice ||
+            (settings.dirty && settings.imgID != imp.getID())) {
+            return;
+        }
+        for (j = this.profiles.size() - 1; j >= 0; j--) {
+            p = this.profiles.get(j);
+            if (p.slice != slice && (p.imgID == imp.getID() || p.imgID == 0) &&
+                !p.dirty && p.overlay.size() == 0) {
+                p.clear();
+                this.profiles.remove(j);
+            }
+        }
+        for (j = 0; j < this.profiles.size(); j++) {
+            p = this.profiles.get(j);
+            if (p.slice == slice && p.imgID == imp.getID()) {
+                this.active = j;
+                getActive().copySettings(settings);
+                return;
+            }
+        }
+        this.profiles.add(new VesicleProfile());
+        this.active = this.profiles.size() - 1;
+        getActive().copySettings(settings);
+        getActive().imgID = imp.getID();
+        getActive().slice = slice;
+        getActive().attach(this.journal);
+    }
+
+
+    // Makes profile number 'n' (from 1) active.
+    void select(int n) {
+        this.active = Math.max(0, Math.min(this.profiles.size() - 1, n - 1));
+    }
+
+
+    // Removes the active profile, or clears it if it is the only one. The
+    // previous profile becomes active.
+    void discardActive() {
+        VesicleProfile old = getActive();
+
+        old.clear();
+        if (this.profiles.size() == 1) {
+            return;
+        }
+        this.damaged = union(this.damaged, old.takeDamaged());
+        this.profiles.remove(this.active);
+        this.active = Math.max(0, this.active - 1);
+        getActive().copySettings(old);
+    }
+
+
+    // Copies the settings of the active profile to all others.
+    void shareSettings() {
+        int j;
+
+        for (j = 0; j < this.profiles.size(); j++) {
+            if (j != this.active) {
+                this.profiles.get(j).copySettings(getActive());
+            }
+        }
+    }
+
+
+    boolean isDirty() {
+        int j;
+
+        for (j = 0; j < this.profiles.size(); j++) {
+            if (this.profiles.get(j).dirty) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // Like VesicleProfile.isSameImage, but for all profiles: components may
+    // only be added on the image the other profiles are on.
+    boolean isSameImage(ImagePlus imp) {
+        int j;
+
+        for (j = 0; j < this.profiles.size(); j++) {
+            if (j != this.active && this.profiles.get(j).dirty &&
+                this.profiles.get(j).imgID != imp.getID()) {
+                IJ.error("Vesicle", "All profiles must be on the same image.");
+                return false;
+            }
+        }
+        if (!getActive().isSameImage(imp)) {
+            return false;
+        }
+        attachJournal(imp);
+        return true;
+    }
+
+
+    // Makes sure edits are journaled for 'imp'. A journal for another image
+    // is closed, but kept on disk if it has unsaved edits.
+    void attachJournal(ImagePlus imp) {
+        int j;
+
+        if (this.journal != null && this.journal.imageID == imp.getID()) {
+            return;
+        }
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        this.journal = new VesicleJournal(imp);
+        for (j = 0; j < this.profiles.size(); j++) {
+            this.profiles.get(j).attach(this.journal);
+        }
+    }
+
+
+    // Loads the profiles of a journal left behind onto 'imp', after the
+    // profiles already in the session. They are journaled again, in the
+    // journal of this session, which is written to disk before returning so
+    // that the old journal can be deleted.
+    void recover(VesicleJournal.Contents contents, ImagePlus imp) throws IOException {
+        VesicleProfile p;
+        int j;
+
+        attachJournal(imp);
+        for (j = 0; j < contents.profiles.size(); j++) {
+            p = getActive().dirty ? add(imp) : getActive();
+            p.load(contents.profiles.get(j), imp);
+            if (!contents.profiles.get(j).id.equals("")) {
+                p.setID(contents.profiles.get(j).id);
+            }
+            if (!contents.profiles.get(j).comment.equals("")) {
+                p.setComment(contents.profiles.get(j).comment);
+            }
+        }
+        this.journal.flush();
+    }
+
+
+    // Stops journaling; the journal is kept if it holds unsaved edits.
+    void close() {
+        int j;
+
+        if (this.journal != null) {
+            this.journal.close();
+            this.journal = null;
+        }
+        for (j = 0; j < this.profiles.size(); j++) {
+            this.profiles.get(j).attach(null);
+        }
+    }
+
+
+    // Discards all profiles, which must have no unsaved changes, and stops
+    // journaling, e.g. when the view of a large image is moved.
+    void clear() {
+        while (this.profiles.size() > 1) {
+            discardActive();
+        }
+        discardActive();
+        close();
+    }
+
+
+    // Returns the overlay with the components of all profiles. It is the
+    // same overlay every time, updated, so that once it is shown on an image
+    // only the damaged area (see takeDamaged) needs to be repainted.
+    Overlay getOverlay() {
+        Overlay o;
+        int j, k;
+
+        this.overlay.clear();
+        for (j = 0; j < this.profiles.size(); j++) {
+            o = this.profiles.get(j).overlay;
+            for (k = 0; k < o.size(); k++) {
+                this.overlay.add(o.get(k));
+            }
+        }
+        return this.overlay;
+    }
+
+
+    // Returns the bounds of all overlay ROIs added or removed since the
+    // last call, or null if there were none.
+    Rectangle takeDamaged() {
+        Rectangle r = this.damaged;
+        int j;
+
+        for (j = 0; j < this.profiles.size(); j++) {
+            r = union(r, this.profiles.get(j).takeDamaged());
+        }
+        this.damaged = null;
+        return r;
+    }
+
+
+    private static Rectangle union(Rectangle a, Rectangle b) {
+        return a == null ? b : b == null ? a : a.union(b);
+    }
+
+
+    // Called when a save job is done: advances the profile counters past
+    // the profiles that were saved and puts back those that were not.
+    public void saved(VesicleSaver.Job job) {
+        VesicleProfile settings = getActive();
+        boolean sameImage;
+        int j, k;
+
+        sameImage = job.snapshots.size() > 0 &&
+                    job.snapshots.get(0).image.equals(settings.prevImg);
+        for (j = 0; j < job.snapshots.size(); j++) {
+            settings.savingTot = Math.max(0, settings.savingTot - 1);
+            if (sameImage) {
+                settings.saving = Math.max(0, settings.saving - 1);
+            }
+            if (job.saved[j]) {
+                settings.ntot = Math.max(settings.ntot, job.counter + j + 1);
+                if (sameImage) {
+                    settings.n = Math.max(settings.n, job.number + j);
+                }
+            } else if ((k = restore(job.snapshots.get(j), job.journal)) > 0) {
+                IJ.log("Vesicle: profile " + job.snapshots.get(j).id + " was put back as " +
+                       "profile " + k + "; please save it again.");
+            } else if (job.journal != null) {
+                IJ.log("Vesicle: profile " + job.snapshots.get(j).id + " is kept in the " +
+                       "autosave journal and can be recovered when Vesicle is started again.");
+            }
+        }
+        shareSettings();
+    }
+
+
+    // Puts a profile that could not be saved back into the session, still
+    // under its key in the journal, which has not marked it saved. This is
+    // only possible while the session is journaling the same image (and
+    // view); otherwise the journal keeps the profile for recovery. Returns
+    // the number (from 1) of the profile put back, or 0 if it was not.
+    private int restore(VesicleSnapshot snapshot, VesicleJournal journal) {
+        ImagePlus imp = WindowManager.getImage(snapshot.imageID);
+        VesicleView view = VesicleView.of(imp);
+        VesicleRecord rec;
+        VesicleProfile p;
+
+        if (imp == null || journal == null || journal != this.journal ||
+            (view == null ? 0 : view.bounds.x) != snapshot.originX ||
+            (view == null ? 0 : view.bounds.y) != snapshot.originY) {
+            return 0;
+        }
+        rec = snapshot.toRecord();
+        rec.translate(-snapshot.originX, -snapshot.originY);
+        // Loaded before attaching, so that nothing is journaled twice.
+        p = new VesicleProfile();
+        p.copySettings(getActive());
+        p.load(rec, imp);
+        p.journal = journal;
+        p.key = snapshot.key;
+        // An empty active profile makes way for it.
+        if (!getActive().dirty && getActive().overlay.size() == 0) {
+            getActive().clear();
+            this.profiles.set(this.active, p);
+        } else {
+            this.profiles.add(p);
+        }
+        getOverlay();
+        imp.draw();
+        return this.profiles.indexOf(p) + 1;
+    }
+
+
+    // Returns a one-line description of each profile, for choosing one.
+    String[] getDescriptions() {
+        String[] desc = new String[this.profiles.size()];
+        VesicleProfile p;
+        int j;
+
+        for (j = 0; j < this.profiles.size(); j++) {
+            p = this.profiles.get(j);
+            desc[j] = (j + 1) + ": " + (p.ID.equals("") ? "(no ID)" : p.ID) + ", " +
+                      (p.slice > 0 ? "slice " + p.slice + ", " : "") +
+                      p.getNum("vesicle") + " vesicles, " +
+                      p.getNumPoints("points") + " points" +
+                      (p.getNum("profile border") == 0 ? ", no border" : "");
+        }
+        return desc;
+    }
+
+
+    // Saves all profiles with unsaved changes: asks for all IDs in one
+    // dialog, for the directory and for the analyzed image, and then hands
+    // everything to VesicleSaver as a single job. The profiles are named
+    // like those saved one at a time (image title and a running number).
+    // If a project file is in use, the profiles are added to it and no
+    // directory is asked for. The profiles leave the session at once; any
+    // that cannot be written are put back (see saved). Returns false if
+    // nothing was submitted.
+    boolean saveAll(ImagePlus imp) {
+        ArrayList<VesicleProfile> dirty = new ArrayList<VesicleProfile>();
+        ArrayList<String> paths = new ArrayList<String>(), ids = new ArrayList<String>();
+        HashSet<String> keys = new HashSet<String>();
+        VesicleProfile settings = getActive(), p;
+        VesicleSaver.Job job;
+        GenericDialog gd;
+        String dir, ext;
+        boolean exists = false;
+        long t0;
+        int j, n, counter;
+
+        for (j = 0; j < this.profiles.size(); j++) {
+            p = this.profiles.get(j);
+            if (p.dirty) {
+                if (!p.CheckProfileData(imp, "Profile " + (j + 1) + ":\n")) {
+                    return false;
+                }
+                dirty.add(p);
+            }
+        }
+        if (dirty.size() == 0) {
+            IJ.showMessage("Nothing to save.");
+            return false;
+        }
+        // Numbers of profiles still being saved are taken.
+        n = imp.getTitle().equals(settings.prevImg) ? settings.n + settings.saving : 0;
+        counter = settings.ntot + settings.savingTot;
+        gd = new GenericDialog("Save all profiles");
+        for (j = 0; j < dirty.size(); j++) {
+            p = dirty.get(j);
+            gd.addStringField("Profile " + (this.profiles.indexOf(p) + 1) + " ID:",
+                              p.ID.equals("") ? IJ.d2s(counter + j, 0) : p.ID);
+        }
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return false;
+        }
+        for (j = 0; j < dirty.size(); j++) {
+            ids.add(gd.getNextString());
+        }
+        // With a project file, the file names only name the entries.
+        dir = null;
+        if (settings.project == null) {
+            dir = new DirectoryChooser("Save profiles in").getDirectory();
+            if (dir == null) {
+                return false;
+            }
+        }
+        ext = settings.binaryFormat ? ".vesb" : ".ves";
+        for (j = 0; j < dirty.size(); j++) {
+            paths.add(new File(dir, dirty.get(j).getFileName(imp, n + j + 1) + ext).getPath());
+            exists |= dir != null && new File(paths.get(j)).exists();
+            // A project keeps one profile per image, slice and ID, also
+            // among those saved now.
+            p = dirty.get(j);
+            exists |= settings.project != null &&
+                      (settings.project.find(imp.getTitle(), p.slice, ids.get(j)) != null ||
+                       !keys.add(p.slice + "\n" + ids.get(j)));
+        }
+        if (exists) {
+            YesNoCancelDialog d = new YesNoCancelDialog(imp.getWindow(), "Vesicle",
+                dir != null ? "Some of the profile files already exist.\nReplace them?"
+                            : "Some of the profile IDs are already in " +
+                              settings.project.file.getName() + ".\nReplace them?");
+            if (!d.yesPressed()) {
+                return false;
+            }
+        }
+        job = new VesicleSaver.Job();
+        job.journal = this.journal;
+        job.project = settings.project;
+        job.number = n + 1;
+        job.counter = counter;
+        job.listener = this;
+        job.binaryFormat = settings.binaryFormat;
+        job.saveMetrics = settings.saveMetrics;
+        job.saveAssociation = settings.saveAssociation;
+        for (j = 0; j < dirty.size(); j++) {
+            p = dirty.get(j);
+            p.setID(ids.get(j));
+            job.add(p.snapshot(imp), paths.get(j));
+        }
+        if (!imp.getTitle().equals(settings.prevImg)) {
+            settings.n = 0;
+            settings.saving = 0;
+            settings.prevImg = imp.getTitle();
+        }
+        settings.saving += dirty.size();
+        settings.savingTot += dirty.size();
+        SaveDialog sd = new SaveDialog("Save analyzed image", imp.getShortTitle(),
+                                       VesicleExport.extensions[settings.exportFormat]);
+        if (sd.getFileName() != null) {
+            job.export = new VesicleExport(imp, job.snapshots, settings.exportMode,
+                                           settings.exportFormat, settings.exportMargin,
+                                           true);
+            job.exportPath = sd.getDirectory() + sd.getFileName();
+        }
+        if (!settings.nativeDepth) {
+            t0 = VesicleTimer.start();
+            for (j = 0; j < dirty.size(); j++) {
+                dirty.get(j).render(imp);
+            }
+            VesicleTimer.stop("Save: rendering", t0);
+        }
+        VesicleSaver.submit(job);
+        // The profiles are the saver's now (and come back if they cannot be
+        // written); keep one empty profile.
+        for (j = 0; j < dirty.size(); j++) {
+            dirty.get(j).release();
+        }
+        this.profiles.removeAll(dirty);
+        if (this.profiles.size() == 0) {
+            this.profiles.add(new VesicleProfile());
+            getActive().attach(this.journal);
+        }
+        this.active = 0;
+        getActive().copySettings(settings);
+        return true;
+    }
+} // end of VesicleSession
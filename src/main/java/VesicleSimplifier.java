@@ -0,0 +1,110 @@
+/*
+    plugin : VesicleSimplifier.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Simplification of traced polygons.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+
+
+/*
+ * Douglas-Peucker simplification of closed polygons. The polygon is split
+ * at its first node and the node farthest from it; each half is then
+ * reduced to the nodes that deviate more than the tolerance from the chord
+ * between the nodes kept so far. Uses an explicit stack, so borders of
+ * any length can be simplified, in O(n log n) time for typical tracings.
+ */
+class VesicleSimplifier {
+
+    // Returns 'pol' with the nodes that can be dropped without moving the
+    // outline more than 'tolerance' pixels removed, or 'pol' itself if
+    // no node can be dropped or fewer than three nodes would remain.
+    static Polygon simplify(Polygon pol, double tolerance) {
+        int n = pol.npoints;
+        boolean[] keep;
+        int[] stack;
+        Polygon simple;
+        double d, dmax, tol2 = tolerance * tolerance;
+        int far, sp, first, last, i, imax;
+
+        if (n <= 3 || tolerance <= 0) {
+            return pol;
+        }
+        far = 0;
+        dmax = -1;
+        for (i = 1; i < n; i++) {
+            d = sq(pol.xpoints[i] - pol.xpoints[0]) + sq(pol.ypoints[i] - pol.ypoints[0]);
+            if (d > dmax) {
+                dmax = d;
+                far = i;
+            }
+        }
+        keep = new boolean[n];
+        keep[0] = true;
+        keep[far] = true;
+        // Chains to simplify as (first, last) node pairs; node n is node 0.
+        stack = new int[2 * n + 4];
+        sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = far;
+        stack[sp++] = far;
+        stack[sp++] = n;
+        while (sp > 0) {
+            last = stack[--sp];
+            first = stack[--sp];
+            imax = -1;
+            dmax = tol2;
+            for (i = first + 1; i < last; i++) {
+                d = segmentDistanceSq(pol, first, last % n, i);
+                if (d > dmax) {
+                    dmax = d;
+                    imax = i;
+                }
+            }
+            if (imax != -1) {
+                keep[imax] = true;
+                stack[sp++] = first;
+                stack[sp++] = imax;
+                stack[sp++] = imax;
+                stack[sp++] = last;
+            }
+        }
+        simple = new Polygon();
+        for (i = 0; i < n; i++) {
+            if (keep[i]) {
+                simple.addPoint(pol.xpoints[i], pol.ypoints[i]);
+            }
+        }
+        if (simple.npoints < 3 || simple.npoints == n) {
+            return pol;
+        }
+        return simple;
+    }
+
+
+    // Squared distance from node p to the segment between nodes a and b.
+    private static double segmentDistanceSq(Polygon pol, int a, int b, int p) {
+        double ax = pol.xpoints[a], ay = pol.ypoints[a];
+        double dx = pol.xpoints[b] - ax, dy = pol.ypoints[b] - ay;
+        double px = pol.xpoints[p] - ax, py = pol.ypoints[p] - ay;
+        double len2 = dx * dx + dy * dy, t;
+
+        if (len2 == 0) {
+            return px * px + py * py;
+        }
+        t = Math.max(0, Math.min(1, (px * dx + py * dy) / len2));
+        return sq(px - t * dx) + sq(py - t * dy);
+    }
+
+
+    private static double sq(double d) {
+        return d * d;
+    }
+} // end of VesicleSimplifier
@@ -0,0 +1,330 @@
+/*
+    plugin : VesicleSnapshot.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Immutable copy of a profile.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import ij.ImagePlus;
+import ij.gui.*;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+
+/*
+ * A VesicleProfile frozen at one moment: the component coordinates and
+ * stack slice, the image calibration, the profile ID and comment, and how
+ * the random points were placed. VesicleProfile is only edited on the
+ * event thread; a snapshot never changes after construction and shares
+ * nothing with the profile or the image, so saving, rendering, validation
+ * and export can use it on any thread, and several at a time.
+ *
+ * Taking a snapshot copies the polygons of the components, which ImageJ
+ * does anyway to hand out the coordinates of a ROI. Accessors return
+ * copies, so that callers cannot change the snapshot either.
+ */
+final class VesicleSnapshot implements VesicleOptions {
+    final String image, id, comment;
+    final String placedStrategy, placedRegion;  // null if unknown
+    final long placedSeed;
+    final int imageID, imageWidth, imageHeight;
+    final int originX, originY;  // of the view, if the image is one
+    final int slice;  // stack position (from 1), 0 if not in a stack
+    final int key;  // of the profile in its autosave journal
+    private final Calibration calibration;
+    private final Polygon border, points, randomPoints;
+    private final List<Polygon> holes, vesicles;
+
+
+    VesicleSnapshot(VesicleProfile profile, ImagePlus imp) {
+        ArrayList<Polygon> pols;
+        VesicleView view;
+        int j;
+
+        this.image = imp.getTitle();
+        this.imageID = imp.getID();
+        this.imageWidth = imp.getWidth();
+        this.imageHeight = imp.getHeight();
+        this.calibration = imp.getCalibration().copy();
+        view = VesicleView.of(imp);
+        this.originX = view == null ? 0 : view.bounds.x;
+        this.originY = view == null ? 0 : view.bounds.y;
+        this.slice = profile.slice;
+        this.id = profile.ID;
+        this.key = profile.key;
+        this.comment = profile.comment;
+        this.border = profile.border == null ? null : profile.border.getPolygon();
+        this.points = profile.points == null ? null : profile.points.getPolygon();
+        this.randomPoints = profile.randomPoints == null ? null
+                                                         : profile.randomPoints.getPolygon();
+        pols = new ArrayList<Polygon>(profile.holes.size());
+        for (j = 0; j < profile.holes.size(); j++) {
+            pols.add(profile.holes.get(j).getPolygon());
+        }
+        this.holes = Collections.unmodifiableList(pols);
+        pols = new ArrayList<Polygon>(profile.vesicles.size());
+        for (j = 0; j < profile.vesicles.size(); j++) {
+            pols.add(profile.vesicles.get(j).getPolygon());
+        }
+        this.vesicles = Collections.unmodifiableList(pols);
+        if (this.randomPoints != null && profile.placedStrategy != null) {
+            this.placedStrategy = profile.placedStrategy;
+            this.placedRegion = profile.placedRegion;
+            this.placedSeed = profile.placedSeed;
+        } else {
+            this.placedStrategy = null;
+            this.placedRegion = null;
+            this.placedSeed = 0;
+        }
+    }
+
+
+    private static Polygon copy(Polygon pol) {
+        return pol == null ? null : new Polygon(pol.xpoints, pol.ypoints, pol.npoints);
+    }
+
+
+    private static ArrayList<Polygon> copy(List<Polygon> pols) {
+        ArrayList<Polygon> c = new ArrayList<Polygon>(pols.size());
+        int j;
+
+        for (j = 0; j < pols.size(); j++) {
+            c.add(copy(pols.get(j)));
+        }
+        return c;
+    }
+
+
+    Calibration getCalibration() {
+        return this.calibration.copy();
+    }
+
+
+    Polygon getBorder() {
+        return copy(this.border);
+    }
+
+
+    Polygon getPoints() {
+        return copy(this.points);
+    }
+
+
+    Polygon getRandomPoints() {
+        return copy(this.randomPoints);
+    }
+
+
+    ArrayList<Polygon> getHoles() {
+        return copy(this.holes);
+    }
+
+
+    ArrayList<Polygon> getVesicles() {
+        return copy(this.vesicles);
+    }
+
+
+    // Checks the profile against the saving rules. Problems that prevent
+    // saving are added to 'errstr', others to 'warnstr'.
+    void check(ArrayList<String> errstr, ArrayList<String> warnstr) {
+        if (this.calibration.getUnit().equals(" ")) {
+            errstr.add("It appears the scale has not been set.");
+        }
+        if (this.border == null || this.border.npoints == 0) {
+            errstr.add("Profile border not defined.");
+        }
+        if (this.vesicles.size() == 0) {
+            warnstr.add("No vesicles defined.");
+        }
+        if (this.points == null || this.points.npoints == 0) {
+            warnstr.add("No point coordinates defined.");
+        }
+    }
+
+
+    // Returns the profile as it is stored in a .ves file, without derived
+    // metrics; the pixel width is rounded as in the text format. The record gets its own copies of the coordinates, which are
+    // those in the whole image if the image is a view.
+    VesicleRecord toRecord() {
+        VesicleRecord rec = new VesicleRecord();
+
+        if (this.calibration.getUnit().equals("micron")) {
+            rec.pixelwidth = this.calibration.pixelWidth * 1000;
+            rec.unit = "nm";
+        } else {
+            rec.pixelwidth = this.calibration.pixelWidth;
+            rec.unit = this.calibration.getUnit();
+        }
+        rec.pixelwidth = VesicleWriter.roundPixelWidth(rec.pixelwidth);
+        rec.image = this.image;
+        rec.id = this.id;
+        rec.comment = this.comment;
+        rec.border = getBorder();
+        rec.holes.addAll(copy(this.holes));
+        rec.vesicles.addAll(copy(this.vesicles));
+        rec.points = getPoints();
+        rec.randomPoints = getRandomPoints();
+        rec.translate(this.originX, this.originY);
+        if (this.slice > 0) {
+            rec.properties.put("SLICE", Integer.toString(this.slice));
+        }
+        if (this.placedStrategy != null) {
+            rec.properties.put("RANDOM_STRATEGY", this.placedStrategy);
+            rec.properties.put("RANDOM_REGION", this.placedRegion);
+            rec.properties.put("RANDOM_SEED", Long.toString(this.placedSeed));
+        }
+        return rec;
+    }
+
+
+    // Returns a new overlay with one ROI per component, named and coloured
+    // as in the plugin.
+    Overlay toOverlay() {
+        return toOverlay(0, 0);
+    }
+
+
+    // As toOverlay(), with all components moved by (dx, dy), e.g. for an
+    // image cropped at (-dx, -dy).
+    Overlay toOverlay(int dx, int dy) {
+        Overlay overlay = new Overlay();
+        PointRoi pointRoi;
+        int j;
+
+        if (this.border != null) {
+            overlay.add(component(new PolygonRoi(moved(this.border, dx, dy), Roi.POLYGON),
+                                  "profile border"));
+        }
+        for (j = 0; j < this.holes.size(); j++) {
+            overlay.add(component(new PolygonRoi(moved(this.holes.get(j), dx, dy), Roi.POLYGON),
+                                  "hole"));
+        }
+        for (j = 0; j < this.vesicles.size(); j++) {
+            overlay.add(component(new PolygonRoi(moved(this.vesicles.get(j), dx, dy),
+                                                 Roi.POLYGON), "vesicle"));
+        }
+        if (this.points != null) {
+            overlay.add(component(new PointRoi(moved(this.points, dx, dy)), "points"));
+        }
+        if (this.randomPoints != null) {
+            pointRoi = new PointRoi(moved(this.randomPoints, dx, dy));
+            pointRoi.setHideLabels(true);
+            overlay.add(component(pointRoi, "random points"));
+        }
+        return overlay;
+    }
+
+
+    private static Polygon moved(Polygon pol, int dx, int dy) {
+        Polygon c = copy(pol);
+
+        c.translate(dx, dy);
+        return c;
+    }
+
+
+    private Roi component(Roi roi, String name) {
+        roi.setName(name);
+        roi.setStrokeColor(VesicleProfile.getComponentColor(name));
+        roi.setPosition(this.slice);
+        return roi;
+    }
+
+
+    // Draws the profile ID and all components into the image, converting
+    // it to RGB first if necessary.
+    void render(ImagePlus imp) {
+        render(imp, 0, 0);
+    }
+
+
+    // As render(), with all components moved by (dx, dy). The label keeps
+    // the size it has on the whole image.
+    void render(ImagePlus imp, int dx, int dy) {
+        render(imp, dx, dy, new Rectangle(0, 0, imp.getWidth(), imp.getHeight()));
+    }
+
+
+    // As render(imp, dx, dy), for 'imp' being part of a larger image that
+    // lies at 'frame' (in the coordinates of 'imp'), e.g. one band of it.
+    // The label is kept inside the frame rather than inside 'imp'.
+    void render(ImagePlus imp, int dx, int dy, Rectangle frame) {
+        Overlay overlay = toOverlay(dx, dy);
+        ImageProcessor ip;
+        Polygon pol;
+        int n, j, x, y;
+
+        VesicleProfile.convertToRGB(imp);
+        // In a stack, draw into the slice of the profile.
+        ip = this.slice > 0 && imp.getStackSize() > 1 ? imp.getStack().getProcessor(this.slice)
+                                                      : imp.getProcessor();
+        if (this.border != null) {
+            writeIDtext(ip, moved(this.border, dx, dy), frame);
+        }
+        for (n = 0; n < overlay.size(); n++) {
+            ip.setColor(overlay.get(n).getStrokeColor());
+            if (overlay.get(n).getName().equals("points")) {
+                pol = overlay.get(n).getPolygon();
+                for (j = 0; j < pol.npoints; j++) {
+                    x = pol.xpoints[j];
+                    y = pol.ypoints[j];
+                    ip.drawLine(x - 3, y, x + 3, y);
+                    ip.drawLine(x, y - 3, x, y + 3);
+                }
+            } else {
+                overlay.get(n).drawPixels(ip);
+            }
+        }
+    }
+
+
+    // Returns the first topmost vertex of 'pol'.
+    private static Point findxy(Polygon pol) {
+        int miny, x, j;
+
+        miny = Integer.MAX_VALUE;
+        x = 0;
+        for (j = 0; j < pol.npoints; j++) {
+            if (pol.ypoints[j] < miny) {
+                miny = pol.ypoints[j];
+                x = pol.xpoints[j];
+            }
+        }
+        return new Point(x, miny);
+    }
+
+
+    private void writeIDtext(ImageProcessor ip, Polygon border, Rectangle frame) {
+        TextRoi profileLabel;
+        Font font;
+        Point p;
+        int locx, locy, size;
+
+        size = this.imageHeight / 42;  // adjust font size for image size (by an arbitrary factor)
+        // Pass the font to the label rather than setting TextRoi's global
+        // font, which the ImageJ text tool shares.
+        font = new Font(TextRoi.getFont(), Font.BOLD, size);
+        profileLabel = new TextRoi(0, 0, this.id, font);
+        profileLabel.setAntialiased(true);
+        p = findxy(border);
+        locy = p.y - profileLabel.getBounds().height;
+        locx = p.x - profileLabel.getBounds().width;
+        if (locx < frame.x) locx = frame.x + 3;
+        if (locy < frame.y) locy = frame.y + 3;
+        profileLabel.setLocation(locx, locy);
+        ip.setColor(textCol);
+        profileLabel.drawPixels(ip);
+        ip.setColor(Color.black);
+    }
+} // end of VesicleSnapshot
@@ -0,0 +1,342 @@
+/*
+    plugin : VesicleTiffSource.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Region-by-region reading of large TIFF files.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Rectangle;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import ij.measure.Calibration;
+import ij.process.*;
+
+
+/*
+ * An uncompressed TIFF image that is read from disk one region at a time,
+ * so that images far larger than memory (e.g. stitched montages) can be
+ * viewed and exported piece by piece. Supported are the first image of a
+ * classic (not Big) TIFF, in strips or tiles, with 8, 16 or 32 (floating
+ * point) bit grayscale or 8 bit RGB pixels.
+ *
+ * Strips are read row by row straight into the region; tiles are read
+ * whole and the most recently used ones are kept. Regions may be read
+ * from several threads at a time.
+ */
+class VesicleTiffSource {
+    static final int cachedTiles = 64;
+
+    final File file;
+    private final FileChannel channel;
+    private final ByteOrder order;
+    private int width, height, bitsPerSample, samplesPerPixel, bytesPerPixel;
+    private int rowsPerStrip, tileWidth, tileHeight, sampleFormat;
+    private boolean whiteIsZero;
+    private long[] offsets;
+    private String description;
+    private double xResolution;
+    private int resolutionUnit;
+    private final LinkedHashMap<Integer, byte[]> tiles;
+
+
+    VesicleTiffSource(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            readFully(header, 0);
+            if (header.get(0) == 'I' && header.get(1) == 'I') {
+                this.order = ByteOrder.LITTLE_ENDIAN;
+            } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+                this.order = ByteOrder.BIG_ENDIAN;
+            } else {
+                throw new IOException(file.getName() + " is not a TIFF file");
+            }
+            header.order(this.order);
+            if (header.getShort(2) != 42) {
+                throw new IOException(file.getName() + ": BigTIFF is not supported");
+            }
+            readIFD(header.getInt(4) & 0xffffffffL);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.tiles = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > cachedTiles;
+            }
+        };
+    }
+
+
+    private void readIFD(long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(2).order(this.order);
+        ByteBuffer entry;
+        long[] values;
+        int n, i, tag, compression = 1, planar = 1;
+
+        readFully(buf, pos);
+        n = buf.getShort(0) & 0xffff;
+        entry = ByteBuffer.allocate(12 * n).order(this.order);
+        readFully(entry, pos + 2);
+        this.bitsPerSample = 1;
+        this.samplesPerPixel = 1;
+        this.sampleFormat = 1;
+        for (i = 0; i < n; i++) {
+            tag = entry.getShort(12 * i) & 0xffff;
+            if (tag == 270) {
+                this.description = readAscii(entry, 12 * i);
+                continue;
+            }
+            if (tag == 282) {
+                this.xResolution = readRational(entry, 12 * i);
+                continue;
+            }
+            values = readValues(entry, 12 * i);
+            switch (tag) {
+                case 256: this.width = (int) values[0]; break;
+                case 257: this.height = (int) values[0]; break;
+                case 258: this.bitsPerSample = (int) values[0]; break;
+                case 259: compression = (int) values[0]; break;
+                case 262: this.whiteIsZero = values[0] == 0; break;
+                case 273: case 324: this.offsets = values; break;
+                case 277: this.samplesPerPixel = (int) values[0]; break;
+                case 278: this.rowsPerStrip = (int) values[0]; break;
+                case 284: planar = (int) values[0]; break;
+                case 296: this.resolutionUnit = (int) values[0]; break;
+                case 322: this.tileWidth = (int) values[0]; break;
+                case 323: this.tileHeight = (int) values[0]; break;
+                case 339: this.sampleFormat = (int) values[0]; break;
+                default: break;
+            }
+        }
+        if (compression != 1) {
+            throw new IOException(this.file.getName() + " is compressed; only uncompressed " +
+                                  "TIFFs can be read region by region");
+        }
+        if (this.width <= 0 || this.height <= 0 || this.offsets == null || planar != 1 ||
+            !(this.samplesPerPixel == 1 && (this.bitsPerSample == 8 || this.bitsPerSample == 16 ||
+                                            (this.bitsPerSample == 32 && this.sampleFormat == 3)) ||
+              this.samplesPerPixel >= 3 && this.bitsPerSample == 8)) {
+            throw new IOException(this.file.getName() + ": unsupported TIFF pixel format");
+        }
+        this.bytesPerPixel = this.bitsPerSample / 8 * this.samplesPerPixel;
+        if (this.rowsPerStrip <= 0) {
+            this.rowsPerStrip = this.height;
+        }
+    }
+
+
+    // Returns the SHORT or LONG values of the IFD entry at 'p'.
+    private long[] readValues(ByteBuffer entry, int p) throws IOException {
+        int type = entry.getShort(p + 2) & 0xffff;
+        int count = entry.getInt(p + 4), size = type == 3 ? 2 : 4, i;
+        long[] values;
+        ByteBuffer buf;
+
+        if ((type != 3 && type != 4) || count <= 0) {
+            return new long[] {0};
+        }
+        values = new long[count];
+        if (count * size <= 4) {
+            buf = entry.duplicate().order(this.order);
+            buf.position(p + 8);
+        } else {
+            buf = ByteBuffer.allocate(count * size).order(this.order);
+            readFully(buf, entry.getInt(p + 8) & 0xffffffffL);
+            buf.position(0);
+        }
+        for (i = 0; i < count; i++) {
+            values[i] = size == 2 ? buf.getShort() & 0xffff : buf.getInt() & 0xffffffffL;
+        }
+        return values;
+    }
+
+
+    private String readAscii(ByteBuffer entry, int p) throws IOException {
+        int count = entry.getInt(p + 4);
+        ByteBuffer buf = ByteBuffer.allocate(Math.max(0, count));
+
+        if (count <= 4) {
+            return "";
+        }
+        readFully(buf, entry.getInt(p + 8) & 0xffffffffL);
+        return new String(buf.array(), 0, count - 1, "ISO-8859-1");
+    }
+
+
+    private double readRational(ByteBuffer entry, int p) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8).order(this.order);
+        long num, den;
+
+        readFully(buf, entry.getInt(p + 8) & 0xffffffffL);
+        num = buf.getInt(0) & 0xffffffffL;
+        den = buf.getInt(4) & 0xffffffffL;
+        return den == 0 ? 0 : (double) num / den;
+    }
+
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        int n;
+
+        buf.clear();
+        while (buf.hasRemaining()) {
+            n = this.channel.read(buf, pos + buf.position());
+            if (n < 0) {
+                throw new EOFException(this.file.getName() + ": unexpected end of file");
+            }
+        }
+    }
+
+
+    String getTitle() {
+        return this.file.getName();
+    }
+
+
+    int getWidth() {
+        return this.width;
+    }
+
+
+    int getHeight() {
+        return this.height;
+    }
+
+
+    // Returns the calibration stored by ImageJ (unit in the image
+    // description, pixel size as the resolution), if any.
+    Calibration getCalibration() {
+        Calibration cal = new Calibration();
+        String unit = null;
+        int i, j;
+
+        if (this.description != null) {
+            i = this.description.indexOf("unit=");
+            if (i >= 0) {
+                j = this.description.indexOf('\n', i);
+                unit = this.description.substring(i + 5, j < 0 ? this.description.length() : j);
+            }
+        }
+        if (unit == null && this.resolutionUnit == 3) {
+            unit = "cm";
+        } else if (unit == null && this.resolutionUnit == 2) {
+            unit = "inch";
+        }
+        if (unit != null && this.xResolution > 0) {
+            cal.pixelWidth = 1 / this.xResolution;
+            cal.pixelHeight = cal.pixelWidth;
+            cal.setUnit(unit);
+        }
+        return cal;
+    }
+
+
+    // Reads region 'r' (which must lie inside the image) into a new image
+    // processor of the image's type.
+    ImageProcessor getRegion(Rectangle r) throws IOException {
+        byte[] buf = new byte[r.width * r.height * this.bytesPerPixel];
+        int rowBytes = r.width * this.bytesPerPixel;
+        ByteBuffer row;
+        byte[] tile;
+        int y, tx, ty, x0, x1, y0, y1, tilesAcross;
+
+        if (this.tileWidth > 0) {
+            tilesAcross = (this.width + this.tileWidth - 1) / this.tileWidth;
+            for (ty = r.y / this.tileHeight; ty <= (r.y + r.height - 1) / this.tileHeight; ty++) {
+                for (tx = r.x / this.tileWidth; tx <= (r.x + r.width - 1) / this.tileWidth; tx++) {
+                    tile = getTile(ty * tilesAcross + tx);
+                    x0 = Math.max(r.x, tx * this.tileWidth);
+                    x1 = Math.min(r.x + r.width, (tx + 1) * this.tileWidth);
+                    y0 = Math.max(r.y, ty * this.tileHeight);
+                    y1 = Math.min(r.y + r.height, (ty + 1) * this.tileHeight);
+                    for (y = y0; y < y1; y++) {
+                        System.arraycopy(tile, ((y - ty * this.tileHeight) * this.tileWidth +
+                                                x0 - tx * this.tileWidth) * this.bytesPerPixel,
+                                         buf, ((y - r.y) * r.width + x0 - r.x) * this.bytesPerPixel,
+                                         (x1 - x0) * this.bytesPerPixel);
+                    }
+                }
+            }
+        } else {
+            for (y = r.y; y < r.y + r.height; y++) {
+                row = ByteBuffer.wrap(buf, (y - r.y) * rowBytes, rowBytes).slice();
+                readFully(row, this.offsets[y / this.rowsPerStrip] +
+                               ((long) (y % this.rowsPerStrip) * this.width + r.x) *
+                               this.bytesPerPixel);
+            }
+        }
+        return toProcessor(buf, r.width, r.height);
+    }
+
+
+    private byte[] getTile(int index) throws IOException {
+        byte[] tile;
+
+        synchronized (this.tiles) {
+            tile = this.tiles.get(index);
+        }
+        if (tile == null) {
+            tile = new byte[this.tileWidth * this.tileHeight * this.bytesPerPixel];
+            readFully(ByteBuffer.wrap(tile), this.offsets[index]);
+            synchronized (this.tiles) {
+                this.tiles.put(index, tile);
+            }
+        }
+        return tile;
+    }
+
+
+    private ImageProcessor toProcessor(byte[] buf, int w, int h) {
+        ByteBuffer b = ByteBuffer.wrap(buf).order(this.order);
+        ImageProcessor ip;
+        short[] shorts;
+        float[] floats;
+        int[] rgb;
+        int i, p;
+
+        if (this.samplesPerPixel >= 3) {
+            rgb = new int[w * h];
+            for (i = 0, p = 0; i < rgb.length; i++, p += this.bytesPerPixel) {
+                rgb[i] = 0xff000000 | (buf[p] & 0xff) << 16 | (buf[p + 1] & 0xff) << 8 |
+                         (buf[p + 2] & 0xff);
+            }
+            return new ColorProcessor(w, h, rgb);
+        }
+        if (this.bitsPerSample == 16) {
+            shorts = new short[w * h];
+            b.asShortBuffer().get(shorts);
+            ip = new ShortProcessor(w, h, shorts, null);
+        } else if (this.bitsPerSample == 32) {
+            floats = new float[w * h];
+            b.asFloatBuffer().get(floats);
+            ip = new FloatProcessor(w, h, floats, null);
+        } else {
+            ip = new ByteProcessor(w, h, buf, null);
+        }
+        if (this.whiteIsZero) {
+            ip.invertLut();
+        }
+        return ip;
+    }
+
+
+    void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+} // end of VesicleTiffSource
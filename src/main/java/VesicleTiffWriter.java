@@ -0,0 +1,226 @@
+/*
+    plugin : VesicleTiffWriter.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Row-by-row writing of large RGB TIFF files.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+
+/*
+ * Writes an uncompressed RGB TIFF of known size from consecutive bands of
+ * rows, so that an image need never be held in memory as a whole. A stack
+ * is written as one image after the other, as ImageJ does: the first
+ * directory, describing the stack, precedes the pixels and the
+ * directories of the other images follow them. As all strips have the
+ * same size, every offset is known in advance and the file is written
+ * strictly in order, so it may also go to a ZIP archive. The calibration
+ * is stored as ImageJ does (unit in the image description, pixel size as
+ * the resolution). Classic TIFF limits the file to 4 GB.
+ */
+class VesicleTiffWriter {
+    static final int rowsPerStrip = 64;
+
+    private final String path;  // null if not writing to a file
+    private final int width, height, images, nstrips;
+    private final long dataStart, imageBytes;
+    private final double xResolution, yResolution;
+    private final OutputStream out;
+    private long rowsWritten;
+
+
+    VesicleTiffWriter(String path, int width, int height, Calibration cal) throws IOException {
+        this(path, null, width, height, 1, cal);
+    }
+
+
+    // Writes a stack of 'images' images to 'out', which is closed by close().
+    VesicleTiffWriter(OutputStream out, int width, int height, int images, Calibration cal)
+            throws IOException {
+        this(null, out, width, height, images, cal);
+    }
+
+
+    private VesicleTiffWriter(String path, OutputStream out, int width, int height,
+                              int images, Calibration cal) throws IOException {
+        String unit = cal.scaled() ? cal.getUnit() : "pixel";
+        byte[] desc = ("ImageJ=\n" + (images > 1 ? "images=" + images + "\nslices=" +
+                                                   images + "\n" : "") +
+                       "unit=" + unit + "\n\0").getBytes("ISO-8859-1");
+        ByteBuffer h;
+        long size;
+
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        this.images = images;
+        this.nstrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+        this.imageBytes = 3L * width * height;
+        this.xResolution = cal.scaled() ? 1 / cal.pixelWidth : 1;
+        this.yResolution = cal.scaled() ? 1 / cal.pixelHeight : 1;
+        this.dataStart = 8 + directorySize(desc);
+        size = this.dataStart + images * this.imageBytes + (images - 1) * directorySize(null);
+        if (size > 0xffffffffL) {
+            throw new IOException("The image is too large for a TIFF file (" +
+                                  (size >> 20) + " MB)");
+        }
+        h = ByteBuffer.allocate((int) this.dataStart).order(ByteOrder.LITTLE_ENDIAN);
+        h.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        directory(h, 8, desc, this.dataStart,
+                  images > 1 ? this.dataStart + images * this.imageBytes : 0);
+        this.out = new BufferedOutputStream(out != null ? out : new FileOutputStream(path),
+                                            1 << 20);
+        this.out.write(h.array(), 0, h.position());
+    }
+
+
+    // Size of a directory and of the values that follow it: bits per
+    // sample, description (if any), resolutions, strip offsets and byte
+    // counts.
+    private int directorySize(byte[] desc) {
+        int nentries = desc == null ? 13 : 14;
+
+        return 2 + 12 * nentries + 4 + 6 + (desc == null ? 0 : desc.length + (desc.length & 1)) +
+               16 + 8 * this.nstrips;
+    }
+
+
+    // Puts the directory at file position 'pos', for an image with its
+    // pixels at 'data', into 'h'; 'next' is the position of the next
+    // directory, 0 if none.
+    private void directory(ByteBuffer h, long pos, byte[] desc, long data, long next) {
+        int nentries = desc == null ? 13 : 14, s;
+        long bits, descPos, resPos, offsetsPos, countsPos;
+
+        bits = pos + 2 + 12 * nentries + 4;
+        descPos = bits + 6;
+        resPos = descPos + (desc == null ? 0 : desc.length + (desc.length & 1));
+        offsetsPos = resPos + 16;
+        countsPos = offsetsPos + 4L * this.nstrips;
+        h.putShort((short) nentries);
+        entry(h, 256, 4, 1, this.width);
+        entry(h, 257, 4, 1, this.height);
+        entry(h, 258, 3, 3, bits);
+        entry(h, 259, 3, 1, 1);
+        entry(h, 262, 3, 1, 2);
+        if (desc != null) {
+            entry(h, 270, 2, desc.length, descPos);
+        }
+        entry(h, 273, 4, this.nstrips, this.nstrips == 1 ? data : offsetsPos);
+        entry(h, 277, 3, 1, 3);
+        entry(h, 278, 4, 1, rowsPerStrip);
+        entry(h, 279, 4, this.nstrips, this.nstrips == 1 ? this.imageBytes : countsPos);
+        entry(h, 282, 5, 1, resPos);
+        entry(h, 283, 5, 1, resPos + 8);
+        entry(h, 284, 3, 1, 1);
+        entry(h, 296, 3, 1, 1);
+        h.putInt((int) next);
+        h.putShort((short) 8).putShort((short) 8).putShort((short) 8);
+        if (desc != null) {
+            h.put(desc);
+            if ((desc.length & 1) != 0) {
+                h.put((byte) 0);
+            }
+        }
+        putResolution(h, this.xResolution);
+        putResolution(h, this.yResolution);
+        for (s = 0; s < this.nstrips; s++) {
+            h.putInt((int) (data + 3L * this.width * rowsPerStrip * s));
+        }
+        for (s = 0; s < this.nstrips; s++) {
+            h.putInt(3 * this.width * Math.min(rowsPerStrip, this.height - rowsPerStrip * s));
+        }
+    }
+
+
+    // A directory entry; values of up to four bytes are stored in place.
+    private static void entry(ByteBuffer h, int tag, int type, int count, long value) {
+        h.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == 3 && count == 1) {
+            h.putShort((short) value).putShort((short) 0);
+        } else {
+            h.putInt((int) value);
+        }
+    }
+
+
+    private static void putResolution(ByteBuffer h, double res) {
+        int den = 1000000;
+
+        while (res * den > Integer.MAX_VALUE && den > 1) {
+            den /= 10;
+        }
+        h.putInt((int) Math.round(res * den)).putInt(den);
+    }
+
+
+    // Writes the rows of 'ip' (RGB, as wide as the image) as the next rows
+    // of the image, continuing with the next image of a stack at the end of
+    // one.
+    void writeRows(ImageProcessor ip) throws IOException {
+        byte[] row = new byte[3 * this.width];
+        int x, y, c;
+
+        if (ip.getWidth() != this.width ||
+            this.rowsWritten + ip.getHeight() > (long) this.height * this.images) {
+            throw new IOException("Rows do not fit the image");
+        }
+        for (y = 0; y < ip.getHeight(); y++) {
+            for (x = 0; x < this.width; x++) {
+                c = ip.get(x, y);
+                row[3 * x] = (byte) (c >> 16);
+                row[3 * x + 1] = (byte) (c >> 8);
+                row[3 * x + 2] = (byte) c;
+            }
+            this.out.write(row);
+        }
+        this.rowsWritten += ip.getHeight();
+    }
+
+
+    // Writes the directories of the other images of a stack and closes the
+    // file.
+    void close() throws IOException {
+        int size = directorySize(null), k;
+        ByteBuffer h;
+        long pos;
+
+        if (this.rowsWritten != (long) this.height * this.images) {
+            this.out.close();
+            throw new IOException("Only " + this.rowsWritten + " of " +
+                                  ((long) this.height * this.images) + " rows written");
+        }
+        pos = this.dataStart + this.images * this.imageBytes;
+        for (k = 1; k < this.images; k++, pos += size) {
+            h = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            directory(h, pos, null, this.dataStart + k * this.imageBytes,
+                      k < this.images - 1 ? pos + size : 0);
+            this.out.write(h.array(), 0, h.position());
+        }
+        this.out.close();
+    }
+
+
+    // Closes and, if writing to a file, deletes the file, after an error.
+    void abort() {
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+        if (this.path != null) {
+            new File(this.path).delete();
+        }
+    }
+} // end of VesicleTiffWriter
@@ -0,0 +1,173 @@
+/*
+    plugin : VesicleTimer.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Timing of commands and their phases.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.EventQueue;
+import java.io.*;
+import java.util.*;
+
+
+/*
+ * Collects the wall-clock time spent in each command and in the phases
+ * of a command (RGB conversion, component and overlay updates, info
+ * panel, redraw, and the validation, profile write, rendering and image
+ * write of saves). Usage:
+ *
+ *   long t0 = VesicleTimer.start();
+ *   ...
+ *   VesicleTimer.stop("Info panel", t0);
+ *
+ * Phases are timed on the event thread and on the saver thread alike.
+ * Per phase, the number of calls and the total, minimum, maximum and last
+ * time are kept; timing costs two calls to System.nanoTime and a map
+ * lookup, so it is always on. Command times include any dialogs shown.
+ */
+class VesicleTimer {
+    static final String[] columns = {"phase", "n", "total_ms", "mean_ms", "min_ms",
+                                     "max_ms", "last_ms"};
+    private static final int N = 0, TOTAL = 1, MIN = 2, MAX = 3, LAST = 4;
+
+    // Phases in the order they were first timed.
+    private static final LinkedHashMap<String, long[]> phases =
+        new LinkedHashMap<String, long[]>();
+    private static Runnable listener;
+    private static boolean notifyPending;
+
+
+    static long start() {
+        return System.nanoTime();
+    }
+
+
+    // Adds the time since 'start' to 'phase'.
+    static void stop(String phase, long start) {
+        long t = System.nanoTime() - start;
+        Runnable r = null;
+        long[] s;
+
+        synchronized (VesicleTimer.class) {
+            s = phases.get(phase);
+            if (s == null) {
+                s = new long[] {0, 0, Long.MAX_VALUE, 0, 0};
+                phases.put(phase, s);
+            }
+            s[N]++;
+            s[TOTAL] += t;
+            s[MIN] = Math.min(s[MIN], t);
+            s[MAX] = Math.max(s[MAX], t);
+            s[LAST] = t;
+            if (listener != null && !notifyPending) {
+                notifyPending = true;
+                r = listener;
+            }
+        }
+        if (r != null) {
+            final Runnable l = r;
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    synchronized (VesicleTimer.class) {
+                        notifyPending = false;
+                    }
+                    l.run();
+                }
+            });
+        }
+    }
+
+
+    // Sets a Runnable to be run on the event thread after phases have been
+    // timed, e.g. to refresh a display; null for none.
+    static synchronized void setListener(Runnable r) {
+        listener = r;
+    }
+
+
+    static synchronized void reset() {
+        phases.clear();
+    }
+
+
+    // Returns one row per phase, in the order of 'columns', with times in
+    // milliseconds.
+    static synchronized ArrayList<String[]> getRows() {
+        ArrayList<String[]> rows = new ArrayList<String[]>();
+        long[] s;
+
+        for (Map.Entry<String, long[]> e : phases.entrySet()) {
+            s = e.getValue();
+            rows.add(new String[] {e.getKey(), Long.toString(s[N]), ms(s[TOTAL]),
+                                   ms(s[TOTAL] / s[N]), ms(s[MIN]), ms(s[MAX]),
+                                   ms(s[LAST])});
+        }
+        return rows;
+    }
+
+
+    // Returns the timings as a fixed-width table.
+    static String toTable() {
+        ArrayList<String[]> rows = getRows();
+        StringBuilder sb = new StringBuilder();
+        int width = 24, i, j;
+
+        for (i = 0; i < rows.size(); i++) {
+            width = Math.max(width, rows.get(i)[0].length() + 1);
+        }
+        rows.add(0, new String[] {"Phase", "n", "total", "mean", "min", "max", "last"});
+        for (i = 0; i < rows.size(); i++) {
+            sb.append(String.format("%-" + width + "s", rows.get(i)[0]));
+            for (j = 1; j < columns.length; j++) {
+                sb.append(String.format("%10s", rows.get(i)[j]));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+
+    static void writeCSV(String path) throws IOException {
+        ArrayList<String[]> rows = getRows();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(path)));
+        int i;
+
+        try {
+            out.println(join(columns));
+            for (i = 0; i < rows.size(); i++) {
+                rows.get(i)[0] = "\"" + rows.get(i)[0].replace("\"", "\"\"") + "\"";
+                out.println(join(rows.get(i)));
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Could not write " + path);
+        }
+    }
+
+
+    private static String join(String[] fields) {
+        StringBuilder sb = new StringBuilder();
+        int i;
+
+        for (i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(fields[i]);
+        }
+        return sb.toString();
+    }
+
+
+    private static String ms(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e6);
+    }
+} // end of VesicleTimer
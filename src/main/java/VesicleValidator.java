@@ -0,0 +1,490 @@
+/*
+    plugin : VesicleValidator.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Headless validation of saved Vesicle profiles.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/*
+ * Checks every .ves and .vesb file in a directory tree, in parallel, and
+ * writes a tab separated report with one line per problem:
+ *
+ *   ERROR|WARNING|OK  file  profile ID  message
+ *
+ * Files without problems get a single OK line. The rules are those applied
+ * when a profile is saved (scale set, profile border defined, vesicles and
+ * points present), plus:
+ *
+ *   - the profile border must not intersect itself
+ *   - holes must lie inside the profile border (error if entirely outside,
+ *     warning if partly)
+ *   - likewise vesicles
+ *   - points outside the profile border (warning)
+ *   - profile IDs must be unique among the files of the same image and
+ *     stack slice (error); a .ves and a .vesb file with the same name,
+ *     e.g. after conversion, count as one profile
+ *
+ * Usage: java -cp ij.jar:Vesicle_.jar VesicleValidator [-threads n]
+ *            [-o report] <directory>
+ */
+public class VesicleValidator {
+
+    static final String[] extensions = {".ves", ".vesb"};
+
+    File dir;
+    int threads;
+
+
+    public VesicleValidator(File dir, int threads) {
+        this.dir = dir;
+        this.threads = threads;
+    }
+
+
+    /*
+     * The outcome of validating one file.
+     */
+    static class Result {
+        final File file;
+        String id = "", image = "", slice = "";
+        ArrayList<String> errstr = new ArrayList<String>();
+        ArrayList<String> warnstr = new ArrayList<String>();
+
+        Result(File file) {
+            this.file = file;
+        }
+    }
+
+
+    // Validates all profiles and writes the report to 'out'. Returns the
+    // number of files with errors.
+    public int run(PrintWriter out) throws IOException, InterruptedException {
+        ArrayList<File> files = new ArrayList<File>();
+        ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>();
+        ArrayList<Result> results = new ArrayList<Result>();
+        HashMap<String, ArrayList<Result>> ids = new HashMap<String, ArrayList<Result>>();
+        ArrayList<Result> same;
+        HashSet<String> bases = new HashSet<String>();
+        ExecutorService pool;
+        Result r;
+        String path, key;
+        int i, j, nerr = 0, nwarn = 0;
+
+        listProfiles(this.dir, files);
+        pool = Executors.newFixedThreadPool(this.threads);
+        for (i = 0; i < files.size(); i++) {
+            final File file = files.get(i);
+            futures.add(pool.submit(new Callable<Result>() {
+                public Result call() {
+                    return validate(file);
+                }
+            }));
+        }
+        pool.shutdown();
+        for (i = 0; i < futures.size(); i++) {
+            try {
+                r = futures.get(i).get();
+            } catch (ExecutionException e) {
+                r = new Result(files.get(i));
+                r.errstr.add("Could not be checked: " + e.getCause());
+            }
+            results.add(r);
+            if (!r.id.equals("")) {
+                key = r.image + "\n" + r.slice + "\n" + r.id;
+                same = ids.get(key);
+                if (same == null) {
+                    same = new ArrayList<Result>();
+                    ids.put(key, same);
+                }
+                same.add(r);
+            }
+        }
+        for (ArrayList<Result> rs : ids.values()) {
+            for (i = 0; rs.size() > 1 && i < rs.size(); i++) {
+                // Each other profile is named once, by its first file.
+                bases.clear();
+                bases.add(baseName(rs.get(i).file));
+                for (j = 0; j < rs.size(); j++) {
+                    if (bases.add(baseName(rs.get(j).file))) {
+                        rs.get(i).errstr.add("Profile ID " + rs.get(i).id + " of " +
+                                             rs.get(i).image + " also used in " +
+                                             relative(rs.get(j).file) + ".");
+                    }
+                }
+            }
+        }
+        out.println(String.format("# %s version %s validation, %s", VesicleVersion.title,
+                                  VesicleVersion.version, new Date()));
+        out.println("# Directory: " + this.dir.getAbsolutePath());
+        out.println("# Threads: " + this.threads);
+        out.println("status\tfile\tid\tmessage");
+        for (i = 0; i < results.size(); i++) {
+            r = results.get(i);
+            path = relative(r.file);
+            for (j = 0; j < r.errstr.size(); j++) {
+                out.println("ERROR\t" + path + "\t" + r.id + "\t" + r.errstr.get(j));
+            }
+            for (j = 0; j < r.warnstr.size(); j++) {
+                out.println("WARNING\t" + path + "\t" + r.id + "\t" + r.warnstr.get(j));
+            }
+            if (r.errstr.size() > 0) {
+                nerr++;
+            } else if (r.warnstr.size() > 0) {
+                nwarn++;
+            } else {
+                out.println("OK\t" + path + "\t" + r.id + "\t");
+            }
+        }
+        out.println("# " + results.size() + " profiles, " + (results.size() - nerr - nwarn) +
+                    " OK, " + nwarn + " with warnings, " + nerr + " with errors");
+        return nerr;
+    }
+
+
+    // Returns the path of 'file' without the profile extension, which is the
+    // same for a .ves file and the .vesb file converted from it.
+    static String baseName(File file) {
+        String path = file.getPath();
+        int j;
+
+        for (j = 0; j < extensions.length; j++) {
+            if (path.endsWith(extensions[j])) {
+                return path.substring(0, path.length() - extensions[j].length());
+            }
+        }
+        return path;
+    }
+
+
+    // Reads and checks one profile file.
+    static Result validate(File file) {
+        Result r = new Result(file);
+        VesicleRecord rec;
+
+        try {
+            rec = VesicleReader.read(file.getPath());
+        } catch (IOException e) {
+            r.errstr.add("Could not be read: " + e.getMessage());
+            return r;
+        }
+        r.id = rec.id.replace('\t', ' ');
+        r.image = rec.image;
+        if (rec.properties.containsKey("SLICE")) {
+            r.slice = rec.properties.get("SLICE");
+        }
+        check(rec, r.errstr, r.warnstr);
+        return r;
+    }
+
+
+    // Checks a profile read from file. Problems that would have prevented
+    // saving, or make the profile unusable, are added to 'errstr', others
+    // to 'warnstr'.
+    static void check(VesicleRecord rec, ArrayList<String> errstr, ArrayList<String> warnstr) {
+        Polygon border = rec.border;
+        int[] xy;
+        int j, n;
+
+        if (rec.unit.trim().equals("") || rec.unit.startsWith("pixel") || rec.pixelwidth <= 0) {
+            errstr.add("It appears the scale has not been set.");
+        }
+        if (border == null || border.npoints == 0) {
+            errstr.add("Profile border not defined.");
+            border = null;
+        } else if (border.npoints < 3) {
+            errstr.add("Profile border has fewer than three nodes.");
+            border = null;
+        }
+        if (rec.vesicles.size() == 0) {
+            warnstr.add("No vesicles defined.");
+        }
+        if (rec.points == null || rec.points.npoints == 0) {
+            warnstr.add("No point coordinates defined.");
+        }
+        if (border == null) {
+            return;
+        }
+        xy = findSelfIntersection(border);
+        if (xy != null) {
+            errstr.add("Profile border intersects itself near (" + xy[0] + ", " + xy[1] + ").");
+        }
+        for (j = 0; j < rec.holes.size(); j++) {
+            checkInside(border, rec.holes.get(j), "Hole " + (j + 1), errstr, warnstr);
+        }
+        for (j = 0; j < rec.vesicles.size(); j++) {
+            checkInside(border, rec.vesicles.get(j), "Vesicle " + (j + 1), errstr, warnstr);
+        }
+        if (rec.points != null) {
+            n = rec.points.npoints - countInside(border, rec.points);
+            if (n > 0) {
+                warnstr.add(n + " of " + rec.points.npoints +
+                            " points lie outside the profile border.");
+            }
+        }
+    }
+
+
+    private static void checkInside(Polygon border, Polygon pol, String what,
+                                    ArrayList<String> errstr, ArrayList<String> warnstr) {
+        int n = countInside(border, pol);
+
+        if (pol.npoints == 0) {
+            errstr.add(what + " has no nodes.");
+        } else if (n == 0) {
+            errstr.add(what + " lies outside the profile border.");
+        } else if (n < pol.npoints) {
+            warnstr.add(what + " extends outside the profile border.");
+        }
+    }
+
+
+    // Returns the number of vertices of 'pol' inside 'border' or on it.
+    static int countInside(Polygon border, Polygon pol) {
+        Rectangle bounds = border.getBounds();
+        int i, n = 0;
+
+        for (i = 0; i < pol.npoints; i++) {
+            if (bounds.contains(pol.xpoints[i], pol.ypoints[i]) &&
+                (border.contains(pol.xpoints[i], pol.ypoints[i]) ||
+                 onBorder(border, pol.xpoints[i], pol.ypoints[i]))) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+
+    // Polygon.contains excludes parts of the outline, which are inside for
+    // our purposes.
+    private static boolean onBorder(Polygon border, int x, int y) {
+        int i, k;
+
+        for (i = 0; i < border.npoints; i++) {
+            k = (i + 1) % border.npoints;
+            if (orientation(border.xpoints[i], border.ypoints[i],
+                            border.xpoints[k], border.ypoints[k], x, y) == 0 &&
+                onSegment(border.xpoints[i], border.ypoints[i],
+                          border.xpoints[k], border.ypoints[k], x, y)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // Returns a point where two non-adjacent edges of the closed polygon
+    // 'pol' meet, or null if there is none. Edges are put in a uniform grid
+    // of about as many cells as there are edges, so that only edges sharing
+    // a cell are tested against each other.
+    static int[] findSelfIntersection(Polygon border) {
+        Polygon pol = withoutRepeatedNodes(border);
+        Rectangle bounds = pol.getBounds();
+        ArrayList<ArrayList<Integer>> cells;
+        ArrayList<Integer> cell;
+        double size;
+        int n = pol.npoints, nx, ny, i, k, a, b, cx, cy, cx0, cx1, cy0, cy1;
+
+        if (n < 3) {
+            return null;
+        }
+        size = Math.max(1, Math.sqrt((double) (bounds.width + 1) * (bounds.height + 1) / n));
+        nx = (int) (bounds.width / size) + 1;
+        ny = (int) (bounds.height / size) + 1;
+        cells = new ArrayList<ArrayList<Integer>>(nx * ny);
+        for (i = 0; i < nx * ny; i++) {
+            cells.add(null);
+        }
+        for (i = 0; i < n; i++) {
+            k = (i + 1) % n;
+            cx0 = (int) ((Math.min(pol.xpoints[i], pol.xpoints[k]) - bounds.x) / size);
+            cx1 = (int) ((Math.max(pol.xpoints[i], pol.xpoints[k]) - bounds.x) / size);
+            cy0 = (int) ((Math.min(pol.ypoints[i], pol.ypoints[k]) - bounds.y) / size);
+            cy1 = (int) ((Math.max(pol.ypoints[i], pol.ypoints[k]) - bounds.y) / size);
+            for (cy = cy0; cy <= cy1; cy++) {
+                for (cx = cx0; cx <= cx1; cx++) {
+                    cell = cells.get(cy * nx + cx);
+                    if (cell == null) {
+                        cell = new ArrayList<Integer>();
+                        cells.set(cy * nx + cx, cell);
+                    }
+                    cell.add(i);
+                }
+            }
+        }
+        for (i = 0; i < cells.size(); i++) {
+            cell = cells.get(i);
+            for (a = 0; cell != null && a < cell.size(); a++) {
+                for (b = a + 1; b < cell.size(); b++) {
+                    if (edgesIntersect(pol, cell.get(a), cell.get(b))) {
+                        k = cell.get(b);
+                        return new int[] {pol.xpoints[k], pol.ypoints[k]};
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+
+    // Tests edges i -> i+1 and j -> j+1 of 'pol', i < j. Adjacent edges
+    // share a node and are only said to intersect if they overlap.
+    private static boolean edgesIntersect(Polygon pol, int i, int j) {
+        int n = pol.npoints, i2 = (i + 1) % n, j2 = (j + 1) % n;
+        int ax = pol.xpoints[i], ay = pol.ypoints[i], bx = pol.xpoints[i2], by = pol.ypoints[i2];
+        int cx = pol.xpoints[j], cy = pol.ypoints[j], dx = pol.xpoints[j2], dy = pol.ypoints[j2];
+        int o1, o2, o3, o4;
+
+        if (i2 == j || j2 == i) {
+            // Adjacent: overlapping only if collinear and folding back.
+            if (i2 == j) {
+                return orientation(ax, ay, bx, by, dx, dy) == 0 &&
+                       (long) (bx - ax) * (dx - bx) + (long) (by - ay) * (dy - by) < 0;
+            }
+            return orientation(cx, cy, dx, dy, bx, by) == 0 &&
+                   (long) (dx - cx) * (bx - dx) + (long) (dy - cy) * (by - dy) < 0;
+        }
+        o1 = orientation(ax, ay, bx, by, cx, cy);
+        o2 = orientation(ax, ay, bx, by, dx, dy);
+        o3 = orientation(cx, cy, dx, dy, ax, ay);
+        o4 = orientation(cx, cy, dx, dy, bx, by);
+        if (o1 * o2 < 0 && o3 * o4 < 0) {
+            return true;
+        }
+        return (o1 == 0 && onSegment(ax, ay, bx, by, cx, cy)) ||
+               (o2 == 0 && onSegment(ax, ay, bx, by, dx, dy)) ||
+               (o3 == 0 && onSegment(cx, cy, dx, dy, ax, ay)) ||
+               (o4 == 0 && onSegment(cx, cy, dx, dy, bx, by));
+    }
+
+
+    // Returns 'pol' without nodes equal to the previous one, which would
+    // make edges that share a node look non-adjacent.
+    private static Polygon withoutRepeatedNodes(Polygon pol) {
+        Polygon p = new Polygon();
+        int i;
+
+        for (i = 0; i < pol.npoints; i++) {
+            if (p.npoints == 0 || pol.xpoints[i] != p.xpoints[p.npoints - 1] ||
+                pol.ypoints[i] != p.ypoints[p.npoints - 1]) {
+                p.addPoint(pol.xpoints[i], pol.ypoints[i]);
+            }
+        }
+        while (p.npoints > 1 && p.xpoints[0] == p.xpoints[p.npoints - 1] &&
+               p.ypoints[0] == p.ypoints[p.npoints - 1]) {
+            p.npoints--;
+        }
+        return p;
+    }
+
+
+    // Returns the sign of the cross product (b - a) x (c - a).
+    private static int orientation(int ax, int ay, int bx, int by, int cx, int cy) {
+        long cross = (long) (bx - ax) * (cy - ay) - (long) (by - ay) * (cx - ax);
+        return cross > 0 ? 1 : cross < 0 ? -1 : 0;
+    }
+
+
+    // Whether c, collinear with a and b, lies between them.
+    private static boolean onSegment(int ax, int ay, int bx, int by, int cx, int cy) {
+        return Math.min(ax, bx) <= cx && cx <= Math.max(ax, bx) &&
+               Math.min(ay, by) <= cy && cy <= Math.max(ay, by);
+    }
+
+
+    String relative(File f) {
+        String base = this.dir.getAbsolutePath() + File.separator;
+        String path = f.getAbsolutePath();
+
+        return path.startsWith(base) ? path.substring(base.length()) : path;
+    }
+
+
+    // Adds the profile files in 'dir' and its subdirectories to 'files', in
+    // name order.
+    static void listProfiles(File dir, ArrayList<File> files) throws IOException {
+        File[] entries = dir.listFiles();
+        String name;
+        int i, j;
+
+        if (entries == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Arrays.sort(entries);
+        for (i = 0; i < entries.length; i++) {
+            if (entries[i].isDirectory()) {
+                listProfiles(entries[i], files);
+                continue;
+            }
+            name = entries[i].getName().toLowerCase();
+            for (j = 0; j < extensions.length; j++) {
+                if (name.endsWith(extensions[j])) {
+                    files.add(entries[i]);
+                    break;
+                }
+            }
+        }
+    }
+
+
+    static void usage() {
+        System.err.println("Usage: VesicleValidator [-threads n] [-o report] <directory>");
+        System.exit(2);
+    }
+
+
+    public static void main(String[] args) {
+        File dir = null, report = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        PrintWriter out;
+        int i, nerr;
+
+        System.setProperty("java.awt.headless", "true");
+        for (i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+            } else if (args[i].equals("-o") && i + 1 < args.length) {
+                report = new File(args[++i]);
+            } else if (args[i].startsWith("-")) {
+                usage();
+            } else if (dir == null) {
+                dir = new File(args[i]);
+            } else {
+                usage();
+            }
+        }
+        if (dir == null || threads < 1) {
+            usage();
+        }
+        try {
+            out = report == null
+                  ? new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)))
+                  : new PrintWriter(new BufferedWriter(new FileWriter(report)));
+            try {
+                nerr = new VesicleValidator(dir, threads).run(out);
+            } finally {
+                out.close();
+            }
+            System.exit(nerr == 0 ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Vesicle validation failed: " + e);
+            System.exit(1);
+        }
+    }
+} // end of VesicleValidator
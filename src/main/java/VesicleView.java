@@ -0,0 +1,189 @@
+/*
+    plugin : VesicleView.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    A window onto an image too large for memory.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.process.ImageProcessor;
+
+
+/*
+ * A rectangle of a large TIFF (see VesicleTiffSource), shown as an
+ * ordinary ImagePlus titled like the file. Only the view is in memory;
+ * components are annotated in view coordinates and moved by the view
+ * origin when saved or loaded, so profiles are stored in the coordinates
+ * of the whole image as usual. The view is attached to the ImagePlus as a
+ * property and replaced when the view is moved.
+ *
+ * The display range of 16 and 32 bit images is fixed when the image is
+ * opened, so that all views and the exported image look alike.
+ */
+final class VesicleView {
+    static final String property = "Vesicle.view";
+    static final long maxPixels = 8192L * 8192;  // larger images are opened as views
+    static final int defaultSize = 4096;
+
+    final File file;
+    final Rectangle bounds;  // in the whole image
+    final int imageWidth, imageHeight;
+    final double displayMin, displayMax;
+
+
+    private VesicleView(VesicleTiffSource source, Rectangle bounds, double displayMin,
+                        double displayMax) {
+        this.file = source.file;
+        this.bounds = new Rectangle(bounds);
+        this.imageWidth = source.getWidth();
+        this.imageHeight = source.getHeight();
+        this.displayMin = displayMin;
+        this.displayMax = displayMax;
+    }
+
+
+    // The same view moved to 'bounds'.
+    private VesicleView(VesicleView view, Rectangle bounds) {
+        this.file = view.file;
+        this.bounds = new Rectangle(bounds);
+        this.imageWidth = view.imageWidth;
+        this.imageHeight = view.imageHeight;
+        this.displayMin = view.displayMin;
+        this.displayMax = view.displayMax;
+    }
+
+
+    // Returns the view shown in 'imp', or null if 'imp' is an ordinary image.
+    static VesicleView of(ImagePlus imp) {
+        Object o = imp == null ? null : imp.getProperty(property);
+
+        return o instanceof VesicleView ? (VesicleView) o : null;
+    }
+
+
+    // Returns 'file' as a source if it is a TIFF that can be read region by
+    // region and is too large to open whole, otherwise null.
+    static VesicleTiffSource openIfLarge(File file) {
+        VesicleTiffSource source;
+
+        if (!file.isFile() || !file.getName().toLowerCase().matches(".*\\.tiff?")) {
+            return null;
+        }
+        try {
+            source = new VesicleTiffSource(file);
+        } catch (IOException e) {
+            return null;
+        }
+        if ((long) source.getWidth() * source.getHeight() <= maxPixels) {
+            source.close();
+            return null;
+        }
+        return source;
+    }
+
+
+    // Returns a new image showing region 'r' of 'source'.
+    static ImagePlus open(VesicleTiffSource source, Rectangle r) throws IOException {
+        ImageProcessor ip;
+        ImagePlus imp;
+        FileInfo fi;
+
+        r = clip(source.getWidth(), source.getHeight(), r);
+        ip = source.getRegion(r);
+        ip.resetMinAndMax();
+        imp = new ImagePlus(source.getTitle(), ip);
+        imp.setCalibration(source.getCalibration());
+        fi = new FileInfo();
+        fi.directory = source.file.getAbsoluteFile().getParent() + File.separator;
+        fi.fileName = source.file.getName();
+        imp.setFileInfo(fi);
+        imp.setProperty(property, new VesicleView(source, r, ip.getMin(), ip.getMax()));
+        return imp;
+    }
+
+
+    // Shows region 'r' of the whole image in 'imp', which must be a view.
+    // Any drawing into the old view is lost.
+    static void move(ImagePlus imp, Rectangle r) throws IOException {
+        VesicleView view = of(imp);
+        VesicleTiffSource source = new VesicleTiffSource(view.file);
+        ImageProcessor ip;
+
+        try {
+            r = clip(view.imageWidth, view.imageHeight, r);
+            ip = source.getRegion(r);
+        } finally {
+            source.close();
+        }
+        ip.setMinAndMax(view.displayMin, view.displayMax);
+        imp.setProcessor(imp.getTitle(), ip);
+        imp.setProperty(property, new VesicleView(view, r));
+    }
+
+
+    // Returns 'r' limited to maxPixels and moved inside the image as far
+    // as possible.
+    private static Rectangle clip(int width, int height, Rectangle r) {
+        Rectangle c = new Rectangle(r);
+
+        c.width = Math.max(1, Math.min(c.width, width));
+        c.height = Math.max(1, Math.min(c.height, height));
+        while ((long) c.width * c.height > maxPixels) {
+            c.width = Math.max(1, c.width * 9 / 10);
+            c.height = Math.max(1, c.height * 9 / 10);
+        }
+        c.x = Math.max(0, Math.min(c.x, width - c.width));
+        c.y = Math.max(0, Math.min(c.y, height - c.height));
+        return c;
+    }
+
+
+    // Moves the records from whole image to view coordinates. If 'imp' is
+    // a view and 'canMove' is set, the view is first centered on the
+    // records if they do not fit it. Returns false, leaving the records
+    // unchanged, if they do not fit the view. Ordinary images always fit.
+    static boolean fit(ImagePlus imp, List<VesicleRecord> recs, boolean canMove)
+            throws IOException {
+        VesicleView view = of(imp);
+        Rectangle r = null, b;
+        int j;
+
+        if (view == null) {
+            return true;
+        }
+        for (j = 0; j < recs.size(); j++) {
+            b = recs.get(j).getBounds();
+            if (b != null) {
+                r = r == null ? b : r.union(b);
+            }
+        }
+        if (r != null && !view.bounds.contains(r)) {
+            if (!canMove || (long) r.width * r.height > maxPixels) {
+                return false;
+            }
+            b = new Rectangle(0, 0, Math.max(r.width, Math.min(defaultSize, view.imageWidth)),
+                              Math.max(r.height, Math.min(defaultSize, view.imageHeight)));
+            b.setLocation(r.x + r.width / 2 - b.width / 2, r.y + r.height / 2 - b.height / 2);
+            move(imp, b);
+            view = of(imp);
+            if (!view.bounds.contains(r)) {
+                return false;
+            }
+        }
+        for (j = 0; j < recs.size(); j++) {
+            recs.get(j).translate(-view.bounds.x, -view.bounds.y);
+        }
+        return true;
+    }
+} // end of VesicleView
@@ -0,0 +1,199 @@
+/*
+    plugin : VesicleWriter.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Writer for the .ves profile format used by Vesicle.py.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import ij.IJ;
+
+
+/*
+ * Streams a profile in .ves format to a channel.
+ *
+ * Coordinates are formatted straight into a reusable byte buffer, so that
+ * writing a polygon does not allocate any Strings. The output is byte for
+ * byte what a PrintWriter on a FileWriter would produce, i.e. text in the
+ * platform default charset with platform line separators.
+ */
+class VesicleWriter {
+    static final int bufferSize = 1 << 16;
+    static final int maxLineLength = 64;  // "  <int>, <int>" plus line separator
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buf;
+    private final Charset charset;
+    private final byte[] newline, indent, separator, end;
+    private final boolean asciiDigits;
+    private final byte[] digits = new byte[11];
+
+
+    VesicleWriter(String path) throws IOException {
+        this(new FileOutputStream(path).getChannel());
+    }
+
+
+    VesicleWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        this.buf = ByteBuffer.allocate(bufferSize);
+        this.charset = Charset.defaultCharset();
+        this.newline = encode(System.getProperty("line.separator"));
+        this.indent = encode("  ");
+        this.separator = encode(", ");
+        this.end = encode("END");
+        // Digits and '-' can only be written as single bytes if the
+        // default charset agrees with ASCII for them (it nearly always does).
+        this.asciiDigits = Arrays.equals(encode("-0123456789"),
+                                         "-0123456789".getBytes(Charset.forName("US-ASCII")));
+    }
+
+
+    // The first line of a .ves file written by this version.
+    static String versionInfo() {
+        return String.format("# %s version %s (%s %s, %s)",
+                             VesicleVersion.title,
+                             VesicleVersion.version,
+                             VesicleVersion.month,
+                             VesicleVersion.day,
+                             VesicleVersion.year);
+    }
+
+
+    // Returns 'pixelwidth' rounded as it is written in the header, so that
+    // a profile holds the same pixel width whichever format it is saved in.
+    static double roundPixelWidth(double pixelwidth) {
+        return Double.parseDouble(IJ.d2s(pixelwidth));
+    }
+
+
+    void writeHeader(String versionInfo, String image, String id, String comment,
+                     double pixelwidth, String unit) throws IOException {
+        println(versionInfo);
+        println("IMAGE " + image);
+        println("PROFILE_ID " + id);
+        if (!comment.equals("")) {
+            println("COMMENT " + comment);
+        }
+        println("PIXELWIDTH " + IJ.d2s(pixelwidth) + " " + unit);
+    }
+
+
+    // Writes 'tag', one "  x, y" line per vertex of 'pol' and "END".
+    void writePolygon(String tag, Polygon pol) throws IOException {
+        writePolygon(tag, pol.xpoints, pol.ypoints, pol.npoints);
+    }
+
+
+    void writePolygon(String tag, int[] x, int[] y, int n) throws IOException {
+        int i;
+
+        println(tag);
+        for (i = 0; i < n; i++) {
+            if (!this.asciiDigits) {
+                println("  " + x[i] + ", " + y[i]);
+                continue;
+            }
+            if (this.buf.remaining() < maxLineLength) {
+                flush();
+            }
+            this.buf.put(this.indent);
+            putInt(x[i]);
+            this.buf.put(this.separator);
+            putInt(y[i]);
+            this.buf.put(this.newline);
+        }
+        if (this.buf.remaining() < this.end.length + this.newline.length) {
+            flush();
+        }
+        this.buf.put(this.end);
+        this.buf.put(this.newline);
+    }
+
+
+    // Writes 'tag', each of 'lines' indented and "END".
+    void writeBlock(String tag, List<String> lines) throws IOException {
+        int i;
+
+        println(tag);
+        for (i = 0; i < lines.size(); i++) {
+            put(this.indent);
+            println(lines.get(i));
+        }
+        println("END");
+    }
+
+
+    void println(String s) throws IOException {
+        put(encode(s));
+        put(this.newline);
+    }
+
+
+    void flush() throws IOException {
+        this.buf.flip();
+        while (this.buf.hasRemaining()) {
+            this.channel.write(this.buf);
+        }
+        this.buf.clear();
+    }
+
+
+    void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            this.channel.close();
+        }
+    }
+
+
+    private void put(byte[] b) throws IOException {
+        int off = 0, len;
+
+        while (off < b.length) {
+            if (!this.buf.hasRemaining()) {
+                flush();
+            }
+            len = Math.min(b.length - off, this.buf.remaining());
+            this.buf.put(b, off, len);
+            off += len;
+        }
+    }
+
+
+    // Same digits as IJ.d2s(v, 0) for an int value.
+    private void putInt(int v) {
+        long u = v;
+        int n = 0;
+
+        if (u < 0) {
+            this.buf.put((byte) '-');
+            u = -u;
+        }
+        do {
+            this.digits[n++] = (byte) ('0' + (int) (u % 10));
+            u /= 10;
+        } while (u != 0);
+        while (n > 0) {
+            this.buf.put(this.digits[--n]);
+        }
+    }
+
+
+    private byte[] encode(String s) {
+        return s.getBytes(this.charset);
+    }
+} // end of VesicleWriter
@@ -14,6 +14,11 @@
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Random;
 import ij.*;
 import ij.IJ;
@@ -23,6 +28,7 @@ import ij.io.*;
 import ij.gui.*;
 import ij.plugin.frame.*;
 import ij.measure.*;
+import ij.process.StackConverter;
 
 interface VesicleVersion {
     String title = "Vesicle";
@@ -43,6 +49,7 @@ interface VesicleOptions {
     Color randomCol = Color.yellow;
     Color holeCol = Color.red;
     Color textCol = Color.blue;
+    Color candidateCol = Color.orange;
 }
 
 
@@ -51,18 +58,36 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
     Panel panel;
     static Frame instance;
     static Frame infoFrame;
+    static Frame perfFrame;
+    TextArea perfText;
     GridBagLayout infoPanel;
     GridBagConstraints c;
     Label profile_nLabel;
+    Label activeLabel;
     Label vnLabel;
     Label pnLabel;
+    Label pinvLabel;
     Label pathnLabel;
     Label holenLabel;
+    Label simplifiedLabel;
     Label randomPlacedLabel;
+    Label candidatesLabel;
     Label commentLabel;
     Label scaleLabel;
-    VesicleProfile profile;
+    VesicleSession session;
+    VesicleProfile profile;  // the active profile of the session
     ImagePlus imp;
+    static final String[] profileFormats = {"Text (.ves)", "Binary (.vesb)"};
+    // In the order of VesicleExport.modes and VesicleExport.formats.
+    static final String[] exportModes = {"Components drawn", "Components as overlay",
+                                         "Cropped to profile"};
+    static final String[] exportFormats = {"TIFF", "ZIP compressed TIFF", "PNG"};
+    // Commands that may change the image itself rather than the overlay,
+    // by drawing the components into it or by replacing it.
+    static final List<String> imageCommands = Arrays.asList(
+        "Save profile", "Clear profile", "Save all profiles", "Open profile",
+        "Open large image...", "Move view...");
+    static final int damageMargin = 20;  // screen pixels
 
 
     public Vesicle_() {
@@ -72,7 +97,8 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
             return;
         }
         instance = this;
-        profile = new VesicleProfile();
+        session = new VesicleSession();
+        profile = session.getActive();
         IJ.register(Vesicle_.class);
         setLayout(new FlowLayout());
         setBackground(SystemColor.control);
@@ -81,7 +107,19 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
         panel.setBackground(SystemColor.control);
         panel.setFont(new Font("Helvetica", 0, 12));
         addButton("Save profile");
+        addButton("Open profile");
         addButton("Clear profile");
+        addButton("New profile");
+        addButton("Switch profile...");
+        addButton("Save all profiles");
+        panel.add(new Label(""));
+        panel.add(new Label("Project file:"));
+        addButton("Open project...");
+        addButton("Export project...");
+        panel.add(new Label(""));
+        panel.add(new Label("Large images:"));
+        addButton("Open large image...");
+        addButton("Move view...");
         panel.add(new Label(""));
         panel.add(new Label("Define selection as:"));
         addButton("Profile border");
@@ -91,6 +129,12 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
         panel.add(new Label(""));
         addButton("Place random points");
         panel.add(new Label(""));
+        panel.add(new Label("Automatic detection:"));
+        addButton("Detect vesicles...");
+        addButton("Accept candidates");
+        addButton("Reject candidates");
+        addButton("Detect gold particles...");
+        panel.add(new Label(""));
         panel.add(new Label("Delete profile components:"));
         addButton("Delete profile border");
         addButton("Delete points");
@@ -101,6 +145,7 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
         addButton("Add comment");
         addButton("Set profile n");
         addButton("VesicleOptions...");
+        addButton("Performance...");
         addButton("About...");
         add(panel);
         pack();
@@ -118,21 +163,33 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
         addStaticInfoLabel("Profile n:");
         profile_nLabel = new Label(IJ.d2s(profile.ntot, 0), Label.RIGHT);
         addVarInfoLabel(profile_nLabel);
+        addStaticInfoLabel("Active profile:");
+        activeLabel = new Label("1 of 1", Label.RIGHT);
+        addVarInfoLabel(activeLabel);
         addStaticInfoLabel("Vesicles:");
         vnLabel = new Label("0", Label.RIGHT);
         addVarInfoLabel(vnLabel);
         addStaticInfoLabel("Points:");
         pnLabel = new Label("0", Label.RIGHT);
         addVarInfoLabel(pnLabel);
+        addStaticInfoLabel("Points in vesicles:");
+        pinvLabel = new Label("0", Label.RIGHT);
+        addVarInfoLabel(pinvLabel);
         addStaticInfoLabel("Path nodes:");
         pathnLabel = new Label("0", Label.RIGHT);
         addVarInfoLabel(pathnLabel);
         addStaticInfoLabel("Holes:");
         holenLabel = new Label("0", Label.RIGHT);
         addVarInfoLabel(holenLabel);
+        addStaticInfoLabel("Last simplified:");
+        simplifiedLabel = new Label("-", Label.RIGHT);
+        addVarInfoLabel(simplifiedLabel);
         addStaticInfoLabel("Random points:");
         randomPlacedLabel = new Label("no", Label.RIGHT);
         addVarInfoLabel(randomPlacedLabel);
+        addStaticInfoLabel("Vesicle candidates:");
+        candidatesLabel = new Label("0", Label.RIGHT);
+        addVarInfoLabel(candidatesLabel);
         addStaticInfoLabel("Pixel width:");
         scaleLabel = new Label("N/D", Label.RIGHT);
         addVarInfoLabel(scaleLabel);
@@ -144,6 +201,7 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
         infoFrame.setVisible(true);
         infoFrame.setSize(instance.getSize().width, infoFrame.getSize().height);
         instance.requestFocus();
+        recoverJournals();
     }
 
     void addButton(String label) {
@@ -165,14 +223,51 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
         infoFrame.add(l);
     }
 
+    // Returns the polygon selection of the image. Freehand and traced
+    // selections are turned into polygons and, like polygons, simplified
+    // if a simplification tolerance is set; the result then replaces the
+    // selection, so that the selection is the component that is added.
     PolygonRoi getPolygonRoi(ImagePlus imp) {
         Roi roi = imp.getRoi();
-        if (roi == null || roi.getType() != Roi.POLYGON) {
+        PolygonRoi p;
+
+        if (roi == null || (roi.getType() != Roi.POLYGON && roi.getType() != Roi.FREEROI &&
+                            roi.getType() != Roi.TRACED_ROI)) {
             IJ.error("Vesicle", "Polygon selection required.");
             return null;
+        } else if (roi.getType() != Roi.POLYGON) {
+            p = simplify(new PolygonRoi(roi.getPolygon(), Roi.POLYGON), imp);
         } else {
-            return (PolygonRoi) roi;
+            p = simplify((PolygonRoi) roi, imp);
+        }
+        if (p != roi) {
+            imp.setRoi(p);
         }
+        return p;
+    }
+
+    // Simplifies 'roi' with the tolerance set in VesicleOptions (in
+    // calibrated units) and shows the node counts and the relative change
+    // in area and perimeter in the info panel.
+    PolygonRoi simplify(PolygonRoi roi, ImagePlus imp) {
+        Polygon pol, simple;
+        double tolerance, da, dp;
+
+        if (profile.simplifyTolerance <= 0) {
+            return roi;
+        }
+        tolerance = profile.simplifyTolerance / imp.getCalibration().pixelWidth;
+        pol = roi.getPolygon();
+        simple = VesicleSimplifier.simplify(pol, tolerance);
+        if (simple == pol) {
+            simplifiedLabel.setText(pol.npoints + " nodes, unchanged");
+            return roi;
+        }
+        da = 100 * (VesicleMetrics.area(simple) / VesicleMetrics.area(pol) - 1);
+        dp = 100 * (VesicleMetrics.perimeter(simple) / VesicleMetrics.perimeter(pol) - 1);
+        simplifiedLabel.setText(pol.npoints + " -> " + simple.npoints + " nodes, area " +
+                                IJ.d2s(da, 2) + "%, perim. " + IJ.d2s(dp, 2) + "%");
+        return new PolygonRoi(simple, Roi.POLYGON);
     }
 
     PolygonRoi getPointRoi(ImagePlus imp) {
@@ -185,20 +280,244 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
         }
     }
 
+    // Shows the timings of commands and their phases (see VesicleTimer) in a
+    // frame next to the info panel, refreshed as phases are timed.
+    void showPerformancePanel() {
+        Panel buttons;
+        Button b;
+
+        if (perfFrame != null) {
+            perfFrame.toFront();
+            return;
+        }
+        perfFrame = new Frame("Performance");
+        perfFrame.setBackground(SystemColor.control);
+        perfFrame.setIconImage(instance.getIconImage());
+        perfText = new TextArea(VesicleTimer.toTable(), 16, 88, TextArea.SCROLLBARS_BOTH);
+        perfText.setFont(new Font("Monospaced", 0, 11));
+        perfText.setEditable(false);
+        perfFrame.add(perfText, BorderLayout.CENTER);
+        buttons = new Panel(new FlowLayout(FlowLayout.RIGHT));
+        b = new Button("Reset");
+        b.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                VesicleTimer.reset();
+                perfText.setText(VesicleTimer.toTable());
+            }
+        });
+        buttons.add(b);
+        b = new Button("Save CSV...");
+        b.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                SaveDialog sd = new SaveDialog("Save timings", "vesicle-timings", ".csv");
+                if (sd.getFileName() == null) {
+                    return;
+                }
+                try {
+                    VesicleTimer.writeCSV(sd.getDirectory() + sd.getFileName());
+                } catch (IOException ex) {
+                    IJ.error("Vesicle", "Could not save timings:\n" + ex);
+                }
+            }
+        });
+        buttons.add(b);
+        perfFrame.add(buttons, BorderLayout.SOUTH);
+        perfFrame.addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                closePerformancePanel();
+            }
+        });
+        VesicleTimer.setListener(new Runnable() {
+            public void run() {
+                if (perfText != null) {
+                    perfText.setText(VesicleTimer.toTable());
+                }
+            }
+        });
+        perfFrame.pack();
+        perfFrame.setLocation(infoFrame.getLocation().x + infoFrame.getSize().width + 3,
+                              infoFrame.getLocation().y);
+        perfFrame.setVisible(true);
+    }
+
+    void closePerformancePanel() {
+        if (perfFrame != null) {
+            VesicleTimer.setListener(null);
+            perfFrame.dispose();
+            perfFrame = null;
+            perfText = null;
+        }
+    }
+
+    // Returns the area selection of the image, or null if there is none.
+    Roi getAreaRoi(ImagePlus imp) {
+        Roi roi = imp.getRoi();
+
+        return roi != null && roi.isArea() ? roi : null;
+    }
+
+    // Asks for the vesicle size and proposes vesicle candidates inside the
+    // profile border, outside holes and vesicles already defined. Previous
+    // candidates are replaced.
+    void detectVesicles(ImagePlus imp) {
+        ArrayList<Polygon> exclude = new ArrayList<Polygon>();
+        List<VesicleDetector.Candidate> found;
+        Calibration cal = imp.getCalibration();
+        VesicleDetector detector;
+        GenericDialog gd;
+        long t0;
+        int j;
+
+        if (profile.border == null) {
+            IJ.error("Vesicle", "Profile border must be defined before\n" +
+                     "vesicles can be detected.");
+            return;
+        }
+        if (profile.detectMinDiameter <= 0 || profile.detectMaxDiameter <= 0) {
+            // Synaptic vesicles are some 30 to 60 nm across.
+            if (cal.getUnit().equals("nm")) {
+                profile.detectMinDiameter = 30;
+                profile.detectMaxDiameter = 60;
+            } else if (cal.getUnit().equals("micron")) {
+                profile.detectMinDiameter = 0.03;
+                profile.detectMaxDiameter = 0.06;
+            } else {
+                profile.detectMinDiameter = 12 * cal.pixelWidth;
+                profile.detectMaxDiameter = 30 * cal.pixelWidth;
+            }
+        }
+        gd = new GenericDialog("Detect vesicles");
+        gd.addNumericField("Minimum diameter (" + cal.getUnits() + "):",
+                           profile.detectMinDiameter, 2);
+        gd.addNumericField("Maximum diameter (" + cal.getUnits() + "):",
+                           profile.detectMaxDiameter, 2);
+        gd.addNumericField("Minimum membrane coverage (%):",
+                           profile.detectCoverage * 100, 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        profile.detectMinDiameter = gd.getNextNumber();
+        profile.detectMaxDiameter = gd.getNextNumber();
+        profile.detectCoverage = Math.max(0.05, Math.min(1, gd.getNextNumber() / 100));
+        if (!(profile.detectMinDiameter > 0) ||
+            !(profile.detectMaxDiameter >= profile.detectMinDiameter)) {
+            IJ.error("Vesicle", "Invalid vesicle diameters.");
+            profile.detectMinDiameter = 0;
+            return;
+        }
+        detector = new VesicleDetector(
+            (int) Math.floor(profile.detectMinDiameter / cal.pixelWidth / 2),
+            (int) Math.ceil(profile.detectMaxDiameter / cal.pixelWidth / 2),
+            profile.detectCoverage);
+        for (j = 0; j < profile.holes.size(); j++) {
+            exclude.add(profile.holes.get(j).getPolygon());
+        }
+        for (j = 0; j < profile.vesicles.size(); j++) {
+            exclude.add(profile.vesicles.get(j).getPolygon());
+        }
+        IJ.showStatus("Detecting vesicles...");
+        t0 = VesicleTimer.start();
+        try {
+            found = detector.detect(imp.getProcessor(), profile.border.getPolygon(), exclude);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            VesicleTimer.stop("Vesicle detection", t0);
+        }
+        profile.rejectCandidates(null);
+        for (j = 0; j < found.size(); j++) {
+            profile.addCandidate(found.get(j).toPolygon());
+        }
+        if (found.size() == 0) {
+            IJ.showMessage("Vesicle", "No vesicle candidates found.");
+        }
+    }
+
+    // Asks for the particle size and sets the points to the dark round
+    // particles found inside the profile border and outside holes.
+    void detectParticles(ImagePlus imp) {
+        ArrayList<Polygon> exclude = new ArrayList<Polygon>();
+        Calibration cal = imp.getCalibration();
+        GenericDialog gd;
+        PointRoi roi;
+        Polygon found;
+        long t0;
+        int j;
+
+        if (profile.border == null) {
+            IJ.error("Vesicle", "Profile border must be defined before\n" +
+                     "particles can be detected.");
+            return;
+        }
+        if (profile.particleDiameter <= 0) {
+            // Immunogold is typically 5 to 15 nm.
+            if (cal.getUnit().equals("nm")) {
+                profile.particleDiameter = 10;
+            } else if (cal.getUnit().equals("micron")) {
+                profile.particleDiameter = 0.01;
+            } else {
+                profile.particleDiameter = 8 * cal.pixelWidth;
+            }
+        }
+        gd = new GenericDialog("Detect gold particles");
+        gd.addNumericField("Particle diameter (" + cal.getUnits() + "):",
+                           profile.particleDiameter, 2);
+        gd.addNumericField("Darkness (SD below mean):", profile.particleDarkness, 1);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        profile.particleDiameter = gd.getNextNumber();
+        profile.particleDarkness = gd.getNextNumber();
+        if (!(profile.particleDiameter > 0) || !(profile.particleDarkness > 0)) {
+            IJ.error("Vesicle", "Invalid particle diameter or darkness.");
+            profile.particleDiameter = 0;
+            profile.particleDarkness = 3;
+            return;
+        }
+        for (j = 0; j < profile.holes.size(); j++) {
+            exclude.add(profile.holes.get(j).getPolygon());
+        }
+        IJ.showStatus("Detecting particles...");
+        t0 = VesicleTimer.start();
+        try {
+            found = new VesicleParticles(profile.particleDiameter / cal.pixelWidth,
+                                         profile.particleDarkness)
+                        .detect(imp.getProcessor(), profile.border.getPolygon(), exclude);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            VesicleTimer.stop("Particle detection", t0);
+        }
+        if (found.npoints == 0) {
+            IJ.showMessage("Vesicle", "No particles found.");
+            return;
+        }
+        roi = new PointRoi(found);
+        profile.addComponent(roi, "points", pointCol);
+        profile.dirty = true;
+    }
+
     void updateInfoPanel() {
         double pixelwidth;
         String unit;
 
-        profile_nLabel.setText(IJ.d2s(profile.ntot, 0));
+        profile_nLabel.setText(IJ.d2s(profile.ntot + profile.savingTot, 0));
+        activeLabel.setText(session.getActiveNumber() + " of " + session.size());
         vnLabel.setText(IJ.d2s(profile.getNum("vesicle"), 0));
         pnLabel.setText(IJ.d2s(profile.getNumPoints("points"), 0));
+        pinvLabel.setText(IJ.d2s(profile.getNumPointsInVesicles(), 0));
         pathnLabel.setText(IJ.d2s(profile.getNumPoints("profile border"), 0));
         holenLabel.setText(IJ.d2s(profile.getNum("hole"), 0));
-        if (profile.overlay.getIndex("random points") != -1) {
+        if (profile.randomPoints != null) {
             randomPlacedLabel.setText("yes");
         } else {
             randomPlacedLabel.setText("no");
         }
+        candidatesLabel.setText(IJ.d2s(profile.candidates.size(), 0));
         Calibration c = imp.getCalibration();
         if (c.getUnit().equals("micron")) {
             pixelwidth = c.pixelWidth * 1000;
@@ -211,6 +530,414 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
         commentLabel.setText(profile.comment);
     }
 
+    // Asks for a .ves file, or a profile in a project file, and loads it
+    // into the profile. The profile is placed on the open image with the
+    // title stored in the file; if there is none, the image is opened from
+    // the directory of the file. Returns that image, or null if no profile
+    // was loaded.
+    ImagePlus openProfile() {
+        VesicleRecord rec;
+        ImagePlus profileImp;
+        File file;
+
+        OpenDialog od = new OpenDialog("Open profile", "");
+        if (od.getFileName() == null) {
+            return null;
+        }
+        file = new File(od.getDirectory(), od.getFileName());
+        try {
+            if (VesicleProject.isProject(file)) {
+                rec = readFromProject(file);
+                if (rec == null) {
+                    return null;
+                }
+            } else {
+                rec = VesicleReader.read(file.getPath());
+            }
+        } catch (IOException e) {
+            IJ.error("Vesicle", "Could not read " + od.getFileName() + ":\n" + e.getMessage());
+            return null;
+        }
+        profileImp = findImage(rec.image, new File(od.getDirectory(), rec.image));
+        if (profileImp == null) {
+            IJ.error("Vesicle", "Image " + rec.image + " not found.\n" +
+                     "Please open it before opening the profile.");
+            return null;
+        }
+        // The active profile is replaced, as the user has agreed to; other
+        // unsaved profiles on another image keep their image and journal.
+        profile = session.getActive();
+        if (profile.dirty) {
+            profile.clear();
+        }
+        if (session.isDirty() && !session.isSameImage(profileImp)) {
+            return null;
+        }
+        if (!fitView(profileImp, Collections.singletonList(rec))) {
+            return null;
+        }
+        profile = session.getActive();
+        session.attachJournal(profileImp);
+        profile.load(rec, profileImp);
+        showSlice(profileImp, profile);
+        IJ.showStatus("Profile " + rec.id + " opened.");
+        return profileImp;
+    }
+
+    // Asks for one of the profiles in project 'file' and reads it. The
+    // profiles of the current image are offered first. Returns null if none
+    // was chosen.
+    VesicleRecord readFromProject(File file) throws IOException {
+        VesicleProject project = profile.project;
+        List<VesicleProject.Entry> entries;
+        List<String> images;
+        String[] choices;
+        GenericDialog gd;
+        String title;
+        boolean own = false;
+        int j;
+
+        if (project == null || !project.file.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+            project = new VesicleProject(file, false);
+            own = true;
+        }
+        try {
+            images = project.getImages();
+            if (images.size() == 0) {
+                IJ.error("Vesicle", file.getName() + " holds no profiles.");
+                return null;
+            }
+            title = imp != null && images.contains(imp.getTitle()) ? imp.getTitle()
+                                                                   : images.get(0);
+            if (images.size() > 1) {
+                gd = new GenericDialog("Open profile");
+                gd.addChoice("Image:", images.toArray(new String[images.size()]), title);
+                gd.showDialog();
+                if (gd.wasCanceled()) {
+                    return null;
+                }
+                title = gd.getNextChoice();
+            }
+            entries = project.list(title);
+            j = 0;
+            if (entries.size() > 1) {
+                choices = new String[entries.size()];
+                for (j = 0; j < entries.size(); j++) {
+                    choices[j] = entries.get(j).id +
+                                 (entries.get(j).slice > 0 ? ", slice " + entries.get(j).slice : "") +
+                                 " (" + entries.get(j).name + ")";
+                }
+                gd = new GenericDialog("Open profile");
+                gd.addMessage(title);
+                gd.addChoice("Profile ID:", choices, choices[0]);
+                gd.showDialog();
+                if (gd.wasCanceled()) {
+                    return null;
+                }
+                j = gd.getNextChoiceIndex();
+            }
+            return project.read(entries.get(j));
+        } finally {
+            if (own) {
+                project.close();
+            }
+        }
+    }
+
+    // Asks for a project file to save profiles to instead of individual
+    // files or, if one is in use, whether to go back to individual files.
+    void openProject() {
+        VesicleProject project = profile.project;
+        SaveDialog sd;
+
+        if (project != null) {
+            YesNoCancelDialog d = new YesNoCancelDialog(this, "Vesicle",
+                "Profiles are saved to " + project.file.getName() + ".\n" +
+                "Close it and save profiles to files of their own?");
+            if (!d.yesPressed()) {
+                return;
+            }
+            VesicleSaver.finish();
+            project.close();
+            profile.project = null;
+            session.shareSettings();
+            IJ.showStatus(project.file.getName() + " closed.");
+            return;
+        }
+        // An existing project is added to, never overwritten.
+        sd = new SaveDialog("Open or create project", "profiles", VesicleProject.extension);
+        if (sd.getFileName() == null) {
+            return;
+        }
+        try {
+            project = new VesicleProject(new File(sd.getDirectory(), sd.getFileName()), true);
+        } catch (IOException e) {
+            IJ.error("Vesicle", "Could not open " + sd.getFileName() + ":\n" + e.getMessage());
+            return;
+        }
+        profile.project = project;
+        session.shareSettings();
+        IJ.showStatus(project.size() + " profile(s) in " + project.file.getName() + ".");
+    }
+
+    // Writes the profiles of a project file (the one in use, or one asked
+    // for) to files of their own, as if they had been saved without it.
+    void exportProject() {
+        VesicleProject project = profile.project;
+        boolean own = false;
+        String dir;
+        int n;
+
+        try {
+            if (project == null) {
+                OpenDialog od = new OpenDialog("Export project", "");
+                if (od.getFileName() == null) {
+                    return;
+                }
+                project = new VesicleProject(new File(od.getDirectory(), od.getFileName()),
+                                             false);
+                own = true;
+            } else {
+                // Profiles still being saved should be exported too.
+                VesicleSaver.finish();
+            }
+            dir = new DirectoryChooser("Export profiles to").getDirectory();
+            if (dir == null) {
+                return;
+            }
+            n = project.export(new File(dir));
+            IJ.showStatus(n + " profile(s) exported.");
+        } catch (IOException e) {
+            IJ.error("Vesicle", "Could not export the project:\n" + e.getMessage());
+        } finally {
+            if (own && project != null) {
+                project.close();
+            }
+        }
+    }
+
+    // Returns the open image titled 'title' or, if there is none, opens and
+    // shows 'file', as a view if it is too large to open whole. Returns null
+    // if neither is possible.
+    ImagePlus findImage(String title, File file) {
+        ImagePlus found = null;
+        VesicleTiffSource source;
+        int[] ids;
+        int i;
+
+        ids = WindowManager.getIDList();
+        for (i = 0; ids != null && i < ids.length; i++) {
+            if (WindowManager.getImage(ids[i]).getTitle().equals(title)) {
+                return WindowManager.getImage(ids[i]);
+            }
+        }
+        if (file != null && (source = VesicleView.openIfLarge(file)) != null) {
+            try {
+                found = VesicleView.open(source, new Rectangle(0, 0, VesicleView.defaultSize,
+                                                               VesicleView.defaultSize));
+            } catch (IOException e) {
+                IJ.error("Vesicle", "Could not read " + file.getName() + ":\n" +
+                         e.getMessage());
+            } finally {
+                source.close();
+            }
+            if (found != null) {
+                found.show();
+            }
+        } else if (file != null && file.isFile()) {
+            found = IJ.openImage(file.getPath());
+            if (found != null) {
+                found.show();
+            }
+        }
+        return found;
+    }
+
+    // Offers to recover the unsaved profiles in the autosave journals left
+    // behind by an earlier session, e.g. after a crash.
+    void recoverJournals() {
+        VesicleJournal.Contents contents;
+        ImagePlus journalImp;
+        File[] files = VesicleJournal.list();
+        int i, j;
+
+        for (i = 0; i < files.length; i++) {
+            try {
+                contents = VesicleJournal.read(files[i]);
+            } catch (IOException e) {
+                IJ.log("Vesicle: could not read autosave journal " + files[i] + ": " + e);
+                continue;
+            }
+            if (contents.profiles.size() == 0) {
+                files[i].delete();
+                continue;
+            }
+            YesNoCancelDialog d = new YesNoCancelDialog(this, "Vesicle",
+                contents.profiles.size() + " unsaved profile(s) of " + contents.image +
+                "\nwere found. Recover them?\n(No deletes them, Cancel keeps them for later.)");
+            if (d.cancelPressed()) {
+                continue;
+            }
+            if (!d.yesPressed()) {
+                files[i].delete();
+                continue;
+            }
+            journalImp = findImage(contents.image, contents.path.equals("")
+                                                   ? null : new File(contents.path));
+            if (journalImp == null) {
+                IJ.error("Vesicle", "Image " + contents.image + " not found.\n" +
+                         "Please open it and start Vesicle again to recover\n" +
+                         "its profiles.");
+                continue;
+            }
+            if (session.isDirty() && !session.isSameImage(journalImp)) {
+                continue;
+            }
+            for (j = 0; j < contents.profiles.size(); j++) {
+                contents.profiles.get(j).translate(contents.originX, contents.originY);
+            }
+            if (!fitView(journalImp, contents.profiles)) {
+                continue;
+            }
+            try {
+                session.recover(contents, journalImp);
+                files[i].delete();
+            } catch (IOException e) {
+                IJ.log("Vesicle: could not write autosave journal: " + e);
+            }
+            imp = journalImp;
+            imp.setOverlay(session.getOverlay());
+            profile = session.getActive();
+            showSlice(imp, profile);
+            updateInfoPanel();
+            IJ.showStatus(contents.profiles.size() + " profile(s) recovered.");
+        }
+    }
+
+    // Asks for a large TIFF and opens a view of its top left corner.
+    ImagePlus openLargeImage() {
+        VesicleTiffSource source;
+        ImagePlus viewImp;
+
+        OpenDialog od = new OpenDialog("Open large image", "");
+        if (od.getFileName() == null) {
+            return null;
+        }
+        try {
+            source = new VesicleTiffSource(new File(od.getDirectory(), od.getFileName()));
+        } catch (IOException e) {
+            IJ.error("Vesicle", "Could not open " + od.getFileName() + ":\n" + e.getMessage());
+            return null;
+        }
+        try {
+            viewImp = VesicleView.open(source, new Rectangle(0, 0, VesicleView.defaultSize,
+                                                             VesicleView.defaultSize));
+        } catch (IOException e) {
+            IJ.error("Vesicle", "Could not read " + od.getFileName() + ":\n" + e.getMessage());
+            return null;
+        } finally {
+            source.close();
+        }
+        viewImp.show();
+        return viewImp;
+    }
+
+    // Asks for the part of the large image to show. Profiles must be saved
+    // or cleared first, as the components are lost with the view.
+    void moveView(ImagePlus imp) {
+        VesicleView view = VesicleView.of(imp);
+        GenericDialog gd;
+        Rectangle r;
+
+        if (view == null) {
+            IJ.error("Vesicle", "This image is not a view of a large image.\n" +
+                     "Use 'Open large image...' to open one.");
+            return;
+        }
+        if (session.isDirty()) {
+            IJ.error("Vesicle", "Please save or clear all profiles\n" +
+                     "before moving the view.");
+            return;
+        }
+        gd = new GenericDialog("Move view");
+        gd.addMessage("Image size: " + view.imageWidth + " x " + view.imageHeight + " pixels");
+        gd.addNumericField("Left (pixels):", view.bounds.x, 0);
+        gd.addNumericField("Top (pixels):", view.bounds.y, 0);
+        gd.addNumericField("Width (pixels):", view.bounds.width, 0);
+        gd.addNumericField("Height (pixels):", view.bounds.height, 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            return;
+        }
+        r = new Rectangle((int) gd.getNextNumber(), (int) gd.getNextNumber(),
+                          (int) gd.getNextNumber(), (int) gd.getNextNumber());
+        try {
+            VesicleView.move(imp, r);
+        } catch (IOException e) {
+            IJ.error("Vesicle", "Could not read " + view.file.getName() + ":\n" +
+                     e.getMessage());
+            return;
+        }
+        session.clear();
+        IJ.showStatus("View moved to " + VesicleView.of(imp).bounds.x + ", " +
+                      VesicleView.of(imp).bounds.y + ".");
+    }
+
+    // Moves profiles read from file or journal from whole image to view
+    // coordinates, if 'viewImp' is a view. The view is moved to the profiles
+    // if needed and no profile has unsaved changes. Returns false if the
+    // profiles cannot be shown.
+    boolean fitView(ImagePlus viewImp, List<VesicleRecord> recs) {
+        VesicleView view = VesicleView.of(viewImp);
+
+        try {
+            if (!VesicleView.fit(viewImp, recs, !session.isDirty())) {
+                IJ.error("Vesicle", "The profile does not fit in the view of " +
+                         viewImp.getTitle() + ".\nPlease save or clear all profiles " +
+                         "and try again.");
+                return false;
+            }
+        } catch (IOException e) {
+            IJ.error("Vesicle", "Could not read " + viewImp.getTitle() + ":\n" +
+                     e.getMessage());
+            return false;
+        }
+        if (view != null && VesicleView.of(viewImp) != view) {
+            session.clear();
+        }
+        return true;
+    }
+
+    // Shows the slice of stack 'imp' that profile 'p' is on.
+    void showSlice(ImagePlus imp, VesicleProfile p) {
+        if (p.slice > 0 && p.slice <= imp.getStackSize() && p.imgID == imp.getID()) {
+            imp.setSlice(p.slice);
+        }
+    }
+
+    // Shows the components of all profiles on 'imp'. Returns true if the
+    // overlay was not shown on 'imp' yet, in which case ImageJ repaints the
+    // whole image.
+    boolean showOverlay(ImagePlus imp) {
+        Overlay overlay = session.getOverlay();
+
+        if (imp.getOverlay() == overlay) {
+            return false;
+        }
+        imp.setOverlay(overlay);
+        return true;
+    }
+
+    // Repaints the area 'r' of the image, with a margin for point markers
+    // and the line width, which do not scale with the magnification.
+    void drawDamaged(ImagePlus imp, Rectangle r) {
+        ImageCanvas ic = imp.getCanvas();
+        double mag = ic == null ? 1 : ic.getMagnification();
+        int margin = (int) Math.ceil(damageMargin / mag);
+
+        imp.draw(r.x - margin, r.y - margin, r.width + 2 * margin, r.height + 2 * margin);
+    }
+
     public boolean isImage(ImagePlus imp) {
         if (imp == null) {
             IJ.beep();
@@ -220,11 +947,25 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
         return true;
     }
 
+    // Runs the command, timing it as a whole.
     public void actionPerformed(ActionEvent e) {
+        long t0 = VesicleTimer.start();
+
+        try {
+            runCommand(e);
+        } finally {
+            VesicleTimer.stop("Command: " + e.getActionCommand(), t0);
+        }
+    }
+
+    void runCommand(ActionEvent e) {
         PolygonRoi p;
         Polygon randomPol;
         PointRoi randomRoi;
-        int i, x, y;
+        VesicleSampler sampler;
+        Rectangle damaged;
+        boolean redraw, installed;
+        long seed, t0;
         String s;
 
         String command = e.getActionCommand();
@@ -232,9 +973,54 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
             return;
         }
         imp = WindowManager.getCurrentImage();
-        imp.setOverlay(profile.overlay);
-        if (imp != null && imp.getType() != ImagePlus.COLOR_RGB) {
-            imp.setProcessor(imp.getTitle(), imp.getProcessor().convertToRGB());
+        profile = session.getActive();
+        if (command.equals("Open project...")) {
+            openProject();
+            return;
+        }
+        if (command.equals("Export project...")) {
+            exportProject();
+            return;
+        }
+        // A profile may be opened without an open image; its image is then
+        // opened too.
+        if (command.equals("Open profile")) {
+            if (profile.dirty) {
+                YesNoCancelDialog d = new YesNoCancelDialog(this,
+                    "Vesicle", "Discard current\nprofile?");
+                if (!d.yesPressed()) {
+                    return;
+                }
+            }
+            imp = openProfile();
+            if (imp == null) {
+                return;
+            }
+        }
+        if (command.equals("Open large image...")) {
+            imp = openLargeImage();
+            if (imp == null) {
+                return;
+            }
+        }
+        if (!isImage(imp)) {
+            return;
+        }
+        // Edits may have been made on any slice or image since the last
+        // command.
+        session.checkEdited();
+        // In a stack, the active profile is the one on the current slice.
+        session.followSlice(imp);
+        profile = session.getActive();
+        redraw = imageCommands.contains(command);
+        t0 = VesicleTimer.start();
+        showOverlay(imp);
+        VesicleTimer.stop("Overlay update", t0);
+        if (!profile.nativeDepth && imp.getType() != ImagePlus.COLOR_RGB) {
+            t0 = VesicleTimer.start();
+            profile.convertToRGB(imp);
+            VesicleTimer.stop("RGB conversion", t0);
+            redraw = true;
         }
         if (command.equals("Save profile")) {
             if (!isImage(imp)) {
@@ -243,9 +1029,9 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
             if (!profile.dirty) {
                 IJ.showMessage("Nothing to save.");
             } else {
-                boolean saved = profile.save(imp);
+                boolean saved = profile.save(imp, session);
                 if (saved) {
-                    profile.clear();
+                    session.discardActive();
                 }
             }
         }
@@ -257,94 +1043,159 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
                 YesNoCancelDialog d = new YesNoCancelDialog(imp.getWindow(),
                     "Vesicle", "Save current\nprofile?");
                 if (d.yesPressed()) {
-                    profile.dirty = !profile.save(imp);
+                    profile.dirty = !profile.save(imp, session);
                 } else if (!d.cancelPressed()) {
                     profile.dirty = false;
                 }
             }
             if (!profile.dirty) {
-                profile.clear();
+                session.discardActive();
                 IJ.showStatus("Profile cleared.");
             }
         }
+        if (command.equals("Move view...")) {
+            moveView(imp);
+        }
+        if (command.equals("New profile")) {
+            if (!isImage(imp) || !session.isSameImage(imp)) {
+                return;
+            }
+            profile = session.add(imp);
+            IJ.showStatus("Profile " + session.getActiveNumber() + " added.");
+        }
+        if (command.equals("Switch profile...")) {
+            String[] desc = session.getDescriptions();
+            GenericDialog gd = new GenericDialog("Switch profile");
+            gd.addChoice("Active profile:", desc, desc[session.getActiveNumber() - 1]);
+            gd.showDialog();
+            if (gd.wasCanceled()) {
+                return;
+            }
+            session.select(gd.getNextChoiceIndex() + 1);
+            showSlice(imp, session.getActive());
+        }
+        if (command.equals("Save all profiles")) {
+            if (!isImage(imp) || !session.isSameImage(imp)) {
+                return;
+            }
+            if (!session.isDirty()) {
+                IJ.showMessage("Nothing to save.");
+            } else {
+                session.saveAll(imp);
+            }
+        }
         if (command.equals("Vesicle")) {
-            if (!profile.isSameImage(imp)) {
+            if (!session.isSameImage(imp)) {
                 return;
             }
             if ((p = getPolygonRoi(imp)) != null) {
-                p.setName("vesicle");
-                p.setStrokeColor(vesicleCol);
-                profile.overlay.add(p);
+                profile.addComponent(p, "vesicle", vesicleCol);
                 profile.dirty = true;
             }
         }
         if (command.equals("Points")) {
-            if (!isImage(imp) || !profile.isSameImage(imp) ||
+            if (!isImage(imp) || !session.isSameImage(imp) ||
                 profile.isDefined("points", "Points")) {
                 return;
             }
             if ((p = getPointRoi(imp)) != null) {
-                p.setName("points");
-                p.setStrokeColor(pointCol);
-                profile.overlay.add(p);
+                profile.addComponent(p, "points", pointCol);
                 profile.dirty = true;
             }
         }
         if (command.equals("Profile border")) {
-            if (!isImage(imp) || !profile.isSameImage(imp) ||
+            if (!isImage(imp) || !session.isSameImage(imp) ||
                 profile.isDefined("profile border", "Profile border")) {
                 return;
             }
             if ((p = getPolygonRoi(imp)) != null) {
-                p.setName("profile border");
-                p.setStrokeColor(profileCol);
-                profile.overlay.add(p);
+                profile.addComponent(p, "profile border", profileCol);
                 profile.dirty = true;
             }
         }
         if (command.equals("Hole")) {
-            if (!isImage(imp) || !profile.isSameImage(imp)) {
+            if (!isImage(imp) || !session.isSameImage(imp)) {
                 return;
             }
             if ((p = getPolygonRoi(imp)) != null) {
-                p.setName("hole");
-                p.setStrokeColor(holeCol);
-                profile.overlay.add(p);
+                profile.addComponent(p, "hole", holeCol);
                 profile.dirty = true;
             }
         }
         if (command.equals("Place random points")) {
-            if (!isImage(imp) || !profile.isSameImage(imp) ||
-                profile.overlay.getIndex("random points") != -1) {
+            if (!isImage(imp) || !session.isSameImage(imp) ||
+                profile.randomPoints != null) {
                 return;
             }
-            Random rnd = new Random();
-            randomPol = new Polygon();
-            for (i = 0; i < profile.randompn; i++) {
-                x = rnd.nextInt(imp.getWidth() - 1) + 1;
-                y = rnd.nextInt(imp.getHeight() - 1) + 1;
-                randomPol.addPoint(x, y);
+            // Without a fixed seed a random one is drawn, so that the
+            // placement recorded in the .ves header can still be reproduced.
+            seed = profile.randomSeed == 0 ? new Random().nextLong()
+                                           : profile.randomSeed;
+            if (profile.randomInside) {
+                if (profile.border == null) {
+                    IJ.error("Vesicle", "Profile border must be defined before\n" +
+                             "random points can be placed inside it.");
+                    return;
+                }
+                sampler = new VesicleSampler(profile.border, profile.holes);
+            } else {
+                sampler = new VesicleSampler(new Rectangle(1, 1, imp.getWidth() - 1,
+                                                           imp.getHeight() - 1));
+            }
+            randomPol = sampler.sample(profile.randompn, profile.randomStrategy, seed);
+            if (randomPol == null) {
+                IJ.error("Vesicle", "The profile border encloses no pixels\n" +
+                         "outside holes.");
+                return;
             }
+            profile.placedStrategy = VesicleSampler.strategies[profile.randomStrategy];
+            profile.placedRegion = profile.randomInside ? "profile" : "image";
+            profile.placedSeed = seed;
             randomRoi = new PointRoi(randomPol);
             randomRoi.setHideLabels(true);
-            randomRoi.setName("random points");
-            randomRoi.setStrokeColor(randomCol);
-            profile.overlay.add(randomRoi);
+            profile.addComponent(randomRoi, "random points", randomCol);
+        }
+        if (command.equals("Detect vesicles...")) {
+            if (!isImage(imp) || !session.isSameImage(imp)) {
+                return;
+            }
+            detectVesicles(imp);
+        }
+        if (command.equals("Detect gold particles...")) {
+            if (!isImage(imp) || !session.isSameImage(imp) ||
+                profile.isDefined("points", "Points")) {
+                return;
+            }
+            detectParticles(imp);
+        }
+        if (command.equals("Accept candidates")) {
+            if (!isImage(imp) || !session.isSameImage(imp)) {
+                return;
+            }
+            if (profile.acceptCandidates(getAreaRoi(imp)) > 0) {
+                profile.dirty = true;
+            }
+        }
+        if (command.equals("Reject candidates")) {
+            if (!isImage(imp)) {
+                return;
+            }
+            profile.rejectCandidates(getAreaRoi(imp));
         }
         if (command.equals("Delete profile border")) {
-            if (!isImage(imp) || !profile.isSameImage(imp)) {
+            if (!isImage(imp) || !session.isSameImage(imp)) {
                 return;
             }
             profile.deleteNamedComponent(imp, "profile border");
         }
         if (command.equals("Delete points")) {
-            if (!isImage(imp) || !profile.isSameImage(imp)) {
+            if (!isImage(imp) || !session.isSameImage(imp)) {
                 return;
             }
             profile.deleteNamedComponent(imp, "points");
         }
         if (command.equals("Delete random points")) {
-            if (!isImage(imp) || !profile.isSameImage(imp)) {
+            if (!isImage(imp) || !session.isSameImage(imp)) {
                 return;
             }
             profile.deleteNamedComponent(imp, "random points");
@@ -355,13 +1206,13 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
             }
         }
         if (command.equals("Set profile n")) {
-            s = IJ.getString("Set profile n", IJ.d2s(profile.ntot, 0));
-            profile.ntot = java.lang.Integer.parseInt(s);
+            s = IJ.getString("Set profile n", IJ.d2s(profile.ntot + profile.savingTot, 0));
+            profile.ntot = java.lang.Integer.parseInt(s) - profile.savingTot;
         }
         if (command.equals("Add comment")) {
             s = IJ.getString("Comment: ", profile.comment);
             if (!s.equals("")) {
-                profile.comment = s;
+                profile.setComment(s);
                 profile.dirty = true;
             }
         }
@@ -370,15 +1221,50 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
             gd.setInsets(0, 0, 0);
             gd.addMessage("Random particles:");
             gd.addNumericField("Random particle n:", profile.randompn, 0);
+            gd.addChoice("Placement strategy:", VesicleSampler.strategies,
+                         VesicleSampler.strategies[profile.randomStrategy]);
+            gd.addCheckbox("Place inside profile border only", profile.randomInside);
+            gd.addNumericField("Random seed (0 = none):", profile.randomSeed, 0);
+            gd.addMessage("Tracing:");
+            gd.addNumericField("Simplification tolerance (" +
+                               imp.getCalibration().getUnits() + ", 0 = none):",
+                               profile.simplifyTolerance, 2);
+            gd.addMessage("Saving:");
+            gd.addChoice("Profile format:", profileFormats,
+                         profileFormats[profile.binaryFormat ? 1 : 0]);
+            gd.addCheckbox("Save geometry metrics", profile.saveMetrics);
+            gd.addCheckbox("Save point-vesicle association", profile.saveAssociation);
+            gd.addMessage("Image:");
+            gd.addCheckbox("Keep native bit depth (overlay only)", profile.nativeDepth);
+            gd.addChoice("Analyzed image:", exportModes, exportModes[profile.exportMode]);
+            gd.addChoice("Image format:", exportFormats, exportFormats[profile.exportFormat]);
+            gd.addNumericField("Crop margin (pixels):", profile.exportMargin, 0);
             gd.showDialog();
             if (gd.wasCanceled())
                 return;
             profile.randompn = (int) gd.getNextNumber();
+            profile.randomStrategy = gd.getNextChoiceIndex();
+            profile.randomInside = gd.getNextBoolean();
+            profile.randomSeed = (long) gd.getNextNumber();
+            profile.simplifyTolerance = Math.max(0, gd.getNextNumber());
+            if (profile.simplifyTolerance == 0) {
+                simplifiedLabel.setText("-");
+            }
+            profile.binaryFormat = gd.getNextChoiceIndex() == 1;
+            profile.saveMetrics = gd.getNextBoolean();
+            profile.saveAssociation = gd.getNextBoolean();
+            profile.nativeDepth = gd.getNextBoolean();
+            profile.exportMode = gd.getNextChoiceIndex();
+            profile.exportFormat = gd.getNextChoiceIndex();
+            profile.exportMargin = Math.max(0, (int) gd.getNextNumber());
             if (profile.randompn <=0) {
                 IJ.error("Random point n must be larger than 0. Reverting to default value (40).");
                 profile.randompn = 40;
             }
         }
+        if (command.equals("Performance...")) {
+            showPerformancePanel();
+        }
         if (command.equals("About...")) {
             String aboutHtml = String.format("<html><p><strong>%s" +
                                             "</strong></p><br />" +
@@ -400,14 +1286,37 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
                                              VesicleVersion.homepage);
             new HTMLDialog(VesicleVersion.title, aboutHtml);
         }
+        session.shareSettings();
+        profile = session.getActive();
+        t0 = VesicleTimer.start();
+        installed = showOverlay(imp);
+        VesicleTimer.stop("Overlay update", t0);
+        t0 = VesicleTimer.start();
         updateInfoPanel();
-        imp.updateAndDraw();
+        VesicleTimer.stop("Info panel", t0);
+        // Only changed pixels need the whole image to be redrawn; changed
+        // components only need their area repainted, and other commands
+        // nothing at all.
+        damaged = session.takeDamaged();
+        t0 = VesicleTimer.start();
+        if (redraw) {
+            imp.updateAndDraw();
+        } else if (damaged != null && !installed) {
+            drawDamaged(imp, damaged);
+        }
+        VesicleTimer.stop("Image redraw", t0);
         IJ.showStatus("");
     }
 
     public void processWindowEvent(WindowEvent e) {
         super.processWindowEvent(e);
         if (e.getID()==WindowEvent.WINDOW_CLOSING) {
+            VesicleSaver.finish();
+            if (profile.project != null) {
+                profile.project.close();
+            }
+            session.close();
+            closePerformancePanel();
             infoFrame.dispose();
             infoFrame = null;
             instance = null;
@@ -417,12 +1326,58 @@ public class Vesicle_ extends PlugInFrame implements VesicleOptions, ActionListe
 } // end of Vesicle_
 
 
+// The profile being edited. It is only used on the event thread; saving
+// and export work on VesicleSnapshots of it.
 class VesicleProfile implements VesicleOptions {
-    boolean dirty;
+    boolean dirty, nativeDepth, binaryFormat, randomInside, saveMetrics;
+    boolean saveAssociation;
     Overlay overlay;
-    int n, ntot, randompn, i;
+    // Profile components by type; the overlay is only a view of these.
+    Roi border, points, randomPoints;
+    ArrayList<Roi> holes, vesicles;
+    // Detected vesicles not yet accepted or rejected; shown in the overlay
+    // but not part of the profile.
+    ArrayList<Roi> candidates;
+    // Bounds of the overlay ROIs added or removed since takeDamaged(), or
+    // null if none were.
+    Rectangle damaged;
+    int borderNodes, pointNodes, randomNodes, holeNodes, vesicleNodes;
+    // Number of points inside vesicles; -1 until computed.
+    int pointsInVesicles;
+    // Shape of each component as counted above and recorded in the
+    // journal. Any component may be edited in place, which checkEdited
+    // catches up with.
+    IdentityHashMap<Roi, Polygon> shapes;
+    int n, ntot, randompn, randomStrategy;
+    // Profiles handed to VesicleSaver and not reported on yet: of prevImg,
+    // and in all. Their numbers and IDs are taken, but n and ntot only
+    // advance once they have been saved.
+    int saving, savingTot;
+    int exportMode, exportFormat, exportMargin;
+    // Autosave journal the edits are recorded in, or null, and the key of
+    // the profile in it.
+    VesicleJournal journal;
+    int key;
+    // Project file profiles are saved to instead of individual files, or
+    // null. It is shared by all profiles and closed by Vesicle_.
+    VesicleProject project;
     int imgID;
+    // Stack position (from 1) of the components, which are shown on that
+    // slice only; 0 if not bound to a slice.
+    int slice;
+    long randomSeed, placedSeed;
+    // Douglas-Peucker tolerance for new polygons, in calibrated units; 0
+    // for none.
+    double simplifyTolerance;
+    // Vesicle detection settings; diameters in calibrated units, 0 until
+    // set.
+    double detectMinDiameter, detectMaxDiameter, detectCoverage;
+    // Gold particle detection settings; diameter in calibrated units, 0
+    // until set.
+    double particleDiameter, particleDarkness;
     String ID, comment, prevImg;
+    // How the current random points were placed; null if unknown.
+    String placedStrategy, placedRegion;
 
     VesicleProfile() {
         this.n = 0;
@@ -430,54 +1385,387 @@ class VesicleProfile implements VesicleOptions {
         this.prevImg = "";
         this.imgID = 0;
         this.dirty = false;
+        this.nativeDepth = true;
         this.overlay = new Overlay();
+        this.holes = new ArrayList<Roi>();
+        this.vesicles = new ArrayList<Roi>();
+        this.candidates = new ArrayList<Roi>();
+        this.shapes = new IdentityHashMap<Roi, Polygon>();
+        this.detectCoverage = 0.5;
+        this.particleDarkness = 3;
+        this.pointsInVesicles = -1;
         this.randompn = 200;
+        this.exportMode = VesicleExport.DRAWN;
+        this.exportFormat = VesicleExport.TIFF;
+        this.exportMargin = 50;
         this.comment = "";
         this.ID = "";
     }
 
 
-    // Returns number of ROIs named 'name' in the overlay. Returns 0 if ROI not found in overlay.
-    public int getNum(String name) {
-        int i, n=0;
+    // Copies the settings (VesicleOptions and profile counters) of 'p'.
+    void copySettings(VesicleProfile p) {
+        this.nativeDepth = p.nativeDepth;
+        this.binaryFormat = p.binaryFormat;
+        this.randomInside = p.randomInside;
+        this.saveMetrics = p.saveMetrics;
+        this.saveAssociation = p.saveAssociation;
+        this.project = p.project;
+        this.n = p.n;
+        this.ntot = p.ntot;
+        this.saving = p.saving;
+        this.savingTot = p.savingTot;
+        this.prevImg = p.prevImg;
+        this.randompn = p.randompn;
+        this.randomStrategy = p.randomStrategy;
+        this.randomSeed = p.randomSeed;
+        this.simplifyTolerance = p.simplifyTolerance;
+        this.detectMinDiameter = p.detectMinDiameter;
+        this.detectMaxDiameter = p.detectMaxDiameter;
+        this.detectCoverage = p.detectCoverage;
+        this.particleDiameter = p.particleDiameter;
+        this.particleDarkness = p.particleDarkness;
+        this.exportMode = p.exportMode;
+        this.exportFormat = p.exportFormat;
+        this.exportMargin = p.exportMargin;
+    }
 
-        for (i = 0; i < this.overlay.size(); i++) {
-            if (this.overlay.get(i).getName().equals(name)) {
-                n++;
+
+    // Names the ROI, adds it to the overlay and registers it as a profile
+    // component of the type given by 'name'.
+    public void addComponent(Roi roi, String name, Color col) {
+        long t0 = VesicleTimer.start();
+
+        roi.setName(name);
+        roi.setStrokeColor(col);
+        roi.setPosition(this.slice);
+        register(roi);
+        this.overlay.add(roi);
+        damage(roi);
+        if (this.journal != null) {
+            if (roi == this.randomPoints && this.placedStrategy != null) {
+                this.journal.placed(this.key, this.placedStrategy, this.placedRegion,
+                                    this.placedSeed);
             }
+            this.journal.add(this.key, roi);
         }
-        return n;
+        VesicleTimer.stop("Component update", t0);
     }
-    // Returns number of points in ROI named 'name' in the overlay. Returns 0 if ROI not found in overlay.
-    public int getNumPoints(String name) {
-        if (this.overlay.getIndex(name) == -1) {
-            return 0;
+
+    // Adds a vesicle candidate to the overlay.
+    void addCandidate(Polygon pol) {
+        PolygonRoi roi = new PolygonRoi(pol, Roi.POLYGON);
+
+        roi.setName("vesicle candidate");
+        roi.setStrokeColor(candidateCol);
+        roi.setPosition(this.slice);
+        this.candidates.add(roi);
+        this.overlay.add(roi);
+        damage(roi);
+    }
+
+    // Makes the candidates with their center inside 'area' (all if null)
+    // vesicles. Returns the number of vesicles added.
+    int acceptCandidates(Roi area) {
+        ArrayList<Roi> chosen = takeCandidates(area);
+        int j;
+
+        for (j = 0; j < chosen.size(); j++) {
+            addComponent(new PolygonRoi(chosen.get(j).getPolygon(), Roi.POLYGON),
+                         "vesicle", vesicleCol);
+        }
+        return chosen.size();
+    }
+
+    // Removes the candidates with their center inside 'area' (all if
+    // null). Returns the number removed.
+    int rejectCandidates(Roi area) {
+        return takeCandidates(area).size();
+    }
+
+    private ArrayList<Roi> takeCandidates(Roi area) {
+        ArrayList<Roi> taken = new ArrayList<Roi>();
+        Rectangle r;
+        Roi roi;
+        int j;
+
+        for (j = 0; j < this.candidates.size(); j++) {
+            roi = this.candidates.get(j);
+            r = roi.getBounds();
+            if (area == null || area.contains(r.x + r.width / 2, r.y + r.height / 2)) {
+                taken.add(roi);
+                this.overlay.remove(roi);
+                damage(roi);
+            }
+        }
+        this.candidates.removeAll(taken);
+        return taken;
+    }
+
+    // Adds the bounds of 'roi' to the damaged area.
+    private void damage(Roi roi) {
+        Rectangle r = roi.getBounds();
+
+        this.damaged = this.damaged == null ? r : this.damaged.union(r);
+    }
+
+    // Returns the bounds of the overlay ROIs added or removed since the last
+    // call, or null if there were none.
+    Rectangle takeDamaged() {
+        Rectangle r = this.damaged;
+
+        this.damaged = null;
+        return r;
+    }
+
+    // Adds roi as a component of type 'name' in that type's default colour.
+    public void addComponent(Roi roi, String name) {
+        addComponent(roi, name, getComponentColor(name));
+    }
+
+    public static Color getComponentColor(String name) {
+        if (name.equals("profile border")) {
+            return profileCol;
+        } else if (name.equals("points")) {
+            return pointCol;
+        } else if (name.equals("random points")) {
+            return randomCol;
+        } else if (name.equals("hole")) {
+            return holeCol;
+        }
+        return vesicleCol;
+    }
+
+    // Returns the component type encoded in a ROI name, or null if the name
+    // does not denote a profile component. Suffixes such as "-2", which the
+    // ROI Manager appends to duplicate names, are ignored.
+    public static String getComponentName(String roiName) {
+        String[] names = {"profile border", "random points", "points",
+                          "hole", "vesicle"};
+        int i;
+
+        if (roiName == null) {
+            return null;
+        }
+        roiName = roiName.trim().toLowerCase();
+        for (i = 0; i < names.length; i++) {
+            if (roiName.equals(names[i]) || roiName.startsWith(names[i] + "-")) {
+                return names[i];
+            }
+        }
+        return null;
+    }
+
+    private void register(Roi roi) {
+        String name = roi.getName();
+        Polygon pol = roi.getPolygon();
+        int npoints = pol.npoints;
+
+        if (name.equals("points") || name.equals("vesicle")) {
+            this.pointsInVesicles = -1;
+        }
+        if (name.equals("profile border")) {
+            this.border = roi;
+            this.borderNodes = npoints;
+        } else if (name.equals("points")) {
+            this.points = roi;
+            this.pointNodes = npoints;
+        } else if (name.equals("random points")) {
+            this.randomPoints = roi;
+            this.randomNodes = npoints;
+        } else if (name.equals("hole")) {
+            this.holes.add(roi);
+            this.holeNodes += npoints;
+        } else if (name.equals("vesicle")) {
+            this.vesicles.add(roi);
+            this.vesicleNodes += npoints;
+        } else {
+            return;
+        }
+        this.shapes.put(roi, pol);
+    }
+
+    private void unregister(Roi roi) {
+        int npoints = roi.getPolygon().npoints;
+
+        update(roi);
+        this.shapes.remove(roi);
+
+        if (this.journal != null && isComponent(roi)) {
+            this.journal.delete(this.key, roi);
+        }
+        if (roi == this.points || this.vesicles.contains(roi)) {
+            this.pointsInVesicles = -1;
+        }
+        if (roi == this.border) {
+            this.border = null;
+            this.borderNodes = 0;
+        } else if (roi == this.points) {
+            this.points = null;
+            this.pointNodes = 0;
+        } else if (roi == this.randomPoints) {
+            this.randomPoints = null;
+            this.randomNodes = 0;
+            this.placedStrategy = null;
+        } else if (this.holes.remove(roi)) {
+            this.holeNodes -= npoints;
+        } else if (this.vesicles.remove(roi)) {
+            this.vesicleNodes -= npoints;
+        }
+    }
+
+    // Catches up with components edited in place since the last command,
+    // selected or not: each is compared with its recorded shape. The node
+    // counts and the points in vesicles are updated and the edits are
+    // recorded in the journal.
+    public void checkEdited() {
+        ArrayList<Roi> rois = new ArrayList<Roi>(this.shapes.keySet());
+        int i;
+
+        for (i = 0; i < rois.size(); i++) {
+            update(rois.get(i));
+        }
+    }
+
+    private void update(Roi roi) {
+        Polygon old = this.shapes.get(roi), pol;
+        int i, delta;
+
+        if (old == null) {
+            return;
+        }
+        pol = roi.getPolygon();
+        for (i = 0; pol.npoints == old.npoints && i < pol.npoints; i++) {
+            if (pol.xpoints[i] != old.xpoints[i] || pol.ypoints[i] != old.ypoints[i]) {
+                break;
+            }
+        }
+        if (i == pol.npoints && pol.npoints == old.npoints) {
+            return;
+        }
+        delta = pol.npoints - old.npoints;
+        if (roi == this.border) {
+            this.borderNodes += delta;
+        } else if (roi == this.points) {
+            this.pointNodes += delta;
+        } else if (roi == this.randomPoints) {
+            this.randomNodes += delta;
+        } else if (this.holes.contains(roi)) {
+            this.holeNodes += delta;
         } else {
-            return this.overlay.get(this.overlay.getIndex(name)).getPolygon().npoints;
+            this.vesicleNodes += delta;
+        }
+        if (roi == this.points || this.vesicles.contains(roi)) {
+            this.pointsInVesicles = -1;
+        }
+        if (this.journal != null) {
+            this.journal.delete(this.key, roi.getName(), old);
+            this.journal.add(this.key, roi);
+        }
+        this.shapes.put(roi, pol);
+        this.dirty = true;
+    }
+
+    // Returns the single component named 'name' (profile border, points or
+    // random points), or null if it is not defined.
+    public Roi getComponent(String name) {
+        if (name.equals("profile border")) {
+            return this.border;
+        } else if (name.equals("points")) {
+            return this.points;
+        } else if (name.equals("random points")) {
+            return this.randomPoints;
+        }
+        return null;
+    }
+
+    public boolean isComponent(Roi roi) {
+        return roi != null && (roi == this.border || roi == this.points ||
+                               roi == this.randomPoints ||
+                               this.holes.contains(roi) ||
+                               this.vesicles.contains(roi));
+    }
+
+    // Returns the number of points inside vesicles.
+    public int getNumPointsInVesicles() {
+        ArrayList<Polygon> pols;
+        int j;
+
+        if (this.pointsInVesicles == -1) {
+            if (this.points == null || this.vesicles.size() == 0) {
+                this.pointsInVesicles = 0;
+            } else {
+                pols = new ArrayList<Polygon>(this.vesicles.size());
+                for (j = 0; j < this.vesicles.size(); j++) {
+                    pols.add(this.vesicles.get(j).getPolygon());
+                }
+                this.pointsInVesicles = new VesicleIndex(pols)
+                                            .countContained(this.points.getPolygon());
+            }
+        }
+        return this.pointsInVesicles;
+    }
+
+    // Returns number of components named 'name'. Returns 0 if no such component is defined.
+    public int getNum(String name) {
+        if (name.equals("hole")) {
+            return this.holes.size();
+        } else if (name.equals("vesicle")) {
+            return this.vesicles.size();
         }
+        return getComponent(name) == null ? 0 : 1;
+    }
+
+    // Returns number of points in the component(s) named 'name'. Returns 0 if no such component is defined.
+    public int getNumPoints(String name) {
+        if (name.equals("profile border")) {
+            return this.borderNodes;
+        } else if (name.equals("points")) {
+            return this.pointNodes;
+        } else if (name.equals("random points")) {
+            return this.randomNodes;
+        } else if (name.equals("hole")) {
+            return this.holeNodes;
+        } else if (name.equals("vesicle")) {
+            return this.vesicleNodes;
+        }
+        return 0;
     }
 
     public void deleteSelectedComponent(ImagePlus imp) {
-        if (!this.overlay.contains(imp.getRoi())) {
+        long t0;
+
+        if (!isComponent(imp.getRoi())) {
             IJ.error("The current selection does not define a profile component.");
         } else {
             YesNoCancelDialog d = new YesNoCancelDialog(imp.getWindow(),
                     "Vesicle", "Delete " + imp.getRoi().getName() + "?");
             if (d.yesPressed()) {
+                t0 = VesicleTimer.start();
+                unregister(imp.getRoi());
                 this.overlay.remove(imp.getRoi());
+                damage(imp.getRoi());
                 imp.deleteRoi();
+                VesicleTimer.stop("Component update", t0);
             }
         }
     }
 
     public void deleteNamedComponent(ImagePlus imp, String name) {
-        if (this.overlay.getIndex(name) == -1) {
+        Roi roi = getComponent(name);
+        long t0;
+
+        if (roi == null) {
             IJ.error("No " + name + " defined.");
         } else {
             YesNoCancelDialog d = new YesNoCancelDialog(imp.getWindow(),
                     "Vesicle", "Delete " + name + "?");
             if (d.yesPressed()) {
-                this.overlay.remove(this.overlay.getIndex(name));
+                t0 = VesicleTimer.start();
+                unregister(roi);
+                this.overlay.remove(roi);
+                damage(roi);
+                VesicleTimer.stop("Component update", t0);
             }
         }
     }
@@ -495,7 +1783,7 @@ class VesicleProfile implements VesicleOptions {
     }
 
     public boolean isDefined(String name, String errstr) {
-        if (this.overlay.getIndex(name) != -1) {
+        if (getNum(name) > 0) {
             IJ.error(errstr + " already defined. Please delete old instance first.");
             return true;
         }
@@ -503,32 +1791,29 @@ class VesicleProfile implements VesicleOptions {
     }
 
     private boolean CheckProfileData(ImagePlus imp) {
-        String[] warnstr, errstr;
-        int i, nwarn = 0, nerr = 0;
+        return CheckProfileData(imp, "");
+    }
 
-        warnstr = new String[9];
-        errstr = new String[9];
-        Calibration c = imp.getCalibration();
-        if (c.getUnit().equals(" ")) {
-            errstr[nerr++] = "It appears the scale has not been set.";
-        }
-        if (this.getNumPoints("profile border") == 0) {
-            errstr[nerr++] = "Profile border not defined.";
-        }
-        if (this.getNum("vesicle") == 0) {
-            warnstr[nwarn++] = "No vesicles defined.";
-        }
-        if (this.getNumPoints("points") == 0) {
-            warnstr[nwarn++] = "No point coordinates defined.";
-        }
-        if (nerr > 0) {
-            IJ.error("Vesicle", "Error:\n" + errstr[0]);
+    // Checks the profile and asks whether to continue despite warnings.
+    // 'prefix' is put before each message, e.g. to name the profile.
+    boolean CheckProfileData(ImagePlus imp, String prefix) {
+        ArrayList<String> warnstr, errstr;
+        long t0 = VesicleTimer.start();
+        int i;
+
+        warnstr = new ArrayList<String>();
+        errstr = new ArrayList<String>();
+        snapshot(imp).check(errstr, warnstr);
+        VesicleTimer.stop("Save: validation", t0);
+        if (errstr.size() > 0) {
+            IJ.error("Vesicle", prefix + "Error:\n" + errstr.get(0));
             return false;
         }
-        if (nwarn > 0) {
-            for (i = 0; i < nwarn; i++) {
+        if (warnstr.size() > 0) {
+            for (i = 0; i < warnstr.size(); i++) {
                 YesNoCancelDialog d = new YesNoCancelDialog(imp.getWindow(),
-                    "Vesicle", "Warning:\n" + warnstr[i] + "\nContinue anyway?");
+                    "Vesicle", prefix + "Warning:\n" + warnstr.get(i) +
+                    "\nContinue anyway?");
                 if (!d.yesPressed()) {
                     return false;
                 }
@@ -538,11 +1823,18 @@ class VesicleProfile implements VesicleOptions {
     }
 
 
-    public boolean save(ImagePlus imp) {
-        int i, j;
-        double pixelwidth;
-        String s, unit;
-        Polygon pol;
+    // Asks for the profile ID and file names, then hands the profile over
+    // to VesicleSaver, which writes the files in the background. If a
+    // project file is in use, the profile is added to it instead of being
+    // saved to a file of its own. Returns false if the profile was not
+    // submitted for saving; failures while writing are reported by
+    // VesicleSaver, and 'listener' is told when the profile has been
+    // written or could not be.
+    public boolean save(ImagePlus imp, VesicleSaver.Listener listener) {
+        VesicleSaver.Job job;
+        String s;
+        long t0;
+        int number, counter;
 
         IJ.showStatus("Saving profile...");
         if (!CheckProfileData(imp)) {
@@ -553,175 +1845,246 @@ class VesicleProfile implements VesicleOptions {
             IJ.showMessage("Warning: pixel aspect ratio is not 1.\n" +
                            "Only pixel WIDTH is used.");
         }
-        try {
-            if (!imp.getTitle().equals(this.prevImg)) {
-                    this.n = 0;
-                    this.prevImg = imp.getTitle();
-            }
-            this.n++;
-            s = IJ.getString("Profile ID: ", IJ.d2s(this.ntot, 0));
-            if (!s.equals("")) {
-                this.ID = s;
+        if (!imp.getTitle().equals(this.prevImg)) {
+            this.n = 0;
+            this.saving = 0;
+            this.prevImg = imp.getTitle();
+        }
+        // Numbers of profiles still being saved are taken.
+        number = this.n + this.saving + 1;
+        counter = this.ntot + this.savingTot;
+        s = IJ.getString("Profile ID: ", this.ID.equals("") ? IJ.d2s(counter, 0) : this.ID);
+        if (!s.equals("")) {
+            setID(s);
+        }
+        // A project keeps one profile per image, slice and ID.
+        if (this.project != null &&
+            this.project.find(imp.getTitle(), this.slice, this.ID) != null) {
+            YesNoCancelDialog d = new YesNoCancelDialog(imp.getWindow(), "Vesicle",
+                "Profile " + (this.ID.equals("") ? "without ID" : this.ID) +
+                (this.slice > 0 ? " of slice " + this.slice : "") + " is already in " +
+                this.project.file.getName() + ".\nReplace it?");
+            if (!d.yesPressed()) {
+                return false;
             }
-            SaveDialog sd = new SaveDialog("Save profile",
-                                           imp.getTitle() + "." +
-                                           IJ.d2s(this.n,0), ".ves");
+        }
+        SaveDialog sd = null;
+        // With a project file, the file name only names the entry.
+        if (this.project == null) {
+            sd = new SaveDialog("Save profile", getFileName(imp, number),
+                                this.binaryFormat ? ".vesb" : ".ves");
             if (sd.getFileName() == null) {
-                this.n--;
                 return false;
             }
-            PrintWriter outf =
-                new PrintWriter(
-                    new BufferedWriter(
-                        new FileWriter(sd.getDirectory() +
-                                       sd.getFileName())));
-            String versionInfo = String.format("# %s version %s (%s %s, %s)",
-                                                VesicleVersion.title,
-                                                VesicleVersion.version,
-                                                VesicleVersion.month,
-                                                VesicleVersion.day,
-                                                VesicleVersion.year);
-            outf.println(versionInfo);
-            outf.println("IMAGE " + imp.getTitle());
-            outf.println("PROFILE_ID " + this.ID);
-            if (!this.comment.equals("")) {
-                outf.println("COMMENT " + this.comment);
-            }
-            if (c.getUnit().equals("micron")) {
-                pixelwidth = c.pixelWidth * 1000;
-                unit = "nm";
-            } else {
-                pixelwidth = c.pixelWidth;
-                unit = c.getUnit();
-            }
-            outf.println("PIXELWIDTH " + IJ.d2s(pixelwidth) + " " + unit);
-            outf.println("PROFILE_BORDER");
-            pol = this.overlay.get(this.overlay.getIndex("profile border")).getPolygon();
-            for (i = 0; i < pol.npoints; i++) {
-                outf.println("  " + IJ.d2s(pol.xpoints[i], 0) + ", "+ IJ.d2s(pol.ypoints[i], 0));
-            }
-            outf.println("END");
-            for (j = 0; j < this.overlay.size(); j++) {
-                if (this.overlay.get(j).getName().equals("hole")) {
-                    outf.println("HOLE");
-                    pol = this.overlay.get(j).getPolygon();
-                    for (i = 0; i < pol.npoints; i++)
-                        outf.println("  " + IJ.d2s(pol.xpoints[i], 0) + ", "+ IJ.d2s(pol.ypoints[i], 0));
-                    outf.println("END");
-                }
-            }
-            for (j = 0; j < this.overlay.size(); j++) {
-                if (this.overlay.get(j).getName().equals("vesicle")) {
-                    outf.println("VESICLE");
-                    pol = this.overlay.get(j).getPolygon();
-                    for (i = 0; i < pol.npoints; i++)
-                        outf.println("  " + IJ.d2s(pol.xpoints[i], 0) + ", "+ IJ.d2s(pol.ypoints[i], 0));
-                    outf.println("END");
-                }
-            }
-            if (this.overlay.getIndex("points") != -1) {
-                outf.println("POINTS");
-                pol = this.overlay.get(this.overlay.getIndex("points")).getPolygon();
-                for (i = 0; i < pol.npoints; i++) {
-                    outf.println("  " + IJ.d2s(pol.xpoints[i], 0) + ", " + IJ.d2s(pol.ypoints[i], 0));
-                }
-                outf.println("END");
-            }
-            if (this.overlay.getIndex("random points") != -1) {
-                outf.println("RANDOM_POINTS");
-                pol = this.overlay.get(this.overlay.getIndex("random points")).getPolygon();
-                for (i = 0; i < pol.npoints; i++) {
-                    outf.println("  " + IJ.d2s(pol.xpoints[i], 0) + ", " + IJ.d2s(pol.ypoints[i], 0));
-                }
-                outf.println("END");
-            }
-            outf.close();
-        } catch (Exception e) {
-            return false;
         }
-        writeIDtext(imp);
-        drawComponents(imp);
-        this.ntot++;
-        SaveDialog sd = new SaveDialog("Save analyzed image",
-                                       imp.getShortTitle(),
-                                       ".a.tif");
+        job = new VesicleSaver.Job();
+        job.journal = this.journal;
+        job.project = this.project;
+        job.add(snapshot(imp), sd == null
+                               ? getFileName(imp, number) + (this.binaryFormat ? ".vesb" : ".ves")
+                               : sd.getDirectory() + sd.getFileName());
+        job.binaryFormat = this.binaryFormat;
+        job.saveMetrics = this.saveMetrics;
+        job.saveAssociation = this.saveAssociation;
+        job.number = number;
+        job.counter = counter;
+        job.listener = listener;
+        this.saving++;
+        this.savingTot++;
+        sd = new SaveDialog("Save analyzed image",
+                            imp.getShortTitle(),
+                            VesicleExport.extensions[this.exportFormat]);
+        // The analyzed image is exported from a copy, taken before the
+        // components are drawn into the image itself, if they are at all.
         if (sd.getFileName() != null) {
-            FileSaver saveTiff = new FileSaver(imp);
-            saveTiff.saveAsTiff(sd.getDirectory() + sd.getFileName());
+            job.export = new VesicleExport(imp, job.snapshots, this.exportMode,
+                                           this.exportFormat, this.exportMargin);
+            job.exportPath = sd.getDirectory() + sd.getFileName();
         }
+        if (!this.nativeDepth) {
+            t0 = VesicleTimer.start();
+            render(imp);
+            VesicleTimer.stop("Save: rendering", t0);
+        }
+        VesicleSaver.submit(job);
+        release();
         return true;
     }
 
 
-    private void drawComponents(ImagePlus imp) {
-        Polygon pol;
-        int n, x, y;
+    // Returns the default name (without extension) of the file for the
+    // profile numbered 'n' on 'imp'; it includes the slice in a stack.
+    String getFileName(ImagePlus imp, int n) {
+        return imp.getTitle() + (this.slice > 0 ? ".s" + this.slice : "") + "." + n;
+    }
+
+
+    // Returns an immutable copy of the profile, which may be used on any
+    // thread. The image provides the title and calibration.
+    public VesicleSnapshot snapshot(ImagePlus imp) {
+        return new VesicleSnapshot(this, imp);
+    }
+
+
+    // Returns the profile as it would be stored in a .ves file, including
+    // geometry metrics and point-vesicle association if saveMetrics and
+    // saveAssociation are set.
+    public VesicleRecord getRecord(ImagePlus imp) {
+        VesicleRecord rec = snapshot(imp).toRecord();
 
-        for (n = 0; n < this.overlay.size(); n++) {
-            imp.setColor(this.overlay.get(n).getStrokeColor());
-            if (this.overlay.get(n).getName().equals("points")) {
-                pol = this.overlay.get(n).getPolygon();
-                for (i = 0; i < pol.npoints; i++) {
-                    x = pol.xpoints[i];
-                    y = pol.ypoints[i];
-                    imp.getProcessor().drawLine(x - 3, y, x + 3, y);
-                    imp.getProcessor().drawLine(x, y - 3, x, y + 3);
+        if (this.saveMetrics) {
+            VesicleMetrics.addTo(rec);
+        }
+        if (this.saveAssociation) {
+            VesicleIndex.addTo(rec);
+        }
+        return rec;
+    }
+
+
+    // Writes the profile in .ves (or, if binaryFormat is set, .vesb) format
+    // to 'path'. The image is only used for its title and calibration.
+    public void write(ImagePlus imp, String path) throws IOException {
+        if (this.binaryFormat) {
+            VesicleBinary.write(getRecord(imp), path);
+        } else {
+            getRecord(imp).write(path);
+        }
+    }
+
+
+    // Replaces the current profile with the one in 'rec', placed on 'imp'.
+    public void load(VesicleRecord rec, ImagePlus imp) {
+        PointRoi pointRoi;
+        int j;
+
+        clear();
+        this.ID = rec.id;
+        this.comment = rec.comment;
+        this.slice = 0;
+        if (imp.getStackSize() > 1) {
+            try {
+                this.slice = Integer.parseInt(rec.properties.get("SLICE"));
+            } catch (NumberFormatException e) {
+                this.slice = imp.getCurrentSlice();
+            }
+            this.slice = Math.max(1, Math.min(imp.getStackSize(), this.slice));
+        }
+        if (rec.border != null) {
+            addComponent(new PolygonRoi(rec.border, Roi.POLYGON), "profile border");
+        }
+        for (j = 0; j < rec.holes.size(); j++) {
+            addComponent(new PolygonRoi(rec.holes.get(j), Roi.POLYGON), "hole");
+        }
+        for (j = 0; j < rec.vesicles.size(); j++) {
+            addComponent(new PolygonRoi(rec.vesicles.get(j), Roi.POLYGON), "vesicle");
+        }
+        if (rec.points != null) {
+            addComponent(new PointRoi(rec.points), "points");
+        }
+        if (rec.randomPoints != null) {
+            pointRoi = new PointRoi(rec.randomPoints);
+            pointRoi.setHideLabels(true);
+            addComponent(pointRoi, "random points");
+            if (rec.properties.containsKey("RANDOM_STRATEGY")) {
+                try {
+                    this.placedSeed = Long.parseLong(rec.properties.get("RANDOM_SEED"));
+                    this.placedStrategy = rec.properties.get("RANDOM_STRATEGY");
+                    this.placedRegion = rec.properties.get("RANDOM_REGION");
+                } catch (NumberFormatException e) {
+                    this.placedStrategy = null;
                 }
-            }  else {
-                this.overlay.get(n).drawPixels(imp.getProcessor());
             }
         }
+        Calibration c = imp.getCalibration();
+        if (!c.scaled() && rec.pixelwidth > 0) {
+            c.pixelWidth = rec.pixelwidth;
+            c.pixelHeight = rec.pixelwidth;
+            c.setUnit(rec.unit);
+        }
+        this.imgID = imp.getID();
+        this.dirty = true;
     }
 
 
-    private Point findxy(Polygon pol, ImagePlus imp) {
-        int miny, x;
+    // Draws the profile ID and all components into the image, converting
+    // it to RGB first if necessary.
+    public void render(ImagePlus imp) {
+        snapshot(imp).render(imp);
+    }
 
-        miny = imp.getHeight();
-        x = imp.getWidth();
-        for (i = 0; i < pol.npoints; i++) {
-            if (pol.ypoints[i] < miny) {
-                miny = pol.ypoints[i];
-                x = pol.xpoints[i];
-            if (pol.ypoints[i] == miny && pol.xpoints[i] < x) {
-                x = pol.xpoints[i];
-                }
+
+    // Converts the image (all slices of a stack) to RGB so that components
+    // can be drawn in colour. Does nothing if the image is already RGB.
+    public static void convertToRGB(ImagePlus imp) {
+        if (imp != null && imp.getType() != ImagePlus.COLOR_RGB) {
+            if (imp.getStackSize() > 1) {
+                new StackConverter(imp).convertToRGB();
+            } else {
+                imp.setProcessor(imp.getTitle(), imp.getProcessor().convertToRGB());
             }
         }
-        return new Point(x, miny);
     }
 
 
-    private void writeIDtext(ImagePlus imp) {
-        TextRoi profileLabel;
-        Polygon pol;
-        Point p;
-        int locx, locy, size;
-        String label = "";
+    // Records edits in 'journal' from now on (none if null).
+    void attach(VesicleJournal journal) {
+        this.journal = journal;
+        this.key = journal == null ? 0 : journal.newKey();
+    }
 
-        for (i = 0; i < this.ID.length(); i++) {
-            label += this.ID.charAt(i);
+
+    // Called once the profile has been handed over for saving: the journal
+    // keeps it until it is saved, while this profile starts afresh.
+    void release() {
+        if (this.journal != null) {
+            this.key = this.journal.newKey();
+        }
+    }
+
+
+    public void setID(String id) {
+        this.ID = id;
+        if (this.journal != null) {
+            this.journal.setID(this.key, id);
+        }
+    }
+
+
+    public void setComment(String comment) {
+        this.comment = comment;
+        if (this.journal != null) {
+            this.journal.setComment(this.key, comment);
         }
-        size = imp.getHeight() / 42;  // adjust font size for image size (by an arbitrary factor)
-        TextRoi.setFont(TextRoi.getFont(), size, Font.BOLD);
-        profileLabel = new TextRoi(0, 0, label);
-        profileLabel.setAntialiased(true);
-        pol = this.overlay.get(this.overlay.getIndex("profile border")).getPolygon();
-        p = findxy(pol, imp);
-        locy = p.y - profileLabel.getBounds().height;
-        locx = p.x - profileLabel.getBounds().width;
-        if (locx < 0) locx = 3;
-        if (locy < 0) locy = 3;
-        profileLabel.setLocation(locx, locy);
-        imp.setColor(textCol);
-        profileLabel.drawPixels(imp.getProcessor());
-        imp.setColor(Color.black);
     }
 
 
     public void clear() {
+        int j;
+
+        if (this.journal != null) {
+            this.journal.clear(this.key);
+            this.key = this.journal.newKey();
+        }
         this.dirty = false;
+        for (j = 0; j < this.overlay.size(); j++) {
+            damage(this.overlay.get(j));
+        }
         this.overlay.clear();
+        this.border = null;
+        this.points = null;
+        this.randomPoints = null;
+        this.placedStrategy = null;
+        this.holes.clear();
+        this.vesicles.clear();
+        this.candidates.clear();
+        this.borderNodes = 0;
+        this.pointNodes = 0;
+        this.randomNodes = 0;
+        this.holeNodes = 0;
+        this.vesicleNodes = 0;
+        this.pointsInVesicles = -1;
+        this.shapes.clear();
         this.comment = "";
         this.ID = "";
     }
@@ -0,0 +1,250 @@
+/*
+    plugin : VesicleBenchmark.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Benchmarks of the hot paths of the Vesicle plugin.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+import ij.ImagePlus;
+import ij.gui.PointRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ColorProcessor;
+
+
+/*
+ * Headless benchmarks on synthetic profiles of increasing size:
+ *
+ *   record        VesicleProfile.getRecord, i.e. the snapshot saved
+ *   writeText     serialization of the record as .ves
+ *   writeBinary   serialization of the record as .vesb
+ *   counts        getNum / getNumPoints of all component types
+ *   infoPanel     the values shown in the info panel (counts and points
+ *                 in vesicles, recomputed as after each edit)
+ *   randomPoints  placing the random points inside the profile
+ *   render        drawing the ID and the components into the image
+ *
+ * The plugin lives in the default package, which JMH does not support, so
+ * this is a small harness in the same spirit: for every benchmark and
+ * profile size it warms up for one second, then measures five one-second
+ * iterations and reports the mean time per operation and its standard
+ * deviation. Results are printed and written as JSON in the layout of
+ * JMH's JSON output, so that the same tools can compare runs; as in JMH,
+ * the score error is the half-width of the 99.9% confidence interval of
+ * the mean (Student's t).
+ *
+ * Usage: mvn -Pbenchmark test [-Dbenchmark.output=file]
+ *    or: java -Djava.awt.headless=true -cp ij.jar:classes:test-classes
+ *            VesicleBenchmark [output file]
+ */
+public class VesicleBenchmark {
+    // Border nodes, vesicles, points and image side of each profile size.
+    static final int[][] sizes = {{100, 10, 50, 1024},
+                                  {1000, 100, 500, 2048},
+                                  {10000, 1000, 5000, 4096}};
+    static final String[] benchmarks = {"record", "writeText", "writeBinary", "counts",
+                                        "infoPanel", "randomPoints", "render"};
+    static final long warmupNanos = 1000000000L;
+    static final long iterationNanos = 1000000000L;
+    static final int iterations = 5;
+    // Two-sided 99.9% quantile of Student's t for iterations - 1 degrees
+    // of freedom.
+    static final double t999 = 8.610;
+
+    // Results go here so that the work cannot be optimized away.
+    static volatile long sink;
+
+    final VesicleProfile profile;
+    final ImagePlus imp;
+    final int[] size;
+
+
+    VesicleBenchmark(int[] size) {
+        this.size = size;
+        this.imp = new ImagePlus("benchmark", new ColorProcessor(size[3], size[3]));
+        Calibration c = this.imp.getCalibration();
+        c.pixelWidth = 2.0;
+        c.pixelHeight = 2.0;
+        c.setUnit("nm");
+        this.profile = makeProfile(size, this.imp);
+    }
+
+
+    // Returns a profile with a roughly circular border of size[0] nodes
+    // filling most of the image, size[1] vesicles of 16 nodes and size[2]
+    // points inside it. The same size always gives the same profile.
+    static VesicleProfile makeProfile(int[] size, ImagePlus imp) {
+        VesicleProfile profile = new VesicleProfile();
+        Random rnd = new Random(size[0]);
+        Polygon pol;
+        double c = size[3] / 2.0, r = size[3] * 0.45, a, rv;
+        int i, j, x, y;
+
+        pol = new Polygon();
+        for (i = 0; i < size[0]; i++) {
+            a = 2 * Math.PI * i / size[0];
+            rv = r * (0.95 + 0.05 * rnd.nextDouble());
+            pol.addPoint((int) (c + rv * Math.cos(a)), (int) (c + rv * Math.sin(a)));
+        }
+        profile.addComponent(new PolygonRoi(pol, Roi.POLYGON), "profile border");
+        rv = Math.max(3, r / Math.sqrt(size[1]) / 4);
+        for (j = 0; j < size[1]; j++) {
+            a = 2 * Math.PI * rnd.nextDouble();
+            x = (int) (c + 0.8 * r * Math.sqrt(rnd.nextDouble()) * Math.cos(a));
+            y = (int) (c + 0.8 * r * Math.sqrt(rnd.nextDouble()) * Math.sin(a));
+            pol = new Polygon();
+            for (i = 0; i < 16; i++) {
+                pol.addPoint((int) (x + rv * Math.cos(2 * Math.PI * i / 16)),
+                             (int) (y + rv * Math.sin(2 * Math.PI * i / 16)));
+            }
+            profile.addComponent(new PolygonRoi(pol, Roi.POLYGON), "vesicle");
+        }
+        pol = new Polygon();
+        for (i = 0; i < size[2]; i++) {
+            a = 2 * Math.PI * rnd.nextDouble();
+            rv = 0.9 * r * Math.sqrt(rnd.nextDouble());
+            pol.addPoint((int) (c + rv * Math.cos(a)), (int) (c + rv * Math.sin(a)));
+        }
+        profile.addComponent(new PointRoi(pol), "points");
+        profile.ID = "1";
+        profile.imgID = imp.getID();
+        profile.dirty = true;
+        return profile;
+    }
+
+
+    // Runs one operation of 'benchmark' and returns something depending on
+    // its result.
+    long run(String benchmark) throws IOException {
+        VesicleRecord rec;
+
+        if (benchmark.equals("record")) {
+            return this.profile.getRecord(this.imp).vesicles.size();
+        } else if (benchmark.equals("writeText")) {
+            rec = this.profile.getRecord(this.imp);
+            return VesicleBinary.toText(rec).length;
+        } else if (benchmark.equals("writeBinary")) {
+            rec = this.profile.getRecord(this.imp);
+            return VesicleBinary.toBinary(rec).length;
+        } else if (benchmark.equals("counts")) {
+            return this.profile.getNum("vesicle") + this.profile.getNum("hole") +
+                   this.profile.getNumPoints("profile border") +
+                   this.profile.getNumPoints("points") +
+                   this.profile.getNumPoints("random points");
+        } else if (benchmark.equals("infoPanel")) {
+            this.profile.pointsInVesicles = -1;
+            return this.profile.getNum("vesicle") + this.profile.getNumPoints("points") +
+                   this.profile.getNumPointsInVesicles() +
+                   this.profile.getNumPoints("profile border") + this.profile.getNum("hole");
+        } else if (benchmark.equals("randomPoints")) {
+            return new VesicleSampler(this.profile.border, this.profile.holes)
+                       .sample(this.size[2], VesicleSampler.UNIFORM, 1).npoints;
+        } else if (benchmark.equals("render")) {
+            this.profile.render(this.imp);
+            return this.imp.getWidth();
+        }
+        throw new IllegalArgumentException(benchmark);
+    }
+
+
+    // Returns the mean, the standard deviation and the score error (see
+    // above) of the time per operation in microseconds.
+    double[] measure(String benchmark) throws IOException {
+        double[] score = new double[iterations];
+        double mean = 0, var = 0;
+        long start, ops;
+        int i;
+
+        start = System.nanoTime();
+        while (System.nanoTime() - start < warmupNanos) {
+            sink += run(benchmark);
+        }
+        for (i = 0; i < iterations; i++) {
+            ops = 0;
+            start = System.nanoTime();
+            do {
+                sink += run(benchmark);
+                ops++;
+            } while (System.nanoTime() - start < iterationNanos);
+            score[i] = (System.nanoTime() - start) / 1000.0 / ops;
+            mean += score[i] / iterations;
+        }
+        for (i = 0; i < iterations; i++) {
+            var += (score[i] - mean) * (score[i] - mean) / (iterations - 1);
+        }
+        return new double[] {mean, Math.sqrt(var), t999 * Math.sqrt(var / iterations)};
+    }
+
+
+    static String json(String benchmark, int[] size, double[] score) {
+        return String.format(Locale.US,
+            "    {\n" +
+            "        \"benchmark\" : \"VesicleBenchmark.%s\",\n" +
+            "        \"mode\" : \"avgt\",\n" +
+            "        \"warmupIterations\" : 1,\n" +
+            "        \"measurementIterations\" : %d,\n" +
+            "        \"params\" : {\n" +
+            "            \"borderNodes\" : \"%d\",\n" +
+            "            \"vesicles\" : \"%d\",\n" +
+            "            \"points\" : \"%d\",\n" +
+            "            \"imageSize\" : \"%d\"\n" +
+            "        },\n" +
+            "        \"primaryMetric\" : {\n" +
+            "            \"score\" : %.3f,\n" +
+            "            \"scoreError\" : %.3f,\n" +
+            "            \"scoreConfidence\" : [%.3f, %.3f],\n" +
+            "            \"scoreUnit\" : \"us/op\"\n" +
+            "        }\n" +
+            "    }",
+            benchmark, iterations, size[0], size[1], size[2], size[3], score[0], score[2],
+            score[0] - score[2], score[0] + score[2]);
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        ArrayList<String> results = new ArrayList<String>();
+        String output = args.length > 0 ? args[0] : "target/benchmark.json";
+        VesicleBenchmark bench;
+        PrintWriter out;
+        double[] score;
+        int i, j;
+
+        System.setProperty("java.awt.headless", "true");
+        System.out.println(String.format("%-14s %8s %8s %8s %14s %12s", "Benchmark",
+                                         "border", "vesicles", "points", "us/op", "stdev"));
+        for (i = 0; i < sizes.length; i++) {
+            bench = new VesicleBenchmark(sizes[i]);
+            for (j = 0; j < benchmarks.length; j++) {
+                score = bench.measure(benchmarks[j]);
+                System.out.println(String.format(Locale.US, "%-14s %8d %8d %8d %14.3f %12.3f",
+                                                 benchmarks[j], sizes[i][0], sizes[i][1],
+                                                 sizes[i][2], score[0], score[1]));
+                results.add(json(benchmarks[j], sizes[i], score));
+            }
+        }
+        new File(output).getAbsoluteFile().getParentFile().mkdirs();
+        out = new PrintWriter(new BufferedWriter(new FileWriter(output)));
+        try {
+            out.println("[");
+            for (i = 0; i < results.size(); i++) {
+                out.println(results.get(i) + (i < results.size() - 1 ? "," : ""));
+            }
+            out.println("]");
+        } finally {
+            out.close();
+        }
+        System.out.println("Results written to " + output);
+    }
+} // end of VesicleBenchmark
@@ -0,0 +1,126 @@
+/*
+    plugin : VesicleBinaryTest.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Tests of the binary profile format and the converter.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.io.*;
+import ij.ImagePlus;
+import ij.gui.PointRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/*
+ * Round trips of a profile saved by the plugin between .ves and .vesb:
+ * both formats must hold the same profile, so that conversion with
+ * verification succeeds in either direction.
+ */
+public class VesicleBinaryTest {
+    private File dir;
+
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = File.createTempFile("vesicle", "");
+        this.dir.delete();
+        this.dir.mkdir();
+    }
+
+
+    @After
+    public void tearDown() {
+        File[] files = this.dir.listFiles();
+        int i;
+
+        for (i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        this.dir.delete();
+    }
+
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        String path = new File(this.dir, "a.tif.1.vesb").getPath(), text, binary;
+        VesicleRecord rec;
+
+        VesicleBinary.write(record(0.8732), path);
+        text = VesicleBinary.convert(path, true);
+        assertTrue(new File(path).delete());
+        binary = VesicleBinary.convert(text, true);
+        assertEquals(path, binary);
+        rec = VesicleReader.read(binary);
+        assertEquals(0.87, rec.pixelwidth, 0);
+        assertEquals(VesicleReader.read(text).pixelwidth, rec.pixelwidth, 0);
+        assertEquals(5, rec.points.npoints);
+    }
+
+
+    @Test
+    public void textRoundTrip() throws IOException {
+        String path = new File(this.dir, "a.tif.1.ves").getPath(), binary;
+
+        record(1.0 / 3).write(path);
+        binary = VesicleBinary.convert(path, true);
+        assertEquals(VesicleReader.read(path).pixelwidth,
+                     VesicleReader.read(binary).pixelwidth, 0);
+    }
+
+
+    @Test
+    public void failedConversionLeavesNoFile() throws IOException {
+        String path = new File(this.dir, "a.tif.1.ves").getPath();
+        FileWriter out;
+
+        record(2.5).write(path);
+        // An extra line is lost in conversion, so the round trip differs.
+        out = new FileWriter(path, true);
+        out.write("\n");
+        out.close();
+        try {
+            VesicleBinary.convert(path, true);
+            fail("round trip not checked");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, this.dir.list().length);
+    }
+
+
+    // Returns the record of a profile saved from an image with 'pixelwidth'
+    // nm per pixel.
+    private static VesicleRecord record(double pixelwidth) {
+        ImagePlus imp = new ImagePlus("a.tif", new ByteProcessor(100, 100));
+        VesicleProfile profile = new VesicleProfile();
+        Calibration c = imp.getCalibration();
+
+        c.pixelWidth = pixelwidth;
+        c.pixelHeight = pixelwidth;
+        c.setUnit("nm");
+        profile.addComponent(new PolygonRoi(new Polygon(new int[] {10, 90, 90, 10},
+                                                        new int[] {10, 10, 90, 90}, 4),
+                                            Roi.POLYGON), "profile border");
+        profile.addComponent(new PolygonRoi(new Polygon(new int[] {20, 30, 25},
+                                                        new int[] {20, 20, 30}, 3),
+                                            Roi.POLYGON), "vesicle");
+        profile.addComponent(new PointRoi(new int[] {15, 40, 50, 60, 70},
+                                          new int[] {15, 40, 50, 60, 70}, 5), "points");
+        profile.setID("1");
+        return profile.snapshot(imp).toRecord();
+    }
+} // end of VesicleBinaryTest
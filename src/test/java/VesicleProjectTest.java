@@ -0,0 +1,303 @@
+/*
+    plugin : VesicleProjectTest.java
+    author : Max Larsson
+    e-mail : max.larsson@liu.se
+
+    Tests of the project file format.
+
+    Copyright 2001-2018 Max Larsson <max.larsson@liu.se>
+
+    This software is released under the MIT license.
+
+*/
+
+import java.awt.Polygon;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/*
+ * Round trips of profiles through a project, and opening projects that
+ * were damaged: an incomplete last entry is cut off, while damage before
+ * a complete entry must fail without changing the file.
+ */
+public class VesicleProjectTest {
+    private File dir, file;
+
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = File.createTempFile("vesicle", "");
+        this.dir.delete();
+        this.dir.mkdir();
+        this.file = new File(this.dir, "test" + VesicleProject.extension);
+    }
+
+
+    @After
+    public void tearDown() {
+        File[] files = this.dir.listFiles();
+        int i;
+
+        for (i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        this.dir.delete();
+    }
+
+
+    @Test
+    public void roundTrip() throws IOException {
+        VesicleProject project = new VesicleProject(this.file, true);
+
+        project.append(record("a.tif", "1", 10), "a.tif.1.ves", false);
+        project.append(record("a.tif", "2", 20), "a.tif.2.vesb", true);
+        project.append(record("b.tif", "1", 30), "b.tif.1.ves", false);
+        project.close();
+        project = new VesicleProject(this.file, false);
+        checkContents(project);
+        project.close();
+        // Without the index the entries are read from the project itself.
+        assertTrue(indexFile().delete());
+        project = new VesicleProject(this.file, false);
+        checkContents(project);
+        project.close();
+    }
+
+
+    @Test
+    public void savingAgainReplaces() throws IOException {
+        VesicleProject project = new VesicleProject(this.file, true);
+
+        project.append(record("a.tif", "1", 10), "a.tif.1.ves", false);
+        project.append(record("a.tif", "1", 40), "a.tif.1.ves", false);
+        assertEquals(1, project.size());
+        assertEquals(40, project.read(project.find("a.tif", 0, "1")).border.xpoints[1]);
+        project.close();
+    }
+
+
+    @Test
+    public void slicesAreKeptApart() throws IOException {
+        VesicleProject project = new VesicleProject(this.file, true);
+        VesicleRecord rec;
+
+        project.append(record("stack.tif", "1", 10), "stack.tif.1.ves", false);
+        rec = record("stack.tif", "1", 20);
+        rec.properties.put("SLICE", "2");
+        project.append(rec, "stack.tif.s2.1.ves", false);
+        rec = record("stack.tif", "1", 30);
+        rec.properties.put("SLICE", "3");
+        project.append(rec, "stack.tif.s3.1.ves", false);
+        project.close();
+        project = new VesicleProject(this.file, false);
+        assertEquals(3, project.size());
+        assertEquals(10, project.read(project.find("stack.tif", 0, "1")).border.xpoints[1]);
+        assertEquals(20, project.read(project.find("stack.tif", 2, "1")).border.xpoints[1]);
+        assertEquals(3, project.find("stack.tif", 3, "1").slice);
+        project.close();
+    }
+
+
+    @Test
+    public void exportKeepsExistingFiles() throws IOException {
+        VesicleProject project = new VesicleProject(this.file, true);
+        File exported = new File(this.dir, "a.tif.1.ves");
+        FileOutputStream out = new FileOutputStream(exported);
+
+        out.write('x');
+        out.close();
+        project.append(record("a.tif", "1", 10), "a.tif.1.ves", false);
+        project.append(record("b.tif", "1", 20), "a.tif.1.ves", false);
+        assertEquals(2, project.export(this.dir));
+        project.close();
+        assertEquals(1, exported.length());
+        assertEquals("a.tif",
+                     VesicleReader.read(new File(this.dir, "a.tif.1-2.ves").getPath()).image);
+        assertEquals("b.tif",
+                     VesicleReader.read(new File(this.dir, "a.tif.1-3.ves").getPath()).image);
+    }
+
+
+    @Test
+    public void incompleteLastEntryIsCutOff() throws IOException {
+        long end = writeEntries(3);
+        long last = entryOffset(2);
+
+        truncate(end - 5);
+        VesicleProject project = new VesicleProject(this.file, true);
+        assertEquals(2, project.size());
+        assertNull(project.find("a.tif", 0, "2"));
+        assertEquals(last, this.file.length());
+        project.close();
+    }
+
+
+    @Test
+    public void incompleteFrameIsCutOff() throws IOException {
+        writeEntries(3);
+        truncate(entryOffset(2) + 5);
+        VesicleProject project = new VesicleProject(this.file, true);
+        assertEquals(2, project.size());
+        assertEquals(entryOffset(2), this.file.length());
+        project.close();
+    }
+
+
+    @Test
+    public void zerosAfterLastEntryAreCutOff() throws IOException {
+        long end = writeEntries(2);
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+
+        raf.setLength(end + 4096);
+        raf.close();
+        VesicleProject project = new VesicleProject(this.file, true);
+        assertEquals(2, project.size());
+        assertEquals(end, this.file.length());
+        project.close();
+    }
+
+
+    @Test
+    public void readOnlyIgnoresIncompleteLastEntry() throws IOException {
+        long end = writeEntries(3);
+
+        truncate(end - 5);
+        VesicleProject project = new VesicleProject(this.file, false);
+        assertEquals(2, project.size());
+        assertEquals(end - 5, this.file.length());
+        project.close();
+    }
+
+
+    @Test
+    public void damagedLengthBeforeLastEntryFails() throws IOException {
+        long end = writeEntries(3);
+
+        poke(entryOffset(1), 0x7f);
+        assertDamaged(end);
+    }
+
+
+    @Test
+    public void damagedBodyBeforeLastEntryFails() throws IOException {
+        long end = writeEntries(3);
+
+        poke(entryOffset(1) + 20, 0x55);
+        assertDamaged(end);
+    }
+
+
+    // Opening the project must fail and leave the file as it was.
+    private void assertDamaged(long size) throws IOException {
+        try {
+            new VesicleProject(this.file, true).close();
+            fail("damage not detected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("damaged"));
+        }
+        assertEquals(size, this.file.length());
+    }
+
+
+    private void checkContents(VesicleProject project) throws IOException {
+        VesicleRecord rec;
+
+        assertEquals(3, project.size());
+        assertEquals(2, project.list("a.tif").size());
+        assertEquals("a.tif.2.vesb", project.find("a.tif", 0, "2").name);
+        rec = project.read(project.find("a.tif", 0, "1"));
+        assertEquals("a.tif", rec.image);
+        assertEquals("1", rec.id);
+        assertEquals(10, rec.border.xpoints[1]);
+        assertEquals(1, rec.vesicles.size());
+        rec = project.read(project.find("a.tif", 0, "2"));
+        assertEquals(20, rec.border.xpoints[1]);
+        assertEquals(2.5, rec.pixelwidth, 1e-9);
+        rec = project.read(project.find("b.tif", 0, "1"));
+        assertEquals("b.tif", rec.image);
+        assertEquals(30, rec.vesicles.get(0).ypoints[2]);
+    }
+
+
+    // Writes 'n' profiles of a.tif, without an index. Returns the size of
+    // the project.
+    private long writeEntries(int n) throws IOException {
+        VesicleProject project = new VesicleProject(this.file, true);
+        int i;
+
+        for (i = 0; i < n; i++) {
+            project.append(record("a.tif", "" + i, 10 + i), "a.tif." + i + ".ves", false);
+        }
+        project.close();
+        assertTrue(indexFile().delete());
+        return this.file.length();
+    }
+
+
+    // Returns the offset of the 'k'th entry written by writeEntries.
+    private long entryOffset(int k) throws IOException {
+        FileInputStream in = new FileInputStream(this.file);
+        FileChannel channel = in.getChannel();
+        ByteBuffer length = ByteBuffer.allocate(4);
+        long pos = VesicleProject.headerSize;
+        int i;
+
+        try {
+            for (i = 0; i < k; i++) {
+                length.clear();
+                channel.read(length, pos);
+                pos += 8 + length.getInt(0);
+            }
+        } finally {
+            in.close();
+        }
+        return pos;
+    }
+
+
+    private void poke(long pos, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+
+        try {
+            raf.seek(pos);
+            raf.write(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    private void truncate(long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+
+        try {
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    private File indexFile() {
+        return new File(this.file.getPath() + VesicleProject.indexExtension);
+    }
+
+
+    private static VesicleRecord record(String image, String id, int k) {
+        VesicleRecord rec = new VesicleRecord();
+
+        rec.image = image;
+        rec.id = id;
+        rec.unit = "nm";
+        rec.pixelwidth = 2.5;
+        rec.border = new Polygon(new int[] {0, k, k}, new int[] {0, 0, k}, 3);
+        rec.vesicles.add(new Polygon(new int[] {1, 2, 3}, new int[] {4, 5, k}, 3));
+        return rec;
+    }
+} // end of VesicleProjectTest